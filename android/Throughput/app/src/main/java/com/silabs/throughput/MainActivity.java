@@ -379,10 +379,12 @@ public class MainActivity extends AppCompatActivity {
 
 
 
+                        // time the notification arrived, not the time the broadcast was delivered.
+                        long rxTime = intent.getLongExtra("timestamp", SystemClock.elapsedRealtimeNanos()) / 1000000;
                         if (0 == mStartTime) {
-                            mStartTime = SystemClock.elapsedRealtime();
+                            mStartTime = rxTime;
                         }
-                        mLastByteRxTime = SystemClock.elapsedRealtime();
+                        mLastByteRxTime = rxTime;
 
                         mBytesRx += stringReceived.length();
 
@@ -0,0 +1,408 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silabs.bgxpress;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Captures the data of a BGXConnection to files on a background thread.
+ *
+ * <p>Data is copied into a bounded in-memory queue by the thread that receives
+ * or writes it and is written to disk by the sink's own thread through a
+ * FileChannel with a large buffer, so capturing never blocks the Bluetooth
+ * callbacks or the UI. If the writer falls so far behind that the queue is full,
+ * new data is dropped and counted in {@link #getDroppedBytes}.
+ *
+ * <p>By default only received bytes are captured, as-is. If TX capture or
+ * timestamps are enabled each chunk of data is written as a record instead:
+ * <pre>
+ *   direction - 1 byte - 'R' for received data, 'T' for transmitted data
+ *   timestamp - 8 bytes - SystemClock.elapsedRealtimeNanos(), little-endian
+ *   length    - 4 bytes - length of the data, little-endian
+ *   data      - length bytes
+ * </pre>
+ *
+ * <p>A new file is started when the current one reaches the maximum size or
+ * age. Files are named baseName-yyyyMMdd-HHmmss-N.bin. Records are never split
+ * between files.
+ *
+ * <p>Configure the sink before passing it to {@link BGXConnection#startCapture}.
+ */
+public class BGXCaptureSink implements Closeable {
+
+    private static final byte kRecordRx = 'R';
+    private static final byte kRecordTx = 'T';
+    private static final int kRecordHeaderSize = 13;
+
+    private static final int kDefaultQueueCapacity = 4 * 1024 * 1024;
+    private static final int kWriteBufferSize = 256 * 1024;
+
+    private final File mDirectory;
+    private final String mBaseName;
+
+    private long mMaxFileSize;
+    private long mMaxFileAge;
+    private boolean fCaptureTx;
+    private boolean fTimestamps;
+    private int mQueueCapacity;
+
+    /**
+     * Guarded by mQueueSync. The writer thread swaps mQueue for an empty buffer
+     * and writes the full one without holding the lock. mDraining is the number
+     * of bytes it took that are not written yet, and counts against the capacity.
+     */
+    private final Object mQueueSync;
+    private ByteRingBuffer mQueue;
+    private int mDraining;
+    private final byte[] mHeader;
+    private boolean fStopping;
+    private long mDroppedBytes;
+
+    private Thread mThread;
+    private volatile IOException mError;
+
+    // used only on the writer thread.
+    private FileChannel mChannel;
+    private long mFileSize;
+    private long mFileOpenedAt;
+    private int mFileIndex;
+
+    /**
+     * @param directory The directory in which to create the capture files.
+     * @param baseName  The start of the file names.
+     */
+    public BGXCaptureSink(File directory, String baseName) {
+        this.mDirectory = directory;
+        this.mBaseName = baseName;
+        this.mMaxFileSize = 0;
+        this.mMaxFileAge = 0;
+        this.fCaptureTx = false;
+        this.fTimestamps = false;
+        this.mQueueCapacity = kDefaultQueueCapacity;
+        this.mQueueSync = new Object();
+        this.mQueue = null;
+        this.mDraining = 0;
+        this.mHeader = new byte[kRecordHeaderSize];
+        this.fStopping = false;
+        this.mDroppedBytes = 0;
+        this.mThread = null;
+        this.mError = null;
+        this.mFileIndex = 0;
+    }
+
+    /**
+     * @param maxFileSize Start a new file once the current one has this many bytes. 0 for no limit (the default).
+     */
+    public void setMaxFileSize(long maxFileSize) {
+        mMaxFileSize = maxFileSize;
+    }
+
+    /**
+     * @param maxFileAgeMs Start a new file once the current one is this old. 0 for no limit (the default).
+     */
+    public void setMaxFileAge(long maxFileAgeMs) {
+        mMaxFileAge = maxFileAgeMs;
+    }
+
+    /**
+     * @param captureTx true to also capture data written through the connection. Enables the record format.
+     */
+    public void setCaptureTx(boolean captureTx) {
+        fCaptureTx = captureTx;
+    }
+
+    /**
+     * @param timestamps true to write records with timestamps rather than raw received bytes.
+     */
+    public void setTimestamps(boolean timestamps) {
+        fTimestamps = timestamps;
+    }
+
+    /**
+     * @param queueCapacity The most bytes held in memory waiting to be written. The default is 4 MiB.
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        mQueueCapacity = queueCapacity;
+    }
+
+    /**
+     * @return The number of bytes dropped because the queue was full.
+     */
+    public long getDroppedBytes() {
+        synchronized (mQueueSync) {
+            return mDroppedBytes;
+        }
+    }
+
+    /**
+     * @return The error that stopped the writer, or null.
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    /**
+     * Opens the first file and starts the writer thread.
+     */
+    synchronized void start() throws IOException {
+        if (null != mThread) {
+            throw new IllegalStateException("BGXCaptureSink already started.");
+        }
+
+        mQueue = new ByteRingBuffer(Math.min(kWriteBufferSize, mQueueCapacity), mQueueCapacity);
+        openNextFile();
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        }, "BGXCaptureSink");
+        mThread.start();
+    }
+
+    /**
+     * Stops capturing. Data already queued is written before the file is closed.
+     */
+    @Override
+    public void close() {
+        Thread thread;
+        synchronized (mQueueSync) {
+            fStopping = true;
+            mQueueSync.notifyAll();
+        }
+
+        synchronized (this) {
+            thread = mThread;
+        }
+
+        if (null != thread && Thread.currentThread() != thread) {
+            try {
+                thread.join();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    void captureRx(byte[] data, int offset, int length) {
+        enqueue(kRecordRx, data, offset, length);
+    }
+
+    void captureTx(byte[] data, int offset, int length) {
+        if (fCaptureTx) {
+            enqueue(kRecordTx, data, offset, length);
+        }
+    }
+
+    /**
+     * Captures the bytes between the position and limit of data without changing them.
+     */
+    void captureTx(ByteBuffer data) {
+        if (fCaptureTx) {
+            if (data.hasArray()) {
+                enqueue(kRecordTx, data.array(), data.arrayOffset() + data.position(), data.remaining());
+            } else {
+                byte[] copy = new byte[data.remaining()];
+                data.duplicate().get(copy);
+                enqueue(kRecordTx, copy, 0, copy.length);
+            }
+        }
+    }
+
+    private void enqueue(byte direction, byte[] data, int offset, int length) {
+        long now = SystemClock.elapsedRealtimeNanos();
+
+        synchronized (mQueueSync) {
+            if (null == mQueue || fStopping) {
+                return;
+            }
+
+            if ((long) mQueue.size() + mDraining + kRecordHeaderSize + length > mQueueCapacity) {
+                mDroppedBytes += length;
+                return;
+            }
+
+            mHeader[0] = direction;
+            for (int i = 0; i < 8; ++i) {
+                mHeader[1 + i] = (byte) (now >>> (8 * i));
+            }
+            for (int i = 0; i < 4; ++i) {
+                mHeader[9 + i] = (byte) (length >>> (8 * i));
+            }
+
+            mQueue.append(mHeader, 0, kRecordHeaderSize);
+            mQueue.append(data, offset, length);
+            mQueueSync.notifyAll();
+        }
+    }
+
+    private void runWriter() {
+        boolean fRecords = fCaptureTx || fTimestamps;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(kWriteBufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] header = new byte[kRecordHeaderSize];
+        ByteRingBuffer batch = new ByteRingBuffer(Math.min(kWriteBufferSize, mQueueCapacity), mQueueCapacity);
+
+        try {
+            while (true) {
+                synchronized (mQueueSync) {
+                    mDraining = 0;
+                    while (mQueue.isEmpty() && !fStopping) {
+                        mQueueSync.wait();
+                    }
+
+                    if (mQueue.isEmpty()) {
+                        break;
+                    }
+
+                    ByteRingBuffer full = mQueue;
+                    mQueue = batch;
+                    batch = full;
+                    mDraining = batch.size();
+                }
+
+                // move whole records into the write buffer.
+                while (!batch.isEmpty()) {
+                    batch.read(header, 0, kRecordHeaderSize);
+                    int length = (header[9] & 0xFF) | (header[10] & 0xFF) << 8 | (header[11] & 0xFF) << 16 | (header[12] & 0xFF) << 24;
+                    int recordSize = fRecords ? kRecordHeaderSize + length : length;
+
+                    if (recordSize > buffer.remaining() && buffer.position() > 0) {
+                        writeBuffer(buffer);
+                    }
+
+                    if (recordSize > buffer.capacity()) {
+                        // larger than the whole write buffer; happens only for very large TX writes.
+                        writeLargeRecord(batch, buffer, fRecords ? header : null, length);
+                        continue;
+                    }
+
+                    if (fRecords) {
+                        buffer.put(header);
+                    }
+                    read(batch, buffer, length);
+                }
+
+                if (buffer.position() > 0) {
+                    writeBuffer(buffer);
+                }
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } catch (IOException exception) {
+            Log.e("bgx_dbg", "BGXCaptureSink: " + exception.getMessage());
+            mError = exception;
+        } finally {
+            synchronized (mQueueSync) {
+                fStopping = true;
+                mQueue.clear();
+                mDraining = 0;
+            }
+
+            try {
+                if (null != mChannel) {
+                    mChannel.close();
+                }
+            } catch (IOException exception) {
+                Log.w("bgx_dbg", "BGXCaptureSink: error closing the file: " + exception.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Moves length bytes from the front of source into buffer, which must have room for them.
+     */
+    private static void read(ByteRingBuffer source, ByteBuffer buffer, int length) {
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + length);
+        source.read(buffer);
+        buffer.limit(limit);
+    }
+
+    /**
+     * Writes a record that does not fit in the write buffer through it in
+     * several pieces, all to the same file. The buffer must be empty.
+     *
+     * @param header The record header, or null if only the data is written.
+     */
+    private void writeLargeRecord(ByteRingBuffer source, ByteBuffer buffer, byte[] header, int length) throws IOException {
+        rotateFile((null == header ? 0 : header.length) + length);
+
+        if (null != header) {
+            buffer.put(header);
+        }
+
+        while (length > 0) {
+            int n = Math.min(length, buffer.remaining());
+            read(source, buffer, n);
+            length -= n;
+
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Writes the contents of the buffer, which is in write mode, and clears it.
+     */
+    private void writeBuffer(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        rotateFile(buffer.remaining());
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Starts a new file if the current one would grow too large or is too old.
+     *
+     * @param size The number of bytes about to be written.
+     */
+    private void rotateFile(long size) throws IOException {
+        long now = SystemClock.elapsedRealtime();
+        if ((mMaxFileSize > 0 && mFileSize > 0 && mFileSize + size > mMaxFileSize)
+                || (mMaxFileAge > 0 && now - mFileOpenedAt >= mMaxFileAge)) {
+            mChannel.close();
+            openNextFile();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mFileSize += mChannel.write(buffer);
+        }
+    }
+
+    private void openNextFile() throws IOException {
+        String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        File file = new File(mDirectory, mBaseName + "-" + timestamp + "-" + mFileIndex + ".bin");
+        ++mFileIndex;
+
+        mChannel = new FileOutputStream(file).getChannel();
+        mFileSize = 0;
+        mFileOpenedAt = SystemClock.elapsedRealtime();
+    }
+}
@@ -0,0 +1,864 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silabs.bgxpress;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An in-process handle to a BGX that the BGXpressService is connected to.
+ *
+ * <p>Data written through a BGXConnection is placed directly in the device's
+ * TX buffer. It does not go through an Intent or JobIntentService work item,
+ * so it is the fastest way to send small frames. Received data is delivered
+ * to the registered DataListeners as it arrives. Each write returns a
+ * {@link BGXWriteFuture} that reports when the data was acknowledged.
+ *
+ * <p>Received data can also be pulled through {@link #getInputStream} or
+ * {@link #getReadableChannel}. These read from a bounded RX buffer that the
+ * connection keeps once either of them (or {@link #setRxBuffer}) has been called.
+ * What happens when the buffer is full is set by the {@link RxOverflowPolicy}.
+ *
+ * <p>Use {@link BGXpressService#getConnection} to obtain a BGXConnection once
+ * the device is connected. The connection itself is still managed with
+ * startActionBGXConnect() and startActionBGXDisconnect(). Closing a
+ * BGXConnection releases the handle but does not disconnect the BGX.
+ */
+public class BGXConnection implements Closeable {
+
+    /**
+     * Receives serial data from the BGX.
+     */
+    public interface DataListener {
+        /**
+         * Called each time data is received, or once per coalescing window
+         * (see {@link BGXpressService#setBGXReceiveCoalescing}).
+         * Implementations should return quickly.
+         *
+         * @param connection The connection that received the data.
+         * @param data       The bytes that were received.
+         */
+        void onDataReceived(BGXConnection connection, byte[] data);
+    }
+
+    /**
+     * Receives serial data from the BGX decoded as text. See {@link #setTextListener}.
+     */
+    public interface TextListener {
+        /**
+         * Called with the text decoded from each delivery of received data.
+         * A character split between notifications is passed once all of its
+         * bytes have arrived.
+         *
+         * @param connection The connection that received the data.
+         * @param text       The decoded text. The buffer is reused, so the text must
+         *                   be used or copied before returning. It may be empty.
+         */
+        void onTextReceived(BGXConnection connection, CharSequence text);
+    }
+
+    /**
+     * What to do when data arrives and the RX buffer is full.
+     */
+    public enum RxOverflowPolicy {
+        /**
+         * Withhold FastAck credits for buffered data so the BGX stops sending
+         * until the data has been read. Without FastAck there is no way to
+         * stop the BGX, so an overflow is handled as FAIL.
+         */
+        BLOCK_PEER,
+        /**
+         * Discard the oldest buffered data to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Discard the new data. The next read throws an IOException.
+         */
+        FAIL
+    }
+
+    /**
+     * Default size of the RX buffer. It is larger than the credit window the
+     * BGXpressService grants with FastAck, so BLOCK_PEER does not overflow.
+     */
+    private static final int kRxBufferDefaultCapacity = 64 * 1024;
+    private static final int kRxBufferInitialSize = 4096;
+
+    private final String mDeviceAddress;
+    private final BGXpressService.DeviceProperties mDeviceProperties;
+    private final CopyOnWriteArrayList<DataListener> mDataListeners;
+    private volatile boolean fClosed;
+
+    /**
+     * RX buffering. mRxBuffer is null until buffering is enabled. mRxBytesHeld is the
+     * number of buffered bytes whose FastAck credits are withheld; mRxBytesDetached
+     * counts buffered bytes from before the last disconnect, whose credits are
+     * no longer owed to anyone. All guarded by mRxSync.
+     */
+    private final Object mRxSync;
+    private ByteRingBuffer mRxBuffer;
+    private RxOverflowPolicy mRxOverflowPolicy;
+    private boolean fRxOverflowed;
+    private int mRxReadersWaiting;
+    private int mRxBytesDetached;
+    private volatile int mRxBytesHeld;
+
+    /**
+     * Manual credit return. While fManualRxCredits is set, mRxBytesUnacknowledged
+     * counts received bytes that the app has not yet passed to acknowledgeRxData().
+     * Guarded by mRxSync.
+     */
+    private boolean fManualRxCredits;
+    private int mRxBytesUnacknowledged;
+
+    private volatile BGXFrameDecoder mFrameDecoder;
+    private volatile BGXPatternMatcher.Scanner mPatternScanner;
+    private volatile BGXCaptureSink mCaptureSink;
+    private volatile long mRxTimestamp;
+
+    /**
+     * Text delivery. Guarded by mTextSync.
+     */
+    private final Object mTextSync;
+    private TextListener mTextListener;
+    private BGXTextDecoder mTextDecoder;
+
+    BGXConnection(String deviceAddress, BGXpressService.DeviceProperties deviceProperties) {
+        this.mDeviceAddress = deviceAddress;
+        this.mDeviceProperties = deviceProperties;
+        this.mDataListeners = new CopyOnWriteArrayList<>();
+        this.fClosed = false;
+        this.mRxSync = new Object();
+        this.mRxBuffer = null;
+        this.mRxOverflowPolicy = RxOverflowPolicy.BLOCK_PEER;
+        this.fRxOverflowed = false;
+        this.mRxReadersWaiting = 0;
+        this.mRxBytesDetached = 0;
+        this.fManualRxCredits = false;
+        this.mRxBytesUnacknowledged = 0;
+        this.mRxBytesHeld = 0;
+        this.mFrameDecoder = null;
+        this.mPatternScanner = null;
+        this.mCaptureSink = null;
+        this.mRxTimestamp = 0;
+        this.mTextSync = new Object();
+        this.mTextListener = null;
+        this.mTextDecoder = null;
+    }
+
+    /**
+     * @return The bluetooth address of the BGX.
+     */
+    public String getDeviceAddress() {
+        return mDeviceAddress;
+    }
+
+    /**
+     * @return true until close() is called.
+     */
+    public boolean isOpen() {
+        return !fClosed;
+    }
+
+    /**
+     * Queues bytes to be written to the BGX.
+     *
+     * @param data The bytes to write.
+     * @return A future that completes when the BGX has acknowledged the data.
+     * @throws IOException if the connection is closed, the BGX is not connected
+     *                     or there is not enough room in the TX buffer.
+     */
+    public BGXWriteFuture write(byte[] data) throws IOException {
+        return write(data, 0, data.length);
+    }
+
+    /**
+     * Queues bytes to be written to the BGX.
+     *
+     * @param data   An array containing the bytes to write.
+     * @param offset The index of the first byte to write.
+     * @param length The number of bytes to write.
+     * @return A future that completes when the BGX has acknowledged the data.
+     * @throws IOException if the connection is closed, the BGX is not connected
+     *                     or there is not enough room in the TX buffer.
+     */
+    public BGXWriteFuture write(byte[] data, int offset, int length) throws IOException {
+        checkWritable();
+
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        BGXWriteFuture future = new BGXWriteFuture(length);
+        if (!mDeviceProperties.enqueueTxData(data, offset, length, future)) {
+            throw new IOException("TX buffer full.");
+        }
+        captureTx(data, offset, length);
+        return future;
+    }
+
+    /**
+     * Queues the remaining bytes of a ByteBuffer to be written to the BGX.
+     * On success the position of the buffer is advanced to its limit.
+     *
+     * @param data The bytes to write.
+     * @return A future that completes when the BGX has acknowledged the data.
+     * @throws IOException if the connection is closed, the BGX is not connected
+     *                     or there is not enough room in the TX buffer.
+     */
+    public BGXWriteFuture write(ByteBuffer data) throws IOException {
+        checkWritable();
+
+        ByteBuffer captured = data.duplicate();
+        BGXWriteFuture future = new BGXWriteFuture(data.remaining());
+        if (!mDeviceProperties.enqueueTxData(data, future)) {
+            throw new IOException("TX buffer full.");
+        }
+        captureTx(captured);
+        return future;
+    }
+
+    /**
+     * Sends all of the data written so far without waiting for it to be
+     * coalesced with later writes (see {@link BGXpressService#setBGXWriteCoalescing}).
+     * This does not wait for the data to be sent.
+     *
+     * @throws IOException if the connection is closed or the BGX is not connected.
+     */
+    public void flush() throws IOException {
+        checkWritable();
+        mDeviceProperties.flushTx();
+    }
+
+    /**
+     * Gets an OutputStream that writes to the BGX. Writes block while the
+     * TX backlog is at or above the high-water mark
+     * (see {@link BGXpressService#setBGXWriteHighWaterMark}), so a producer
+     * runs at link speed without unbounded buffering. Do not use it on the
+     * BGXpressService handler thread. flush() sends any data held back by
+     * write coalescing.
+     *
+     * @return A new OutputStream. Closing it does not close the connection.
+     */
+    public OutputStream getOutputStream() {
+        return new BGXOutputStream(this);
+    }
+
+    /**
+     * Gets a WritableByteChannel that writes to the BGX.
+     *
+     * <p>A blocking channel writes all of the remaining bytes, waiting while the
+     * TX backlog is at or above the high-water mark. A non-blocking channel writes
+     * only as many bytes as fit below the high-water mark, which may be zero.
+     *
+     * @param blocking Whether writes wait for room in the TX buffer.
+     * @return A new WritableByteChannel. Closing it does not close the connection.
+     */
+    public WritableByteChannel getWritableChannel(boolean blocking) {
+        return new BGXWritableChannel(this, blocking);
+    }
+
+    /**
+     * Sends part or all of a file without loading it into memory. See {@link BGXFileTransfer}.
+     *
+     * @param file     The file to send.
+     * @param offset   The position in the file of the first byte to send.
+     * @param length   The number of bytes to send, or -1 to send the rest of the file.
+     * @param listener Receives progress and the result. May be null.
+     * @return The transfer, which can be used to cancel it.
+     * @throws IOException if the connection is closed, the BGX is not connected or the file cannot be opened.
+     */
+    public BGXFileTransfer sendFile(File file, long offset, long length, BGXFileTransfer.Listener listener) throws IOException {
+        return sendFile(file, offset, length, listener, false);
+    }
+
+    /**
+     * Sends part or all of the content behind a Uri without loading it into memory.
+     * The Uri must be openable as a file descriptor. See {@link BGXFileTransfer}.
+     *
+     * @param context  Used to open the Uri.
+     * @param uri      The content to send.
+     * @param offset   The position of the first byte to send.
+     * @param length   The number of bytes to send, or -1 to send the rest of the content.
+     * @param listener Receives progress and the result. May be null.
+     * @return The transfer, which can be used to cancel it.
+     * @throws IOException if the connection is closed, the BGX is not connected or the Uri cannot be opened.
+     */
+    public BGXFileTransfer sendFile(Context context, Uri uri, long offset, long length, BGXFileTransfer.Listener listener) throws IOException {
+        checkWritable();
+
+        ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+        if (null == pfd) {
+            throw new FileNotFoundException("Unable to open " + uri);
+        }
+
+        FileInputStream stream = new FileInputStream(pfd.getFileDescriptor());
+        BGXFileTransfer transfer = new BGXFileTransfer(this, stream.getChannel(), pfd, offset, length, listener, false);
+        transfer.start();
+        return transfer;
+    }
+
+    BGXFileTransfer sendFile(File file, long offset, long length, BGXFileTransfer.Listener listener, boolean closeConnection) throws IOException {
+        checkWritable();
+
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative.");
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        BGXFileTransfer transfer = new BGXFileTransfer(this, raf.getChannel(), raf, offset, length, listener, closeConnection);
+        transfer.start();
+        return transfer;
+    }
+
+    /**
+     * Enables the RX buffer, or changes its size and overflow policy.
+     *
+     * @param capacity The most bytes the buffer holds.
+     * @param policy   What to do when data arrives and the buffer is full.
+     * @throws IllegalArgumentException if capacity is smaller than the data already buffered.
+     */
+    public void setRxBuffer(int capacity, RxOverflowPolicy policy) {
+        synchronized (mRxSync) {
+            if (null == mRxBuffer) {
+                mRxBuffer = new ByteRingBuffer(Math.min(kRxBufferInitialSize, capacity), capacity);
+            } else if (!mRxBuffer.setCapacity(capacity)) {
+                throw new IllegalArgumentException("capacity is smaller than the data buffered.");
+            }
+            mRxOverflowPolicy = policy;
+            updateRxBytesHeld();
+        }
+
+        mDeviceProperties.releaseRxCredits();
+    }
+
+    /**
+     * Gets a blocking InputStream that reads received data. Enables the RX buffer
+     * with a 64 KiB capacity and the BLOCK_PEER policy if it is not enabled yet;
+     * data received before that is not available. read() returns -1 once the
+     * BGX has disconnected and the buffer is empty.
+     *
+     * @return A new InputStream. Closing it does not close the connection.
+     */
+    public InputStream getInputStream() {
+        enableRxBuffer();
+        return new BGXInputStream(this);
+    }
+
+    /**
+     * Gets a non-blocking ReadableByteChannel that reads received data. A read
+     * returns 0 if no data is buffered. The RX buffer is enabled as for
+     * {@link #getInputStream}.
+     *
+     * @return A new ReadableByteChannel. Closing it does not close the connection.
+     */
+    public ReadableByteChannel getReadableChannel() {
+        enableRxBuffer();
+        return new BGXReadableChannel(this);
+    }
+
+    /**
+     * @return The number of received bytes that can be read without blocking.
+     */
+    public int available() {
+        synchronized (mRxSync) {
+            return (null == mRxBuffer) ? 0 : mRxBuffer.size();
+        }
+    }
+
+    /**
+     * Attaches a frame decoder to the received data. The decoder runs as each
+     * notification arrives, independently of the RX buffer and DataListeners.
+     * A decoder instance can be attached to only one connection.
+     *
+     * @param decoder  The decoder, or null to remove the current one.
+     * @param listener Receives the decoded frames.
+     */
+    public void setFrameDecoder(BGXFrameDecoder decoder, BGXFrameDecoder.FrameListener listener) {
+        BGXFrameDecoder previous = mFrameDecoder;
+        if (null != previous && previous != decoder) {
+            previous.detach();
+        }
+
+        if (null != decoder) {
+            decoder.attach(this, listener);
+        }
+        mFrameDecoder = decoder;
+    }
+
+    /**
+     * Watches the received data for the patterns of a BGXPatternMatcher. The
+     * matcher runs as each notification arrives, independently of the RX buffer
+     * and DataListeners, and finds patterns that span notifications. Positions
+     * reported to the listener count from the moment the matcher is set.
+     *
+     * @param matcher  The matcher, or null to stop matching. It may be shared with other connections.
+     * @param listener Receives the matches.
+     */
+    public void setPatternMatcher(BGXPatternMatcher matcher, BGXPatternMatcher.MatchListener listener) {
+        mPatternScanner = (null == matcher) ? null : new BGXPatternMatcher.Scanner(matcher, listener);
+    }
+
+    /**
+     * Turns manual FastAck credit return on or off. While it is on, credits for
+     * received data are returned to the BGX only as the app calls
+     * {@link #acknowledgeRxData} for data it has finished with, typically data
+     * delivered to a DataListener. A slow consumer then throttles the BGX instead
+     * of falling behind. The service still returns credits in batches of at least
+     * 4 KiB, so the app should acknowledge data promptly rather than waiting for
+     * a full credit window to be outstanding.
+     *
+     * <p>If several connections to a BGX hold credits, each credit is returned
+     * once all of them have released it. Without FastAck this has no effect.
+     *
+     * @param manual true to return credits only when data is acknowledged.
+     */
+    public void setManualRxCredits(boolean manual) {
+        synchronized (mRxSync) {
+            fManualRxCredits = manual;
+            mRxBytesUnacknowledged = 0;
+            updateRxBytesHeld();
+        }
+
+        mDeviceProperties.releaseRxCredits();
+    }
+
+    /**
+     * Releases the FastAck credits for received data that the app has consumed.
+     * Only used with {@link #setManualRxCredits}.
+     *
+     * @param length The number of received bytes consumed since the last call.
+     */
+    public void acknowledgeRxData(int length) {
+        synchronized (mRxSync) {
+            if (!fManualRxCredits || length <= 0) {
+                return;
+            }
+            mRxBytesUnacknowledged -= Math.min(length, mRxBytesUnacknowledged);
+            updateRxBytesHeld();
+        }
+
+        mDeviceProperties.releaseRxCredits();
+    }
+
+    /**
+     * Starts capturing the data of this connection to disk. See {@link BGXCaptureSink}.
+     * Any capture already running is stopped first.
+     *
+     * @param sink A configured sink that has not been started.
+     * @throws IOException if the first capture file cannot be created.
+     */
+    public void startCapture(BGXCaptureSink sink) throws IOException {
+        stopCapture();
+        sink.start();
+        mCaptureSink = sink;
+    }
+
+    /**
+     * Stops the capture, if any, after the queued data has been written.
+     */
+    public void stopCapture() {
+        BGXCaptureSink sink = mCaptureSink;
+        mCaptureSink = null;
+        if (null != sink) {
+            sink.close();
+        }
+    }
+
+    public void addDataListener(DataListener listener) {
+        mDataListeners.addIfAbsent(listener);
+    }
+
+    public void removeDataListener(DataListener listener) {
+        mDataListeners.remove(listener);
+    }
+
+    /**
+     * @return The SystemClock.elapsedRealtimeNanos() at which the data being delivered
+     * to the DataListeners (or most recently delivered) reached the service. For
+     * coalesced data it is the time of the first notification.
+     */
+    public long getRxTimestamp() {
+        return mRxTimestamp;
+    }
+
+    /**
+     * @return A snapshot of the timing of the notifications received during the
+     * current connection to the BGX.
+     */
+    public BGXRxStatistics getRxStatistics() {
+        return mDeviceProperties.getRxStatistics();
+    }
+
+    /**
+     * Sets the listener that receives the data decoded as text. The decoder
+     * keeps the bytes of a character split between notifications until the
+     * rest of it arrives and reuses its buffers, so it is cheaper and more
+     * correct than decoding each byte[] passed to a DataListener.
+     *
+     * @param charset  The charset of the data, e.g. StandardCharsets.UTF_8.
+     * @param listener The listener, or null to stop decoding.
+     */
+    public void setTextListener(Charset charset, TextListener listener) {
+        synchronized (mTextSync) {
+            if (null == listener) {
+                mTextDecoder = null;
+            } else if (null == mTextDecoder || !mTextDecoder.charset().equals(charset)) {
+                mTextDecoder = new BGXTextDecoder(charset);
+            }
+            mTextListener = listener;
+        }
+    }
+
+    /**
+     * Releases this handle. Listeners are removed and further writes fail.
+     * The BGX stays connected.
+     */
+    @Override
+    public void close() {
+        if (!fClosed) {
+            fClosed = true;
+            mDataListeners.clear();
+            setTextListener(null, null);
+            setFrameDecoder(null, null);
+            setPatternMatcher(null, null);
+            stopCapture();
+            synchronized (mRxSync) {
+                mRxBytesHeld = 0;
+                mRxSync.notifyAll();
+            }
+            mDeviceProperties.removeConnection(this);
+            mDeviceProperties.wakeTxWriters();
+        }
+    }
+
+    /**
+     * Used by the OutputStream and WritableByteChannel.
+     *
+     * @return The number of bytes queued.
+     */
+    int writeTxData(byte[] data, int offset, int length, boolean block) throws IOException {
+        checkWritable();
+        int n = mDeviceProperties.writeTxData(this, data, offset, length, block);
+        captureTx(data, offset, n);
+        return n;
+    }
+
+    int writeTxData(ByteBuffer data, boolean block) throws IOException {
+        checkWritable();
+        ByteBuffer captured = data.duplicate();
+        int n = mDeviceProperties.writeTxData(this, data, block);
+        captured.limit(captured.position() + n);
+        captureTx(captured);
+        return n;
+    }
+
+    /**
+     * Used by BGXFileTransfer.
+     */
+    int waitForTxRoom(int minRoom) throws IOException {
+        checkWritable();
+        return mDeviceProperties.waitForTxRoom(this, minRoom);
+    }
+
+    /**
+     * Used by BGXFileTransfer.
+     *
+     * @return A future for the block, or null if there is not enough room in the TX buffer.
+     */
+    BGXWriteFuture writeBlock(ByteBuffer block) throws IOException {
+        checkWritable();
+
+        ByteBuffer captured = block.duplicate();
+        BGXWriteFuture future = new BGXWriteFuture(block.remaining());
+        if (!mDeviceProperties.enqueueTxData(block, future)) {
+            return null;
+        }
+        captureTx(captured);
+        return future;
+    }
+
+    /**
+     * Used by the InputStream.
+     *
+     * @return The number of bytes read, 0 only if block is false, or -1 at the end of the stream.
+     */
+    int readRxData(byte[] data, int offset, int length, boolean block) throws IOException {
+        int n;
+        boolean fHolding;
+
+        synchronized (mRxSync) {
+            if (!awaitRxData(block)) {
+                return fClosed || !mDeviceProperties.isGattConnected() ? -1 : 0;
+            }
+
+            n = mRxBuffer.read(data, offset, length);
+            fHolding = onRxDataRead(n);
+        }
+
+        if (fHolding) {
+            mDeviceProperties.releaseRxCredits();
+        }
+        return n;
+    }
+
+    /**
+     * Used by the ReadableByteChannel.
+     */
+    int readRxData(ByteBuffer data) throws IOException {
+        int n;
+        boolean fHolding;
+
+        synchronized (mRxSync) {
+            if (!awaitRxData(false)) {
+                return fClosed || !mDeviceProperties.isGattConnected() ? -1 : 0;
+            }
+
+            n = mRxBuffer.read(data);
+            fHolding = onRxDataRead(n);
+        }
+
+        if (fHolding) {
+            mDeviceProperties.releaseRxCredits();
+        }
+        return n;
+    }
+
+    /**
+     * Must be called while holding mRxSync.
+     *
+     * @return true if data is buffered. false if block is false and the buffer
+     * is empty, or at the end of the stream.
+     */
+    private boolean awaitRxData(boolean block) throws IOException {
+        while (true) {
+            if (fRxOverflowed) {
+                fRxOverflowed = false;
+                throw new IOException("RX buffer overflowed. Data was lost.");
+            }
+
+            if (!mRxBuffer.isEmpty()) {
+                return true;
+            }
+
+            if (fClosed || !mDeviceProperties.isGattConnected() || !block) {
+                return false;
+            }
+
+            ++mRxReadersWaiting;
+            try {
+                mRxSync.wait();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for data.");
+            } finally {
+                --mRxReadersWaiting;
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding mRxSync.
+     *
+     * @return true if credits may now be returned to the BGX.
+     */
+    private boolean onRxDataRead(int n) {
+        mRxBytesDetached = Math.max(0, mRxBytesDetached - n);
+        updateRxBytesHeld();
+        return RxOverflowPolicy.BLOCK_PEER == mRxOverflowPolicy;
+    }
+
+    /**
+     * Must be called while holding mRxSync.
+     */
+    private void updateRxBytesHeld() {
+        int held = 0;
+        if (null != mRxBuffer && RxOverflowPolicy.BLOCK_PEER == mRxOverflowPolicy) {
+            held = mRxBuffer.size() - mRxBytesDetached;
+        }
+        if (fManualRxCredits) {
+            held = Math.max(held, mRxBytesUnacknowledged);
+        }
+        mRxBytesHeld = fClosed ? 0 : held;
+    }
+
+    private void enableRxBuffer() {
+        synchronized (mRxSync) {
+            if (null == mRxBuffer) {
+                mRxBuffer = new ByteRingBuffer(kRxBufferInitialSize, kRxBufferDefaultCapacity);
+                updateRxBytesHeld();
+            }
+        }
+    }
+
+    /**
+     * @return The number of buffered bytes whose FastAck credits must not be returned yet.
+     */
+    int getRxBytesHeld() {
+        return mRxBytesHeld;
+    }
+
+    /**
+     * Called by the BGXpressService as soon as data is received, before the
+     * service decides which FastAck credits it can return.
+     */
+    void bufferData(byte[] data) {
+        synchronized (mRxSync) {
+            if (fManualRxCredits) {
+                mRxBytesUnacknowledged += data.length;
+                updateRxBytesHeld();
+            }
+
+            if (null != mRxBuffer) {
+                bufferRxData(data);
+            }
+        }
+
+        BGXCaptureSink sink = mCaptureSink;
+        if (null != sink) {
+            sink.captureRx(data, 0, data.length);
+        }
+
+        BGXFrameDecoder decoder = mFrameDecoder;
+        if (null != decoder) {
+            decoder.decode(data, 0, data.length);
+        }
+
+        BGXPatternMatcher.Scanner scanner = mPatternScanner;
+        if (null != scanner) {
+            scanner.scan(this, data, 0, data.length);
+        }
+    }
+
+    private void captureTx(byte[] data, int offset, int length) {
+        BGXCaptureSink sink = mCaptureSink;
+        if (null != sink && length > 0) {
+            sink.captureTx(data, offset, length);
+        }
+    }
+
+    private void captureTx(ByteBuffer data) {
+        BGXCaptureSink sink = mCaptureSink;
+        if (null != sink && data.hasRemaining()) {
+            sink.captureTx(data);
+        }
+    }
+
+    /**
+     * Called by the BGXpressService to deliver received data to the listeners.
+     * When RX coalescing is enabled data may contain several notifications.
+     */
+    void dispatchData(byte[] data, long timestamp) {
+        mRxTimestamp = timestamp;
+
+        for (DataListener listener : mDataListeners) {
+            listener.onDataReceived(this, data);
+        }
+
+        synchronized (mTextSync) {
+            if (null != mTextListener) {
+                mTextListener.onTextReceived(this, mTextDecoder.decode(data, 0, data.length));
+            }
+        }
+    }
+
+    /**
+     * Must be called while holding mRxSync.
+     */
+    private void bufferRxData(byte[] data) {
+        if (!mRxBuffer.append(data, 0, data.length)) {
+            if (RxOverflowPolicy.DROP_OLDEST == mRxOverflowPolicy) {
+                int capacity = mRxBuffer.capacity();
+                int dropped;
+                if (data.length >= capacity) {
+                    dropped = mRxBuffer.size();
+                    mRxBuffer.clear();
+                    mRxBuffer.append(data, data.length - capacity, capacity);
+                } else {
+                    dropped = mRxBuffer.skip(data.length - mRxBuffer.remaining());
+                    mRxBuffer.append(data, 0, data.length);
+                }
+                mRxBytesDetached = Math.max(0, mRxBytesDetached - dropped);
+            } else {
+                Log.e("bgx_dbg", "BGXConnection RX buffer full. Dropped " + data.length + " bytes.");
+                fRxOverflowed = true;
+            }
+        }
+
+        updateRxBytesHeld();
+
+        if (mRxReadersWaiting > 0) {
+            mRxSync.notifyAll();
+        }
+    }
+
+    /**
+     * Called by the BGXpressService when the BGX disconnects. Buffered data stays
+     * readable but no longer holds credits, and blocked readers see the end of the stream.
+     * A partly decoded frame is discarded.
+     */
+    void onDisconnected() {
+        BGXFrameDecoder decoder = mFrameDecoder;
+        if (null != decoder) {
+            decoder.reset();
+        }
+
+        BGXPatternMatcher.Scanner scanner = mPatternScanner;
+        if (null != scanner) {
+            scanner.reset();
+        }
+
+        synchronized (mTextSync) {
+            if (null != mTextDecoder) {
+                mTextDecoder.reset();
+            }
+        }
+
+        synchronized (mRxSync) {
+            if (null != mRxBuffer) {
+                mRxBytesDetached = mRxBuffer.size();
+            }
+            mRxBytesUnacknowledged = 0;
+            updateRxBytesHeld();
+            mRxSync.notifyAll();
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (fClosed) {
+            throw new IOException("BGXConnection is closed.");
+        }
+
+        if (!mDeviceProperties.isGattConnected()) {
+            throw new IOException("BGX " + mDeviceAddress + " is not connected.");
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.silabs.bgxpress;
+
+/**
+ * Receives events for a BGX in-process, without going through
+ * Context.sendBroadcast(). Register it with
+ * {@link BGXpressService#addBGXEventListener}.
+ *
+ * <p>Override the methods for the events of interest; the others do nothing.
+ * Each method is called on the Executor given at registration.
+ */
+public abstract class BGXEventListener {
+
+    /**
+     * Called when data is received. Corresponds to BGX_DATA_RECEIVED.
+     *
+     * @param deviceAddress The address of the BGX.
+     * @param data          The bytes that were received.
+     */
+    public void onData(String deviceAddress, byte[] data) {
+    }
+
+    /**
+     * Called when data is received. The default implementation calls {@link #onData(String, byte[])}.
+     *
+     * @param deviceAddress The address of the BGX.
+     * @param data          The bytes that were received.
+     * @param timestamp     SystemClock.elapsedRealtimeNanos() when the data (or the first
+     *                      notification of coalesced data) reached the service.
+     */
+    public void onData(String deviceAddress, byte[] data, long timestamp) {
+        onData(deviceAddress, data);
+    }
+
+    /**
+     * Called when the connection status changes. Corresponds to BGX_CONNECTION_STATUS_CHANGE.
+     *
+     * @param deviceAddress The address of the BGX.
+     * @param status        The new status.
+     */
+    public void onConnectionStatus(String deviceAddress, BGX_CONNECTION_STATUS status) {
+    }
+
+    /**
+     * Called when the MTU changes. Corresponds to BGX_MTU_CHANGE.
+     *
+     * @param deviceAddress The address of the BGX.
+     * @param mtu           The new MTU.
+     * @param status        The status of the MTU exchange.
+     */
+    public void onMtu(String deviceAddress, int mtu, int status) {
+    }
+
+    /**
+     * Called when the bus mode is read or changes. Corresponds to BGX_MODE_STATE_CHANGE.
+     *
+     * @param deviceAddress The address of the BGX.
+     * @param busMode       A value from BusMode.
+     */
+    public void onBusMode(String deviceAddress, int busMode) {
+    }
+
+    /**
+     * Called when a GATT operation times out. Corresponds to BGX_GATT_TIMEOUT.
+     *
+     * @param deviceAddress The address of the BGX.
+     * @param operation     The name of the operation.
+     * @param timeoutMs     The timeout that expired.
+     * @param retrying      Whether the operation will be tried again.
+     */
+    public void onGattTimeout(String deviceAddress, String operation, long timeoutMs, boolean retrying) {
+    }
+
+    /**
+     * Called when a GATT operation is abandoned because it could not be started. Corresponds to BGX_GATT_ERROR.
+     *
+     * @param deviceAddress The address of the BGX.
+     * @param operation     The name of the operation.
+     * @param attempts      The number of attempts made.
+     */
+    public void onGattError(String deviceAddress, String operation, int attempts) {
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silabs.bgxpress;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Sends part or all of a file to a BGX in constant memory.
+ *
+ * <p>The file is read through a FileChannel in blocks no larger than the free
+ * space in the device's TX buffer, so the transfer runs at link speed and never
+ * holds more than one block on the heap. Each block is tracked with a
+ * {@link BGXWriteFuture}; progress counts bytes that the BGX has acknowledged.
+ *
+ * <p>Use {@link BGXConnection#sendFile} or {@link BGXpressService#sendFile} to
+ * start a transfer. The transfer runs on its own thread and the Listener is
+ * called on that thread.
+ */
+public class BGXFileTransfer {
+
+    /**
+     * Receives the progress and result of a transfer.
+     */
+    public interface Listener {
+        /**
+         * Called as blocks of the file are acknowledged.
+         *
+         * @param transfer     The transfer.
+         * @param bytesSent    The number of bytes acknowledged so far.
+         * @param bytesTotal   The number of bytes to send, or -1 if it is not known.
+         */
+        void onProgress(BGXFileTransfer transfer, long bytesSent, long bytesTotal);
+
+        /**
+         * Called once when the transfer ends.
+         *
+         * @param transfer The transfer.
+         * @param error    null if all of the data was acknowledged, otherwise the reason the transfer stopped.
+         *                 If the transfer was cancelled this is an InterruptedIOException.
+         */
+        void onFinished(BGXFileTransfer transfer, IOException error);
+    }
+
+    /**
+     * Largest block read from the file at a time.
+     */
+    private static final int kBlockSize = 16 * 1024;
+
+    private final BGXConnection mConnection;
+    private final FileChannel mChannel;
+    private final Closeable mSource;
+    private final long mOffset;
+    private final long mLength;
+    private final Listener mListener;
+    private final boolean fCloseConnection;
+    private final Thread mThread;
+
+    private volatile long mBytesSent;
+    private volatile boolean fCancelled;
+    private volatile boolean fFinished;
+
+    /**
+     * @param source          Closed together with the channel when the transfer ends. May be null.
+     * @param length          The number of bytes to send or -1 to send until the end of the file.
+     * @param closeConnection Whether the transfer owns the connection and closes it when it ends.
+     */
+    BGXFileTransfer(BGXConnection connection, FileChannel channel, Closeable source, long offset, long length, Listener listener, boolean closeConnection) {
+        this.mConnection = connection;
+        this.mChannel = channel;
+        this.mSource = source;
+        this.mOffset = offset;
+        this.mLength = length;
+        this.mListener = listener;
+        this.fCloseConnection = closeConnection;
+        this.mBytesSent = 0;
+        this.fCancelled = false;
+        this.fFinished = false;
+        this.mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runTransfer();
+            }
+        }, "BGXFileTransfer");
+    }
+
+    void start() {
+        mThread.start();
+    }
+
+    /**
+     * @return The number of bytes the BGX has acknowledged so far.
+     */
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * @return The number of bytes to send, or -1 if the transfer runs to the end of a file of unknown size.
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    public boolean isCancelled() {
+        return fCancelled;
+    }
+
+    public boolean isFinished() {
+        return fFinished;
+    }
+
+    /**
+     * Stops reading the file. Data already placed in the TX buffer is still
+     * sent, because it may be interleaved with other writes to the BGX.
+     */
+    public void cancel() {
+        fCancelled = true;
+        mThread.interrupt();
+    }
+
+    private void runTransfer() {
+        IOException error = null;
+        ArrayDeque<BGXWriteFuture> pendingBlocks = new ArrayDeque<>();
+        ByteBuffer block = ByteBuffer.allocateDirect(kBlockSize);
+
+        try {
+            long position = mOffset;
+            long remaining = mLength;
+
+            while (0 != remaining) {
+                checkCancelled();
+
+                int room = mConnection.waitForTxRoom(kBlockSize);
+
+                block.clear();
+                int blockSize = Math.min(room, kBlockSize);
+                if (remaining > 0 && remaining < blockSize) {
+                    blockSize = (int) remaining;
+                }
+                block.limit(blockSize);
+
+                int n = mChannel.read(block, position);
+                if (n < 0) {
+                    if (mLength >= 0) {
+                        throw new IOException("Unexpected end of file at position " + position + ".");
+                    }
+                    break;
+                }
+                block.flip();
+
+                BGXWriteFuture future;
+                while (null == (future = mConnection.writeBlock(block))) {
+                    // another writer took the room.
+                    mConnection.waitForTxRoom(block.remaining());
+                    checkCancelled();
+                }
+                pendingBlocks.add(future);
+
+                position += n;
+                if (remaining > 0) {
+                    remaining -= n;
+                }
+
+                reportCompletedBlocks(pendingBlocks, false);
+            }
+
+            mConnection.flush();
+            reportCompletedBlocks(pendingBlocks, true);
+        } catch (IOException exception) {
+            error = exception;
+        } finally {
+            try {
+                mChannel.close();
+                if (null != mSource) {
+                    mSource.close();
+                }
+            } catch (IOException exception) {
+                Log.w("bgx_dbg", "BGXFileTransfer: error closing the file: " + exception.getMessage());
+            }
+
+            if (fCloseConnection) {
+                mConnection.close();
+            }
+        }
+
+        if (fCancelled && !(error instanceof InterruptedIOException)) {
+            // an interrupted FileChannel read reports ClosedByInterruptException.
+            error = new InterruptedIOException("Transfer cancelled.");
+        }
+
+        fFinished = true;
+        if (null != mListener) {
+            mListener.onFinished(this, error);
+        }
+    }
+
+    /**
+     * Removes acknowledged blocks from the front of pendingBlocks and reports progress.
+     *
+     * @param wait If true, waits for all of the blocks to be acknowledged.
+     */
+    private void reportCompletedBlocks(ArrayDeque<BGXWriteFuture> pendingBlocks, boolean wait) throws IOException {
+        long sent = mBytesSent;
+
+        while (!pendingBlocks.isEmpty() && (wait || pendingBlocks.peek().isDone())) {
+            BGXWriteFuture future = pendingBlocks.peek();
+            try {
+                future.get();
+            } catch (InterruptedException exception) {
+                fCancelled = true;
+                throw new InterruptedIOException("Transfer cancelled.");
+            } catch (ExecutionException exception) {
+                Throwable cause = exception.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(cause);
+            }
+
+            pendingBlocks.poll();
+            sent += future.getLength();
+            mBytesSent = sent;
+
+            if (null != mListener) {
+                mListener.onProgress(this, sent, mLength);
+            }
+        }
+    }
+
+    private void checkCancelled() throws InterruptedIOException {
+        if (fCancelled) {
+            throw new InterruptedIOException("Transfer cancelled.");
+        }
+    }
+}
@@ -0,0 +1,522 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.silabs.bgxpress;
+
+import java.io.IOException;
+
+/**
+ * Reassembles frames from the bytes received on a BGXConnection.
+ *
+ * <p>A decoder is attached with {@link BGXConnection#setFrameDecoder}. It runs on
+ * the thread that receives notifications, as each notification arrives, and
+ * delivers each whole frame to its FrameListener. Frames that lie entirely within
+ * one notification are delivered straight from the notification bytes where the
+ * encoding allows it. Other frames are assembled in a buffer that is reused for
+ * every frame, so decoding allocates nothing once the buffer has grown.
+ *
+ * <p>The decoders provided are {@link Delimiter}, {@link LengthField},
+ * {@link Slip} and {@link Cobs}. Other framings can be added by extending this
+ * class and implementing {@link #decode(byte[], int, int)}.
+ */
+public abstract class BGXFrameDecoder {
+
+    /**
+     * Receives decoded frames.
+     */
+    public interface FrameListener {
+        /**
+         * Called for each whole frame. The bytes are only valid during the call
+         * and must not be modified; copy them to keep them.
+         *
+         * @param connection The connection that received the frame.
+         * @param buffer     An array containing the frame.
+         * @param offset     The index of the first byte of the frame.
+         * @param length     The length of the frame.
+         */
+        void onFrame(BGXConnection connection, byte[] buffer, int offset, int length);
+
+        /**
+         * Called when malformed or oversized data is discarded.
+         *
+         * @param connection The connection that received the data.
+         * @param error      Describes the problem.
+         */
+        void onFrameError(BGXConnection connection, IOException error);
+    }
+
+    private static final int kFrameBufferInitialSize = 256;
+
+    private final int mMaxFrameLength;
+    private byte[] mFrame;
+    private int mFrameLength;
+    private BGXConnection mConnection;
+    private FrameListener mListener;
+
+    /**
+     * @param maxFrameLength The longest frame, in received bytes, that is assembled.
+     *                       Longer frames are discarded and reported as errors.
+     */
+    protected BGXFrameDecoder(int maxFrameLength) {
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("maxFrameLength must be positive.");
+        }
+
+        this.mMaxFrameLength = maxFrameLength;
+        this.mFrame = new byte[Math.min(kFrameBufferInitialSize, maxFrameLength)];
+        this.mFrameLength = 0;
+    }
+
+    /**
+     * Decodes received bytes, calling emitFrame() for each whole frame.
+     */
+    protected abstract void decode(byte[] data, int offset, int length);
+
+    /**
+     * Discards any partly assembled frame. Called when the BGX disconnects.
+     */
+    public void reset() {
+        mFrameLength = 0;
+    }
+
+    protected final int getMaxFrameLength() {
+        return mMaxFrameLength;
+    }
+
+    /**
+     * @return The buffer holding the partly assembled frame.
+     */
+    protected final byte[] frameBuffer() {
+        return mFrame;
+    }
+
+    /**
+     * @return The number of bytes in the partly assembled frame.
+     */
+    protected final int frameLength() {
+        return mFrameLength;
+    }
+
+    protected final void setFrameLength(int length) {
+        mFrameLength = length;
+    }
+
+    /**
+     * Adds bytes to the partly assembled frame. If the frame would become longer
+     * than the maximum it is discarded and an error is reported.
+     *
+     * @return false if the frame was discarded.
+     */
+    protected final boolean appendToFrame(byte[] data, int offset, int length) {
+        if (mFrameLength + length > mMaxFrameLength) {
+            reportError("Frame longer than " + mMaxFrameLength + " bytes discarded.");
+            mFrameLength = 0;
+            return false;
+        }
+
+        if (mFrameLength + length > mFrame.length) {
+            int newSize = mFrame.length;
+            while (newSize < mFrameLength + length) {
+                newSize = Math.min(mMaxFrameLength, 2 * newSize);
+            }
+            byte[] newFrame = new byte[newSize];
+            System.arraycopy(mFrame, 0, newFrame, 0, mFrameLength);
+            mFrame = newFrame;
+        }
+
+        System.arraycopy(data, offset, mFrame, mFrameLength, length);
+        mFrameLength += length;
+        return true;
+    }
+
+    /**
+     * Delivers the partly assembled frame, or the first length bytes of it, and
+     * starts a new one.
+     */
+    protected final void emitAssembledFrame(int length) {
+        mFrameLength = 0;
+        emitFrame(mFrame, 0, length);
+    }
+
+    /**
+     * Delivers a frame.
+     */
+    protected final void emitFrame(byte[] buffer, int offset, int length) {
+        FrameListener listener = mListener;
+        if (null != listener) {
+            listener.onFrame(mConnection, buffer, offset, length);
+        }
+    }
+
+    protected final void reportError(String message) {
+        FrameListener listener = mListener;
+        if (null != listener) {
+            listener.onFrameError(mConnection, new IOException(message));
+        }
+    }
+
+    /**
+     * Called by BGXConnection.setFrameDecoder().
+     */
+    final synchronized void attach(BGXConnection connection, FrameListener listener) {
+        if (null != mConnection && connection != mConnection) {
+            throw new IllegalStateException("The decoder is attached to another BGXConnection.");
+        }
+
+        mConnection = connection;
+        mListener = listener;
+        reset();
+    }
+
+    final synchronized void detach() {
+        mConnection = null;
+        mListener = null;
+    }
+
+    /**
+     * Splits the stream at a delimiter byte, such as '\n'.
+     */
+    public static final class Delimiter extends BGXFrameDecoder {
+
+        private final byte mDelimiter;
+        private final boolean fStripDelimiter;
+        private boolean fDiscarding;
+
+        /**
+         * @param delimiter      The byte that ends each frame.
+         * @param stripDelimiter true to leave the delimiter out of the frames.
+         * @param maxFrameLength The longest frame, including the delimiter.
+         */
+        public Delimiter(byte delimiter, boolean stripDelimiter, int maxFrameLength) {
+            super(maxFrameLength);
+            this.mDelimiter = delimiter;
+            this.fStripDelimiter = stripDelimiter;
+            this.fDiscarding = false;
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            fDiscarding = false;
+        }
+
+        @Override
+        protected void decode(byte[] data, int offset, int length) {
+            int end = offset + length;
+            int start = offset;
+
+            for (int i = offset; i < end; ++i) {
+                if (mDelimiter != data[i]) {
+                    continue;
+                }
+
+                int segmentEnd = fStripDelimiter ? i : i + 1;
+                if (fDiscarding) {
+                    // the rest of an oversized frame.
+                    fDiscarding = false;
+                } else if (0 == frameLength() && i + 1 - start <= getMaxFrameLength()) {
+                    emitFrame(data, start, segmentEnd - start);
+                } else if (appendToFrame(data, start, i + 1 - start)) {
+                    emitAssembledFrame(frameLength() - (fStripDelimiter ? 1 : 0));
+                }
+                start = i + 1;
+            }
+
+            if (start < end && !fDiscarding && !appendToFrame(data, start, end - start)) {
+                fDiscarding = true;
+            }
+        }
+    }
+
+    /**
+     * Splits the stream using a length field in a fixed position of each frame's header.
+     * The whole frame, header included, is delivered.
+     *
+     * <p>The frame length is lengthFieldOffset + lengthFieldSize + the value of the
+     * length field + lengthAdjustment. For example, a one-byte type followed by a
+     * two-byte little-endian payload length has lengthFieldOffset 1, lengthFieldSize 2
+     * and lengthAdjustment 0. If the length field counts the whole frame,
+     * lengthAdjustment is -(lengthFieldOffset + lengthFieldSize).
+     */
+    public static final class LengthField extends BGXFrameDecoder {
+
+        private final int mLengthFieldOffset;
+        private final int mLengthFieldSize;
+        private final boolean fBigEndian;
+        private final int mLengthAdjustment;
+        private final int mHeaderLength;
+
+        /**
+         * @param lengthFieldOffset The position of the length field in the header.
+         * @param lengthFieldSize   The size of the length field: 1, 2, 3 or 4 bytes.
+         * @param bigEndian         The byte order of the length field.
+         * @param lengthAdjustment  Added to the length field value (see the class description).
+         * @param maxFrameLength    The longest frame.
+         */
+        public LengthField(int lengthFieldOffset, int lengthFieldSize, boolean bigEndian, int lengthAdjustment, int maxFrameLength) {
+            super(maxFrameLength);
+
+            if (lengthFieldOffset < 0 || lengthFieldSize < 1 || lengthFieldSize > 4) {
+                throw new IllegalArgumentException("Invalid length field.");
+            }
+
+            this.mLengthFieldOffset = lengthFieldOffset;
+            this.mLengthFieldSize = lengthFieldSize;
+            this.fBigEndian = bigEndian;
+            this.mLengthAdjustment = lengthAdjustment;
+            this.mHeaderLength = lengthFieldOffset + lengthFieldSize;
+        }
+
+        @Override
+        protected void decode(byte[] data, int offset, int length) {
+            int end = offset + length;
+
+            while (offset < end) {
+                if (0 == frameLength()) {
+                    // whole frames in the notification are delivered in place.
+                    if (end - offset >= mHeaderLength) {
+                        long frameLength = frameLengthAt(data, offset);
+                        if (!checkFrameLength(frameLength)) {
+                            return;
+                        }
+                        if (end - offset >= frameLength) {
+                            emitFrame(data, offset, (int) frameLength);
+                            offset += (int) frameLength;
+                            continue;
+                        }
+                    }
+
+                    appendToFrame(data, offset, end - offset);
+                    return;
+                }
+
+                int needed;
+                if (frameLength() < mHeaderLength) {
+                    needed = mHeaderLength - frameLength();
+                } else {
+                    needed = (int) frameLengthAt(frameBuffer(), 0) - frameLength();
+                }
+
+                int n = Math.min(needed, end - offset);
+                appendToFrame(data, offset, n);
+                offset += n;
+
+                if (frameLength() == mHeaderLength) {
+                    long frameLength = frameLengthAt(frameBuffer(), 0);
+                    if (!checkFrameLength(frameLength)) {
+                        setFrameLength(0);
+                        return;
+                    }
+                }
+
+                if (frameLength() >= mHeaderLength && frameLength() == frameLengthAt(frameBuffer(), 0)) {
+                    emitAssembledFrame(frameLength());
+                }
+            }
+        }
+
+        /**
+         * The stream cannot be resynchronized after a bad length, so the rest of
+         * the notification is discarded.
+         */
+        private boolean checkFrameLength(long frameLength) {
+            if (frameLength < mHeaderLength || frameLength > getMaxFrameLength()) {
+                reportError("Invalid frame length " + frameLength + ".");
+                return false;
+            }
+            return true;
+        }
+
+        private long frameLengthAt(byte[] buffer, int offset) {
+            long value = 0;
+            int field = offset + mLengthFieldOffset;
+
+            for (int i = 0; i < mLengthFieldSize; ++i) {
+                int b = buffer[field + (fBigEndian ? i : mLengthFieldSize - 1 - i)] & 0xFF;
+                value = (value << 8) | b;
+            }
+
+            return mHeaderLength + value + mLengthAdjustment;
+        }
+    }
+
+    /**
+     * Decodes SLIP (RFC 1055) framing. Empty frames are ignored.
+     */
+    public static final class Slip extends BGXFrameDecoder {
+
+        private static final byte END = (byte) 0xC0;
+        private static final byte ESC = (byte) 0xDB;
+        private static final byte ESC_END = (byte) 0xDC;
+        private static final byte ESC_ESC = (byte) 0xDD;
+
+        private final byte[] mByte;
+        private boolean fEscape;
+        private boolean fDiscarding;
+
+        /**
+         * @param maxFrameLength The longest decoded frame.
+         */
+        public Slip(int maxFrameLength) {
+            super(maxFrameLength);
+            this.mByte = new byte[1];
+            this.fEscape = false;
+            this.fDiscarding = false;
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            fEscape = false;
+            fDiscarding = false;
+        }
+
+        @Override
+        protected void decode(byte[] data, int offset, int length) {
+            int end = offset + length;
+            int start = offset;
+
+            for (int i = offset; i < end; ++i) {
+                byte b = data[i];
+
+                if (!fEscape && END != b && ESC != b) {
+                    continue;
+                }
+
+                // copy the run of plain bytes before this one.
+                appendDecoded(data, start, i - start);
+                start = i + 1;
+
+                if (fEscape) {
+                    fEscape = false;
+                    if (ESC_END == b || ESC_ESC == b) {
+                        mByte[0] = (ESC_END == b) ? END : ESC;
+                        appendDecoded(mByte, 0, 1);
+                        continue;
+                    }
+
+                    reportError("Invalid SLIP escape sequence.");
+                    setFrameLength(0);
+                    fDiscarding = true;
+                    if (END != b) {
+                        continue;
+                    }
+                }
+
+                if (ESC == b) {
+                    fEscape = true;
+                } else {
+                    // END
+                    if (!fDiscarding && frameLength() > 0) {
+                        emitAssembledFrame(frameLength());
+                    }
+                    setFrameLength(0);
+                    fDiscarding = false;
+                }
+            }
+
+            appendDecoded(data, start, end - start);
+        }
+
+        private void appendDecoded(byte[] data, int offset, int length) {
+            if (length > 0 && !fDiscarding && !appendToFrame(data, offset, length)) {
+                fDiscarding = true;
+            }
+        }
+    }
+
+    /**
+     * Decodes COBS (Consistent Overhead Byte Stuffing) frames, each terminated
+     * by a zero byte.
+     */
+    public static final class Cobs extends BGXFrameDecoder {
+
+        private final int mMaxDecodedLength;
+        private boolean fDiscarding;
+
+        /**
+         * @param maxFrameLength The longest decoded frame.
+         */
+        public Cobs(int maxFrameLength) {
+            // room for the encoding overhead.
+            super(maxFrameLength + maxFrameLength / 254 + 1);
+            this.mMaxDecodedLength = maxFrameLength;
+            this.fDiscarding = false;
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            fDiscarding = false;
+        }
+
+        @Override
+        protected void decode(byte[] data, int offset, int length) {
+            int end = offset + length;
+            int start = offset;
+
+            for (int i = offset; i < end; ++i) {
+                if (0 != data[i]) {
+                    continue;
+                }
+
+                if (!fDiscarding && appendToFrame(data, start, i - start) && frameLength() > 0) {
+                    int decodedLength = decodeInPlace(frameBuffer(), frameLength());
+                    if (decodedLength < 0) {
+                        reportError("Invalid COBS frame.");
+                    } else if (decodedLength > mMaxDecodedLength) {
+                        reportError("Frame longer than " + mMaxDecodedLength + " bytes discarded.");
+                    } else {
+                        emitAssembledFrame(decodedLength);
+                    }
+                }
+                setFrameLength(0);
+                fDiscarding = false;
+                start = i + 1;
+            }
+
+            if (start < end && !fDiscarding && !appendToFrame(data, start, end - start)) {
+                fDiscarding = true;
+            }
+        }
+
+        /**
+         * Decodes an encoded frame (without its zero terminator) in place. The
+         * decoded frame is never longer than the encoded one.
+         *
+         * @return The decoded length, or -1 if the frame is malformed.
+         */
+        private static int decodeInPlace(byte[] buffer, int length) {
+            int read = 0;
+            int write = 0;
+
+            while (read < length) {
+                int code = buffer[read++] & 0xFF;
+                if (0 == code || read + code - 1 > length) {
+                    return -1;
+                }
+
+                for (int i = 1; i < code; ++i) {
+                    buffer[write++] = buffer[read++];
+                }
+
+                if (code < 0xFF && read < length) {
+                    buffer[write++] = 0;
+                }
+            }
+
+            return write;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.silabs.bgxpress;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Locale;
+
+/**
+ * Statistics about the queue of GATT operations of a BGX, split by operation type.
+ *
+ * <p>For each type of operation this records how many were queued, how deep
+ * the queue was when they were added, how long they waited before they were
+ * executed and how long they then held the GATT until their callback arrived.
+ * A slow device can then be traced to, e.g., bus mode reads waiting behind a
+ * data transfer or MTU requests that take long to complete.
+ *
+ * <p>Obtain a snapshot with {@link BGXpressService#getBGXGattStatistics}.
+ */
+public final class BGXGattStatistics {
+
+    /**
+     * The statistics of one type of operation.
+     */
+    public static final class Operation {
+        private final String mName;
+        private final BGXHistogram mWait;
+        private final BGXHistogram mService;
+        private long mQueuedCount;
+        private long mExecutedCount;
+        private long mTimeoutCount;
+        private long mCoalescedCount;
+        private long mDepthSum;
+        private int mMaxDepth;
+
+        Operation(String name) {
+            this.mName = name;
+            this.mWait = new BGXHistogram();
+            this.mService = new BGXHistogram();
+        }
+
+        private Operation(Operation other) {
+            this.mName = other.mName;
+            this.mWait = other.mWait.copy();
+            this.mService = other.mService.copy();
+            this.mQueuedCount = other.mQueuedCount;
+            this.mExecutedCount = other.mExecutedCount;
+            this.mTimeoutCount = other.mTimeoutCount;
+            this.mCoalescedCount = other.mCoalescedCount;
+            this.mDepthSum = other.mDepthSum;
+            this.mMaxDepth = other.mMaxDepth;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getQueuedCount() {
+            return mQueuedCount;
+        }
+
+        public long getExecutedCount() {
+            return mExecutedCount;
+        }
+
+        public long getTimeoutCount() {
+            return mTimeoutCount;
+        }
+
+        /**
+         * @return The number of operations that were merged into one already queued instead of being queued.
+         */
+        public long getCoalescedCount() {
+            return mCoalescedCount;
+        }
+
+        /**
+         * @return The mean number of operations in the queue, including this one, when one was added.
+         */
+        public double getMeanQueueDepth() {
+            return (0 == mQueuedCount) ? 0.0 : (double) mDepthSum / mQueuedCount;
+        }
+
+        public int getMaxQueueDepth() {
+            return mMaxDepth;
+        }
+
+        /**
+         * @return The times from being queued to being executed.
+         */
+        public BGXHistogram getWaitTimes() {
+            return mWait;
+        }
+
+        /**
+         * @return The times from being executed to releasing the GATT.
+         */
+        public BGXHistogram getServiceTimes() {
+            return mService;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: queued=%d coalesced=%d executed=%d timeouts=%d depth(mean=%.1f max=%d) wait(%s) service(%s)",
+                    mName, mQueuedCount, mCoalescedCount, mExecutedCount, mTimeoutCount, getMeanQueueDepth(), mMaxDepth, mWait, mService);
+        }
+    }
+
+    private final LinkedHashMap<Class<?>, Operation> mOperations;
+    private int mQueueDepth;
+    private int mMaxQueueDepth;
+
+    BGXGattStatistics() {
+        this.mOperations = new LinkedHashMap<>();
+        this.mQueueDepth = 0;
+        this.mMaxQueueDepth = 0;
+    }
+
+    synchronized void onQueued(Class<?> type, int depth) {
+        Operation operation = operation(type);
+        ++operation.mQueuedCount;
+        operation.mDepthSum += depth;
+        operation.mMaxDepth = Math.max(operation.mMaxDepth, depth);
+
+        mQueueDepth = depth;
+        mMaxQueueDepth = Math.max(mMaxQueueDepth, depth);
+    }
+
+    synchronized void onExecuted(Class<?> type, long waitNanos, int depth) {
+        Operation operation = operation(type);
+        ++operation.mExecutedCount;
+        operation.mWait.record(waitNanos);
+
+        mQueueDepth = depth;
+    }
+
+    synchronized void onReleased(Class<?> type, long serviceNanos) {
+        operation(type).mService.record(serviceNanos);
+    }
+
+    synchronized void onTimeout(Class<?> type) {
+        ++operation(type).mTimeoutCount;
+    }
+
+    synchronized void onCoalesced(Class<?> type) {
+        ++operation(type).mCoalescedCount;
+    }
+
+    synchronized void reset() {
+        mOperations.clear();
+        mMaxQueueDepth = mQueueDepth;
+    }
+
+    synchronized BGXGattStatistics copy() {
+        BGXGattStatistics copy = new BGXGattStatistics();
+        for (Map.Entry<Class<?>, Operation> entry : mOperations.entrySet()) {
+            copy.mOperations.put(entry.getKey(), new Operation(entry.getValue()));
+        }
+        copy.mQueueDepth = mQueueDepth;
+        copy.mMaxQueueDepth = mMaxQueueDepth;
+        return copy;
+    }
+
+    /**
+     * @return The number of operations waiting for the GATT when the last one was queued or executed.
+     */
+    public synchronized int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    public synchronized int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * @return The statistics of each type of operation that has been queued, in order of first use.
+     */
+    public synchronized List<Operation> getOperations() {
+        return new ArrayList<>(mOperations.values());
+    }
+
+    /**
+     * @param name The name of the operation type, e.g. "ReadBusModeCommand".
+     * @return The statistics of the operation type, or null if none has been queued.
+     */
+    public synchronized Operation getOperation(String name) {
+        for (Operation operation : mOperations.values()) {
+            if (operation.mName.equals(name)) {
+                return operation;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("GATT queue depth=").append(mQueueDepth).append(" max=").append(mMaxQueueDepth);
+        for (Operation operation : mOperations.values()) {
+            sb.append('\n').append(operation);
+        }
+        return sb.toString();
+    }
+
+    private Operation operation(Class<?> type) {
+        Operation operation = mOperations.get(type);
+        if (null == operation) {
+            operation = new Operation(type.getSimpleName());
+            mOperations.put(type, operation);
+        }
+        return operation;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.silabs.bgxpress;
+
+import java.util.Locale;
+
+/**
+ * A histogram of durations in nanoseconds with power-of-two buckets.
+ *
+ * <p>Bucket 0 counts values of 0 or less and bucket i counts values in
+ * [2^(i-1), 2^i). Recording a value is a few arithmetic operations and never
+ * allocates, so it can be done on the Bluetooth callback threads. Percentiles
+ * are reported as the upper bound of the bucket that contains them, which is
+ * within a factor of two of the true value.
+ *
+ * <p>Instances are thread safe. Use {@link #copy} to take a consistent snapshot.
+ */
+public final class BGXHistogram {
+
+    private static final int kBucketCount = 64;
+
+    private final long[] mBuckets;
+    private long mCount;
+    private long mSum;
+    private long mMin;
+    private long mMax;
+
+    public BGXHistogram() {
+        this.mBuckets = new long[kBucketCount];
+        reset();
+    }
+
+    private BGXHistogram(BGXHistogram other) {
+        this.mBuckets = other.mBuckets.clone();
+        this.mCount = other.mCount;
+        this.mSum = other.mSum;
+        this.mMin = other.mMin;
+        this.mMax = other.mMax;
+    }
+
+    public synchronized void record(long nanos) {
+        ++mBuckets[bucketFor(nanos)];
+        ++mCount;
+        mSum += nanos;
+        mMin = Math.min(mMin, nanos);
+        mMax = Math.max(mMax, nanos);
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < kBucketCount; ++i) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = Long.MIN_VALUE;
+    }
+
+    /**
+     * @return A copy of the histogram as it is now.
+     */
+    public synchronized BGXHistogram copy() {
+        return new BGXHistogram(this);
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return The smallest value recorded, or 0 if there are none.
+     */
+    public synchronized long getMin() {
+        return 0 == mCount ? 0 : mMin;
+    }
+
+    /**
+     * @return The largest value recorded, or 0 if there are none.
+     */
+    public synchronized long getMax() {
+        return 0 == mCount ? 0 : mMax;
+    }
+
+    /**
+     * @return The mean of the values recorded, or 0 if there are none.
+     */
+    public synchronized long getMean() {
+        return 0 == mCount ? 0 : mSum / mCount;
+    }
+
+    /**
+     * @param percentile A value from 0 to 100.
+     * @return An upper bound for the given percentile, or 0 if no values have been recorded.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (0 == mCount) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(mCount * Math.max(0.0, Math.min(100.0, percentile)) / 100.0);
+        long seen = 0;
+        for (int i = 0; i < kBucketCount; ++i) {
+            seen += mBuckets[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(mMax, getBucketUpperBound(i));
+            }
+        }
+        return mMax;
+    }
+
+    public int getBucketCount() {
+        return kBucketCount;
+    }
+
+    public synchronized long getBucketValue(int bucket) {
+        return mBuckets[bucket];
+    }
+
+    /**
+     * @return The largest value counted in the bucket.
+     */
+    public static long getBucketUpperBound(int bucket) {
+        if (0 == bucket) {
+            return 0;
+        }
+        return (bucket >= 63) ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(Locale.US, "n=%d min=%dus mean=%dus p50=%dus p99=%dus max=%dus",
+                mCount, getMin() / 1000, getMean() / 1000, getPercentile(50) / 1000,
+                getPercentile(99) / 1000, getMax() / 1000);
+    }
+
+    private static int bucketFor(long nanos) {
+        return (nanos <= 0) ? 0 : Math.min(kBucketCount - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silabs.bgxpress;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A blocking InputStream that reads from the RX buffer of a BGXConnection.
+ * See {@link BGXConnection#getInputStream}.
+ */
+final class BGXInputStream extends InputStream {
+
+    private final BGXConnection mConnection;
+    private final byte[] mSingleByte;
+    private volatile boolean fClosed;
+
+    BGXInputStream(BGXConnection connection) {
+        this.mConnection = connection;
+        this.mSingleByte = new byte[1];
+        this.fClosed = false;
+    }
+
+    @Override
+    public int read() throws IOException {
+        synchronized (mSingleByte) {
+            int n = read(mSingleByte, 0, 1);
+            return (1 == n) ? (mSingleByte[0] & 0xFF) : -1;
+        }
+    }
+
+    /**
+     * Waits until at least one byte is available.
+     *
+     * @return The number of bytes read, or -1 if the BGX disconnected and the buffer is empty.
+     */
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (fClosed) {
+            throw new IOException("Stream closed.");
+        }
+
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        if (0 == len) {
+            return 0;
+        }
+
+        return mConnection.readRxData(b, off, len, true);
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (fClosed) {
+            throw new IOException("Stream closed.");
+        }
+
+        return mConnection.available();
+    }
+
+    @Override
+    public void close() {
+        fClosed = true;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silabs.bgxpress;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A blocking OutputStream that writes to a BGX through a BGXConnection.
+ * See {@link BGXConnection#getOutputStream}.
+ */
+final class BGXOutputStream extends OutputStream {
+
+    private final BGXConnection mConnection;
+    private final byte[] mSingleByte;
+    private volatile boolean fClosed;
+
+    BGXOutputStream(BGXConnection connection) {
+        this.mConnection = connection;
+        this.mSingleByte = new byte[1];
+        this.fClosed = false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        synchronized (mSingleByte) {
+            mSingleByte[0] = (byte) b;
+            write(mSingleByte, 0, 1);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (fClosed) {
+            throw new IOException("Stream closed.");
+        }
+
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+
+        mConnection.writeTxData(b, off, len, true);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fClosed) {
+            throw new IOException("Stream closed.");
+        }
+
+        mConnection.flush();
+    }
+
+    @Override
+    public void close() {
+        fClosed = true;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.silabs.bgxpress;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Finds any number of byte patterns in the data received on a BGXConnection.
+ *
+ * <p>The patterns are compiled into an Aho-Corasick automaton with a dense
+ * transition table, so each received byte costs one table lookup no matter how
+ * many patterns there are. Matching state is kept between notifications, so a
+ * pattern split between two notifications is still found. Overlapping
+ * matches are all reported.
+ *
+ * <p>A BGXPatternMatcher is immutable once built and can be shared by any
+ * number of connections; each connection keeps its own position in the
+ * automaton. Attach it with {@link BGXConnection#setPatternMatcher}. The
+ * MatchListener is called on the thread that receives notifications, as the
+ * data arrives, and should return quickly.
+ *
+ * <p>The table holds 256 ints per state, and there is at most one state per
+ * pattern byte, so 50 patterns of 20 bytes take about 1 MiB.
+ */
+public final class BGXPatternMatcher {
+
+    /**
+     * Receives pattern matches.
+     */
+    public interface MatchListener {
+        /**
+         * Called for each occurrence of a pattern.
+         *
+         * @param connection The connection that received the data.
+         * @param pattern    The index of the pattern in the list given to the constructor.
+         * @param position   The number of bytes received on the connection since the matcher
+         *                   was attached, up to and including the last byte of the match.
+         */
+        void onMatch(BGXConnection connection, int pattern, long position);
+    }
+
+    private static final int kAlphabetSize = 256;
+
+    private final byte[][] mPatterns;
+    private final int[] mTransitions;  // next state = mTransitions[state * 256 + byte].
+    private final int[][] mMatches;     // patterns that end at each state, or null.
+
+    /**
+     * @param patterns The strings to look for, encoded as UTF-8.
+     */
+    public BGXPatternMatcher(String... patterns) {
+        this(encode(patterns));
+    }
+
+    /**
+     * @param patterns The byte sequences to look for. None may be empty.
+     */
+    public BGXPatternMatcher(byte[]... patterns) {
+        int maxStates = 1;
+        for (byte[] pattern : patterns) {
+            if (0 == pattern.length) {
+                throw new IllegalArgumentException("Patterns may not be empty.");
+            }
+            maxStates += pattern.length;
+        }
+
+        this.mPatterns = new byte[patterns.length][];
+        for (int i = 0; i < patterns.length; ++i) {
+            mPatterns[i] = patterns[i].clone();
+        }
+
+        // build the trie. -1 marks a missing transition.
+        int[] transitions = new int[maxStates * kAlphabetSize];
+        Arrays.fill(transitions, -1);
+        ArrayList<ArrayList<Integer>> matches = new ArrayList<>();
+        matches.add(new ArrayList<Integer>());
+        int stateCount = 1;
+
+        for (int i = 0; i < mPatterns.length; ++i) {
+            int state = 0;
+            for (byte b : mPatterns[i]) {
+                int index = state * kAlphabetSize + (b & 0xFF);
+                if (-1 == transitions[index]) {
+                    transitions[index] = stateCount++;
+                    matches.add(new ArrayList<Integer>());
+                }
+                state = transitions[index];
+            }
+            matches.get(state).add(i);
+        }
+
+        // breadth first, fill in the missing transitions from the failure links
+        // and add the matches of each state's longest proper suffix.
+        int[] failure = new int[stateCount];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+
+        for (int c = 0; c < kAlphabetSize; ++c) {
+            int next = transitions[c];
+            if (-1 == next) {
+                transitions[c] = 0;
+            } else {
+                failure[next] = 0;
+                queue.add(next);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            int fail = failure[state];
+            matches.get(state).addAll(matches.get(fail));
+
+            for (int c = 0; c < kAlphabetSize; ++c) {
+                int index = state * kAlphabetSize + c;
+                int next = transitions[index];
+                if (-1 == next) {
+                    transitions[index] = transitions[fail * kAlphabetSize + c];
+                } else {
+                    failure[next] = transitions[fail * kAlphabetSize + c];
+                    queue.add(next);
+                }
+            }
+        }
+
+        this.mTransitions = Arrays.copyOf(transitions, stateCount * kAlphabetSize);
+        this.mMatches = new int[stateCount][];
+        for (int state = 0; state < stateCount; ++state) {
+            ArrayList<Integer> list = matches.get(state);
+            if (!list.isEmpty()) {
+                mMatches[state] = new int[list.size()];
+                for (int i = 0; i < list.size(); ++i) {
+                    mMatches[state][i] = list.get(i);
+                }
+            }
+        }
+    }
+
+    public int getPatternCount() {
+        return mPatterns.length;
+    }
+
+    /**
+     * @return A copy of the pattern.
+     */
+    public byte[] getPattern(int pattern) {
+        return mPatterns[pattern].clone();
+    }
+
+    /**
+     * @return The number of states in the automaton.
+     */
+    public int getStateCount() {
+        return mMatches.length;
+    }
+
+    private static byte[][] encode(String[] patterns) {
+        byte[][] encoded = new byte[patterns.length][];
+        for (int i = 0; i < patterns.length; ++i) {
+            encoded[i] = patterns[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return encoded;
+    }
+
+    /**
+     * The matching state of one connection.
+     */
+    static final class Scanner {
+        private final BGXPatternMatcher mMatcher;
+        private final MatchListener mListener;
+        private int mState;
+        private long mPosition;
+
+        Scanner(BGXPatternMatcher matcher, MatchListener listener) {
+            this.mMatcher = matcher;
+            this.mListener = listener;
+            this.mState = 0;
+            this.mPosition = 0;
+        }
+
+        /**
+         * Forgets any partial match, e.g. when the BGX disconnects.
+         */
+        void reset() {
+            mState = 0;
+        }
+
+        void scan(BGXConnection connection, byte[] data, int offset, int length) {
+            int[] transitions = mMatcher.mTransitions;
+            int[][] matches = mMatcher.mMatches;
+            int state = mState;
+            long position = mPosition;
+
+            for (int i = offset; i < offset + length; ++i) {
+                state = transitions[state * kAlphabetSize + (data[i] & 0xFF)];
+                ++position;
+
+                int[] found = matches[state];
+                if (null != found) {
+                    for (int pattern : found) {
+                        mListener.onMatch(connection, pattern, position);
+                    }
+                }
+            }
+
+            mState = state;
+            mPosition = position;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silabs.bgxpress;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A non-blocking ReadableByteChannel that reads from the RX buffer of a
+ * BGXConnection. See {@link BGXConnection#getReadableChannel}.
+ */
+final class BGXReadableChannel implements ReadableByteChannel {
+
+    private final BGXConnection mConnection;
+    private volatile boolean fOpen;
+
+    BGXReadableChannel(BGXConnection connection) {
+        this.mConnection = connection;
+        this.fOpen = true;
+    }
+
+    /**
+     * @return The number of bytes read, which is zero if none are buffered,
+     * or -1 if the BGX disconnected and the buffer is empty.
+     */
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!fOpen) {
+            throw new ClosedChannelException();
+        }
+
+        return mConnection.readRxData(dst);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return fOpen && mConnection.isOpen();
+    }
+
+    @Override
+    public void close() {
+        fOpen = false;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silabs.bgxpress;
+
+/**
+ * Counts the FastAck credits a BGX is owed for the data it has sent.
+ *
+ * <p>Received bytes become releasable once no BGXConnection holds them, i.e.
+ * they are not waiting in an RX buffer with the BLOCK_PEER policy or as
+ * unacknowledged data with manual credit return. Released bytes are collected
+ * and returned to the BGX once more than {@link #kReturnThreshold} of them
+ * have built up, so that credit updates do not cost a GATT write for every
+ * notification. One update can return at most 0xFFFF credits.
+ *
+ * <p>This class only does the bookkeeping. The caller writes the credit
+ * updates, and must do so without holding the lock of this object.
+ */
+final class BGXRxCredits {
+
+    /**
+     * Credits are returned once more than this many have built up.
+     */
+    static final int kReturnThreshold = 0x1000;
+
+    /**
+     * The largest number of credits one update can return.
+     */
+    static final int kMaxReturn = 0xFFFF;
+
+    private long mReceived;
+    private long mReleased;
+    private int mToReturn;
+
+    synchronized void onReceived(int length) {
+        mReceived += length;
+    }
+
+    /**
+     * Releases the received bytes that are no longer held.
+     *
+     * @param held The number of the most recently received bytes that are still held.
+     */
+    synchronized void release(long held) {
+        long releasable = mReceived - held - mReleased;
+        if (releasable > 0) {
+            mReleased += releasable;
+            mToReturn = (int) Math.min(Integer.MAX_VALUE, mToReturn + releasable);
+        }
+    }
+
+    /**
+     * Takes the credits that should be returned now. Call again until it
+     * returns 0, because more than one update may be due.
+     *
+     * @return The number of credits to return, or 0 if not enough have built up.
+     */
+    synchronized int takeCredits() {
+        if (mToReturn <= kReturnThreshold) {
+            return 0;
+        }
+
+        int credits = Math.min(mToReturn, kMaxReturn);
+        mToReturn -= credits;
+        return credits;
+    }
+
+    /**
+     * @return The credits released but not yet returned.
+     */
+    synchronized int getCreditsToReturn() {
+        return mToReturn;
+    }
+
+    /**
+     * Forgets the credits not yet returned, e.g. when FastAck is set up again.
+     */
+    synchronized void reset() {
+        mToReturn = 0;
+    }
+
+    /**
+     * Releases everything received, e.g. on disconnect, without returning credits for it.
+     */
+    synchronized void releaseAll() {
+        mReleased = mReceived;
+        mToReturn = 0;
+    }
+}
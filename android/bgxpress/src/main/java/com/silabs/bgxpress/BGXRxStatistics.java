@@ -0,0 +1,137 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.silabs.bgxpress;
+
+/**
+ * Statistics about the notifications received from a BGX during the current
+ * connection, based on the time each notification reached onCharacteristicChanged().
+ *
+ * <p>These show the cadence of the link itself, independent of how long the
+ * app takes to handle the data. Notifications that arrive less than
+ * {@link #kConnectionEventGapNanos} apart are assumed to belong to the same
+ * connection event. The shortest BLE connection interval is 7.5 ms, so this
+ * gives a reasonable estimate of how many packets the BGX sends per event.
+ *
+ * <p>Obtain a snapshot with {@link BGXConnection#getRxStatistics}.
+ */
+public final class BGXRxStatistics {
+
+    /**
+     * Largest gap between notifications of the same connection event.
+     */
+    public static final long kConnectionEventGapNanos = 2500000;
+
+    private final BGXHistogram mInterArrival;
+    private long mNotificationCount;
+    private long mByteCount;
+    private long mConnectionEventCount;
+    private long mFirstNanos;
+    private long mLastNanos;
+
+    BGXRxStatistics() {
+        this.mInterArrival = new BGXHistogram();
+        reset();
+    }
+
+    private BGXRxStatistics(BGXRxStatistics other) {
+        this.mInterArrival = other.mInterArrival.copy();
+        this.mNotificationCount = other.mNotificationCount;
+        this.mByteCount = other.mByteCount;
+        this.mConnectionEventCount = other.mConnectionEventCount;
+        this.mFirstNanos = other.mFirstNanos;
+        this.mLastNanos = other.mLastNanos;
+    }
+
+    synchronized void record(long nanos, int length) {
+        if (0 == mNotificationCount) {
+            mFirstNanos = nanos;
+            mConnectionEventCount = 1;
+        } else {
+            long gap = nanos - mLastNanos;
+            mInterArrival.record(gap);
+            if (gap >= kConnectionEventGapNanos) {
+                ++mConnectionEventCount;
+            }
+        }
+
+        mLastNanos = nanos;
+        ++mNotificationCount;
+        mByteCount += length;
+    }
+
+    synchronized void reset() {
+        mInterArrival.reset();
+        mNotificationCount = 0;
+        mByteCount = 0;
+        mConnectionEventCount = 0;
+        mFirstNanos = 0;
+        mLastNanos = 0;
+    }
+
+    synchronized BGXRxStatistics copy() {
+        return new BGXRxStatistics(this);
+    }
+
+    /**
+     * @return The times between consecutive notifications.
+     */
+    public BGXHistogram getInterArrivalHistogram() {
+        return mInterArrival;
+    }
+
+    public synchronized long getNotificationCount() {
+        return mNotificationCount;
+    }
+
+    public synchronized long getByteCount() {
+        return mByteCount;
+    }
+
+    /**
+     * @return The SystemClock.elapsedRealtimeNanos() of the first notification, or 0.
+     */
+    public synchronized long getFirstNanos() {
+        return mFirstNanos;
+    }
+
+    /**
+     * @return The SystemClock.elapsedRealtimeNanos() of the last notification, or 0.
+     */
+    public synchronized long getLastNanos() {
+        return mLastNanos;
+    }
+
+    /**
+     * @return The estimated number of connection events in which data was received.
+     */
+    public synchronized long getConnectionEventCount() {
+        return mConnectionEventCount;
+    }
+
+    /**
+     * @return The estimated mean number of notifications per connection event in which data was received.
+     */
+    public synchronized double getPacketsPerConnectionEvent() {
+        return (0 == mConnectionEventCount) ? 0.0 : (double) mNotificationCount / mConnectionEventCount;
+    }
+
+    /**
+     * @return The received data rate in bits per second between the first and last notifications, or 0.
+     */
+    public synchronized double getBitsPerSecond() {
+        long span = mLastNanos - mFirstNanos;
+        return (span <= 0) ? 0.0 : (mByteCount * 8.0 * 1e9) / span;
+    }
+}
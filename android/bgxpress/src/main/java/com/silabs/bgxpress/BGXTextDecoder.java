@@ -0,0 +1,126 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.silabs.bgxpress;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes a stream of received bytes into text, one notification at a time.
+ *
+ * <p>A character whose bytes are split between two notifications is kept until
+ * the rest of it arrives instead of being decoded as two malformed halves. The
+ * decoder and the output CharBuffer are reused, and so is the ByteBuffer view of
+ * the input as long as the caller passes the same array. Decoding allocates
+ * nothing once the output buffer has grown to the notification size, except one
+ * small ByteBuffer wrapper whenever the input arrives in a different array.
+ * Malformed input is replaced with U+FFFD.
+ *
+ * <p>This class is not thread safe. Callers are expected to synchronize access.
+ */
+final class BGXTextDecoder {
+
+    /**
+     * Large enough for the longest partial character of any common charset.
+     */
+    private static final int kCarrySize = 16;
+
+    private final CharsetDecoder mDecoder;
+    private final ByteBuffer mCarry;  // bytes of an incomplete character, in write mode.
+    private CharBuffer mChars;
+    private ByteBuffer mIn;  // wraps the last array passed to decode().
+
+    BGXTextDecoder(Charset charset) {
+        this.mDecoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.mCarry = ByteBuffer.allocate(kCarrySize);
+        this.mChars = CharBuffer.allocate(256);
+    }
+
+    Charset charset() {
+        return mDecoder.charset();
+    }
+
+    /**
+     * Decodes the next bytes of the stream.
+     *
+     * @return The decoded text. The buffer is reused by the next call to decode(),
+     * so the text must be used or copied before then.
+     */
+    CharBuffer decode(byte[] data, int offset, int length) {
+        ensureCharCapacity(mCarry.position() + length);
+        mChars.clear();
+
+        ByteBuffer in = input(data, offset, length);
+
+        // complete the character left over from the last notification one byte at a time.
+        while (mCarry.position() > 0 && in.hasRemaining()) {
+            mCarry.put(in.get());
+            mCarry.flip();
+            mDecoder.decode(mCarry, mChars, false);
+            mCarry.compact();
+        }
+
+        if (in.hasRemaining()) {
+            mDecoder.decode(in, mChars, false);
+            carry(in);
+        }
+
+        mChars.flip();
+        return mChars;
+    }
+
+    /**
+     * Forgets any incomplete character, e.g. when the BGX disconnects.
+     */
+    void reset() {
+        mDecoder.reset();
+        mCarry.clear();
+        mIn = null;
+    }
+
+    /**
+     * @return A buffer over data from offset to offset + length, rewrapping the
+     * array only if it is not the one passed last time.
+     */
+    private ByteBuffer input(byte[] data, int offset, int length) {
+        if (null == mIn || mIn.array() != data) {
+            mIn = ByteBuffer.wrap(data, offset, length);
+        } else {
+            mIn.limit(offset + length);
+            mIn.position(offset);
+        }
+        return mIn;
+    }
+
+    private void carry(ByteBuffer in) {
+        if (in.remaining() > mCarry.remaining()) {
+            // cannot be the start of a character; let the next decode() replace it.
+            in.position(in.limit() - mCarry.remaining());
+        }
+        mCarry.put(in);
+    }
+
+    private void ensureCharCapacity(int byteCount) {
+        int needed = (int) Math.ceil(byteCount * (double) mDecoder.maxCharsPerByte()) + 1;
+        if (mChars.capacity() < needed) {
+            mChars = CharBuffer.allocate(Math.max(needed, 2 * mChars.capacity()));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silabs.bgxpress;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Encodes strings written to a BGX directly into its TX buffer.
+ *
+ * <p>The string is copied into a reused CharBuffer a block at a time and each
+ * block is encoded into a reused ByteBuffer, so encoding allocates nothing and
+ * holds no more than one block of any string, however long. Unmappable or
+ * malformed input is replaced, the same as String.getBytes().
+ *
+ * <p>This class is not thread safe. Callers are expected to synchronize access.
+ */
+final class BGXTextEncoder {
+
+    /**
+     * Number of characters encoded at a time.
+     */
+    private static final int kBlockSize = 256;
+
+    private final CharsetEncoder mEncoder;
+    private final CharBuffer mChars;  // characters waiting to be encoded, in write mode.
+    private final ByteBuffer mBytes;
+
+    BGXTextEncoder(Charset charset) {
+        this.mEncoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.mChars = CharBuffer.allocate(kBlockSize);
+        this.mBytes = ByteBuffer.allocate((int) Math.ceil(kBlockSize * (double) mEncoder.maxBytesPerChar()));
+    }
+
+    Charset charset() {
+        return mEncoder.charset();
+    }
+
+    /**
+     * Encodes text and appends it to the end of buffer. Either all of the text
+     * is appended or, if there is not enough room, none of it.
+     *
+     * @return The number of bytes appended, or -1 if there was not enough room.
+     */
+    int encode(String text, ByteRingBuffer buffer) {
+        int start = buffer.size();
+        int length = text.length();
+        int position = 0;
+
+        mEncoder.reset();
+        mChars.clear();
+
+        while (true) {
+            // a high surrogate at the end of the last block is still in mChars.
+            int count = Math.min(length - position, mChars.remaining());
+            text.getChars(position, position + count, mChars.array(), mChars.arrayOffset() + mChars.position());
+            mChars.position(mChars.position() + count);
+            position += count;
+
+            boolean endOfInput = position == length;
+
+            mChars.flip();
+            mBytes.clear();
+            CoderResult cr = mEncoder.encode(mChars, mBytes, endOfInput);
+            if (cr.isUnderflow() && endOfInput) {
+                mEncoder.flush(mBytes);
+            }
+            mChars.compact();
+
+            mBytes.flip();
+            if (!buffer.append(mBytes)) {
+                buffer.truncate(start);
+                return -1;
+            }
+
+            if (endOfInput && 0 == mChars.position()) {
+                break;
+            }
+        }
+
+        return buffer.size() - start;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silabs.bgxpress;
+
+/**
+ * Cuts the TX buffer into the chunks written to the BGX and tracks the chunks
+ * in flight, without allocating once streaming has started.
+ *
+ * <p>Each chunk is peeked into a reusable array of exactly its length, because
+ * BluetoothGattCharacteristic.setValue() takes the whole array. The arrays are
+ * pooled by length and the pool is rebuilt only when the chunk size (MTU)
+ * changes. Reusing an array is safe because writeCharacteristic() copies the
+ * value before it returns. The end position of each chunk in flight is kept in
+ * a ring so that write completion can be matched to the chunks.
+ *
+ * <p>Not thread safe. The service guards it with dataWriteSync.
+ */
+final class BGXTxChunks {
+
+    private byte[][] mPool;  // mPool[n] is the array for chunks of n bytes.
+
+    private long mBytesSent;
+    private long[] mEnds = new long[4];
+    private int mEndsHead;
+    private int mInFlight;
+
+    /**
+     * Copies the next chunk from the front of buffer without consuming it.
+     *
+     * @param buffer       The TX buffer.
+     * @param length       The length of the chunk, at most maxChunkSize and buffer.size().
+     * @param maxChunkSize The current chunk size of the device.
+     * @return A reused array holding exactly the chunk. It stays valid until the
+     * next call with the same length.
+     */
+    byte[] peek(ByteRingBuffer buffer, int length, int maxChunkSize) {
+        if (null == mPool || mPool.length != maxChunkSize + 1) {
+            mPool = new byte[maxChunkSize + 1][];
+        }
+
+        byte[] chunk = mPool[length];
+        if (null == chunk) {
+            chunk = new byte[length];
+            mPool[length] = chunk;
+        }
+
+        buffer.peek(chunk, 0, length);
+        return chunk;
+    }
+
+    /**
+     * Consumes a chunk that the Bluetooth stack accepted and records it as in flight.
+     *
+     * @return The position in the TX stream at which the chunk ends.
+     */
+    long sent(ByteRingBuffer buffer, int length) {
+        buffer.skip(length);
+        mBytesSent += length;
+
+        if (mInFlight == mEnds.length) {
+            long[] larger = new long[2 * mEnds.length];
+            for (int i = 0; i < mInFlight; ++i) {
+                larger[i] = mEnds[(mEndsHead + i) % mEnds.length];
+            }
+            mEnds = larger;
+            mEndsHead = 0;
+        }
+        mEnds[(mEndsHead + mInFlight) % mEnds.length] = mBytesSent;
+        ++mInFlight;
+        return mBytesSent;
+    }
+
+    /**
+     * Retires the oldest chunk in flight. Must only be called while inFlight() > 0.
+     *
+     * @return The position in the TX stream at which the chunk ends.
+     */
+    long takeEnd() {
+        long end = mEnds[mEndsHead];
+        mEndsHead = (mEndsHead + 1) % mEnds.length;
+        --mInFlight;
+        return end;
+    }
+
+    /**
+     * @return The number of chunks written but not yet reported by onCharacteristicWrite.
+     */
+    int inFlight() {
+        return mInFlight;
+    }
+
+    /**
+     * @return The number of bytes handed to the Bluetooth stack.
+     */
+    long bytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * Forgets the chunks in flight, e.g. on disconnect.
+     *
+     * @param bytesSent The new value of bytesSent().
+     */
+    void reset(long bytesSent) {
+        mBytesSent = bytesSent;
+        mEndsHead = 0;
+        mInFlight = 0;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silabs.bgxpress;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A WritableByteChannel that writes to a BGX through a BGXConnection.
+ * See {@link BGXConnection#getWritableChannel}.
+ */
+final class BGXWritableChannel implements WritableByteChannel {
+
+    private final BGXConnection mConnection;
+    private final boolean fBlocking;
+    private volatile boolean fOpen;
+
+    BGXWritableChannel(BGXConnection connection, boolean blocking) {
+        this.mConnection = connection;
+        this.fBlocking = blocking;
+        this.fOpen = true;
+    }
+
+    /**
+     * @return The number of bytes written. A non-blocking channel returns zero
+     * when the TX backlog is at or above the high-water mark.
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!fOpen) {
+            throw new ClosedChannelException();
+        }
+
+        return mConnection.writeTxData(src, fBlocking);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return fOpen && mConnection.isOpen();
+    }
+
+    @Override
+    public void close() {
+        fOpen = false;
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silabs.bgxpress;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Tracks one write made through {@link BGXConnection#write}.
+ *
+ * <p>The future completes when the last chunk containing the write has been
+ * acknowledged. Without FastAck that is the onCharacteristicWrite() for the
+ * chunk. With FastAck it is the credit update in which the BGX returns the
+ * credits for the last byte of the write. The future completes exceptionally
+ * if the chunk write fails or the BGX disconnects first.
+ *
+ * <p>Timestamps are taken with SystemClock.elapsedRealtimeNanos() and are 0
+ * until the event has happened. getQueueingDelayNanos() is the time the data
+ * spent in the TX buffer, and getLinkDelayNanos() is the time it took to reach
+ * the BGX after its first byte was handed to the Bluetooth stack.
+ *
+ * <p>Cancelling the future does not stop the data from being sent.
+ */
+public final class BGXWriteFuture extends CompletableFuture<Void> {
+
+    private final int mLength;
+
+    /**
+     * Position of the write in the device's TX byte sequence: [mStart, mEnd).
+     */
+    long mStart;
+    long mEnd;
+
+    private volatile long mEnqueueNanos;
+    private volatile long mFirstChunkNanos;
+    private volatile long mCompletionNanos;
+
+    BGXWriteFuture(int length) {
+        this.mLength = length;
+    }
+
+    /**
+     * @return The number of bytes written.
+     */
+    public int getLength() {
+        return mLength;
+    }
+
+    public long getEnqueueNanos() {
+        return mEnqueueNanos;
+    }
+
+    public long getFirstChunkNanos() {
+        return mFirstChunkNanos;
+    }
+
+    public long getCompletionNanos() {
+        return mCompletionNanos;
+    }
+
+    /**
+     * @return The time from enqueue until the first byte was sent, or -1 if it has not been sent yet.
+     */
+    public long getQueueingDelayNanos() {
+        long first = mFirstChunkNanos;
+        return 0 == first ? -1 : first - mEnqueueNanos;
+    }
+
+    /**
+     * @return The time from the first byte being sent until completion, or -1 if the write has not completed.
+     */
+    public long getLinkDelayNanos() {
+        long completion = mCompletionNanos;
+        return 0 == completion ? -1 : completion - mFirstChunkNanos;
+    }
+
+    void onEnqueued(long start, long nanos) {
+        mStart = start;
+        mEnd = start + mLength;
+        mEnqueueNanos = nanos;
+    }
+
+    void onFirstChunkSent(long nanos) {
+        mFirstChunkNanos = nanos;
+    }
+
+    void onCompleted(long nanos) {
+        if (0 == mFirstChunkNanos) {
+            mFirstChunkNanos = nanos;
+        }
+        mCompletionNanos = nanos;
+        complete(null);
+    }
+
+    void onFailed(Throwable cause) {
+        completeExceptionally(cause);
+    }
+}
@@ -24,17 +24,20 @@ import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
+import android.app.Notification;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Intent;
 import android.content.Context;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.HandlerThread;
 import android.os.Parcel;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothAdapter;
@@ -46,7 +49,6 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -55,17 +57,26 @@ import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.UUID;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.net.URL;
 import java.lang.String;
 import java.io.BufferedInputStream;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 
 import javax.net.ssl.HttpsURLConnection;
 
@@ -297,6 +308,28 @@ public class BGXpressService extends JobIntentService {
      */
     public static final String ACTION_OTA_CANCEL = "com.silabs.bgx.action.OTA.cancel";
 
+    /* BGX Foreground Streaming Actions */
+    /**
+     * Starts the BGXpressService as a foreground service. While it runs in the
+     * foreground, actions sent with enqueueWork() are executed immediately on a
+     * dedicated thread instead of being scheduled through JobScheduler.
+     *
+     * <p>Extras:
+     * notification - Notification - The notification to show while the service is in the foreground.
+     * notification-id - int - The identifier for the notification.
+     *
+     * <p>There is no need to directly send this. You can call {@link #startActionBGXStartForegroundStreaming} instead.
+     */
+    public static final String ACTION_START_FOREGROUND_STREAMING = "com.silabs.bgx.action.StartForegroundStreaming";
+
+    /**
+     * Takes the BGXpressService out of the foreground. Actions are once again
+     * scheduled through JobScheduler. Connections are not affected.
+     *
+     * <p>There is no need to directly send this. You can call {@link #startActionBGXStopForegroundStreaming} instead.
+     */
+    public static final String ACTION_STOP_FOREGROUND_STREAMING = "com.silabs.bgx.action.StopForegroundStreaming";
+
     /**
      * Sent to indicate a connection status change.
      *
@@ -330,11 +363,42 @@ public class BGXpressService extends JobIntentService {
      * Indicates that data was received.
      *
      * <p>Extras:
-     * data - String - Contains the data that was received from the BGX.
+     * bytes - byte[] - Contains the data that was received from the BGX. If receive
+     * coalescing is enabled (see setBGXReceiveCoalescing()) this may hold several notifications.
+     * data - String - (optional) The data decoded as UTF-8. Omitted if text
+     * decoding has been turned off with setBGXReceiveText().
+     * timestamp - long - SystemClock.elapsedRealtimeNanos() when the notification (the
+     * first notification, if coalesced) reached the service.
      * DeviceAddress - String - The address of the BGX that received data.
      */
     public static final String BGX_DATA_RECEIVED = "com.silabs.bgx.intent.data-received";
 
+    /**
+     * Diagnostic event sent when a GATT operation did not complete within its
+     * timeout (see setBGXGattTimeout()). The operation is abandoned or retried
+     * and the queue of GATT operations continues.
+     *
+     * <p>Extras:
+     * operation - String - The name of the operation that timed out.
+     * timeout - long - The timeout in milliseconds.
+     * retrying - boolean - Whether the operation will be tried again.
+     * DeviceAddress - String - The address of the BGX.
+     */
+    public static final String BGX_GATT_TIMEOUT = "com.silabs.bgx.intent.gatt-timeout";
+
+    /**
+     * Error event sent when a GATT operation could not be started after
+     * several attempts, for example because the Bluetooth stack stayed busy.
+     * Each attempt is retried after an exponentially growing, randomized delay.
+     * The operation is abandoned and the queue of GATT operations continues.
+     *
+     * <p>Extras:
+     * operation - String - The name of the operation that failed.
+     * attempts - int - The number of attempts made.
+     * DeviceAddress - String - The address of the BGX.
+     */
+    public static final String BGX_GATT_ERROR = "com.silabs.bgx.intent.gatt-error";
+
     /**
      * This change is sent when scanning begins or ends.
      *
@@ -531,6 +595,7 @@ public class BGXpressService extends JobIntentService {
     private static final String ACTION_SET_WRITE_TYPE = "com.silabs.bgx.setWriteType";
     private static final String ACTION_SET_READ_TYPE = "com.silabs.bgx.setReadType";
     private static final String ACTION_POLL_BOND_STATUS = "com.silabs.bgx.pollBondStatus";
+    private static final String ACTION_DRAIN_TX_BUFFER = "com.silabs.bgx.drainTxBuffer";
 
     @Deprecated
     private String getDmsAPIKey() {
@@ -617,10 +682,59 @@ public class BGXpressService extends JobIntentService {
 
         DeviceProperties() {
             this.dataWriteSync = new Object();
+            this.mTxBuffer = new ByteRingBuffer(kTxBufferInitialSize, kTxBufferDefaultCapacity);
+            this.mTxWriteFailures = 0;
+            this.fTxDrainQueued = false;
+            this.mTxHighWaterMark = kTxDefaultHighWaterMark;
+            this.mTxWritersWaiting = 0;
+            this.mTxCoalesceDelay = 0;
+            this.mTxPendingSince = 0;
+            this.mTxFlushMark = 0;
+            this.mTxCoalesceRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    queueTxDrain();
+                }
+            };
+            this.mConnections = new CopyOnWriteArrayList<>();
+            this.fRxTextDecode = true;
+            this.mRxTextDecoder = new BGXTextDecoder(StandardCharsets.UTF_8);
+            this.mRxCoalesceBytes = 0;
+            this.mRxCoalesceDelay = 0;
+            this.mRxCoalesceBuffer = new ByteRingBuffer(kRxCoalesceBufferInitialSize, kRxCoalesceBufferCapacity);
+            this.mRxCoalesceAddress = null;
+            this.mRxCoalesceNanos = 0;
+            this.mRxStatistics = new BGXRxStatistics();
+            this.mRxCoalesceRunnable = new Runnable() {
+                @Override
+                public void run() {
+                    flushRxCoalesceBuffer();
+                }
+            };
+            this.mTxChunks = new BGXTxChunks();
+            this.mTxBytesQueued = 0;
+            this.mTxBytesCredited = 0;
+            this.mTxWritesUnsent = new ArrayDeque<>();
+            this.mTxWritesUnacked = new ArrayDeque<>();
+            this.mTxEncoder = new BGXTextEncoder(StandardCharsets.UTF_8);
             this.m2mphyRunnable = null;
             this.fUserConnectionCanceled = false;
             this.fGattBusy = false;
-            this.mIntentArray = new ArrayList<>();
+            this.mGattTimeout = kGattDefaultTimeout;
+            this.mGattWatchdog = new Runnable() {
+                @Override
+                public void run() {
+                    onGattCommandTimeout();
+                }
+            };
+            this.mGattStatistics = new BGXGattStatistics();
+            this.mGattStatisticsDump = null;
+            this.mCreditCommands = new ArrayDeque<>();
+            this.mControlCommands = new ArrayDeque<>();
+            this.mBulkCommands = new ArrayDeque<>();
+            this.mStaleGattCallbacks = new ArrayDeque<>();
+            this.mGattGeneration = 0;
+            this.fCreditResetPending = false;
             this.mOTAState = OTA_State.OTA_Idle;
             this.fOTAUserCanceled = false;
             this.mBootloaderVersion = -1;
@@ -628,7 +742,6 @@ public class BGXpressService extends JobIntentService {
             this.deviceWriteChunkSize = kDataWriteChunkDefaultSize;
             this.mMTUInitialReadComplete = false;
             this.mLastBondState = BOND_NONE;
-            this.mFastAckRxBytesToReturn = 0;
         }
 
         private BluetoothGatt mBluetoothGatt;
@@ -685,10 +798,72 @@ public class BGXpressService extends JobIntentService {
 
         /**
          * These variables are used to write data a bit at a time.
+         * Data waiting to be written is appended to mTxBuffer and
+         * writeChunkOfData() consumes it from the front.
+         */
+        private Object dataWriteSync; // Used only to synchronize access to mTxBuffer
+        private ByteRingBuffer mTxBuffer;
+
+        /**
+         * mTxChunks cuts mTxBuffer into chunks and counts the chunks that have been
+         * written but not yet reported by onCharacteristicWrite. BluetoothGatt
+         * refuses another write until that callback arrives, so there is never more
+         * than 1 in flight, even for WRITE_TYPE_NO_RESPONSE. mTxWriteFailures counts
+         * consecutive refused writes while nothing was in flight and sets the retry
+         * delay. Guarded by dataWriteSync.
+         */
+        private BGXTxChunks mTxChunks;
+        private int mTxWriteFailures;
+
+        /**
+         * Set while an ACTION_DRAIN_TX_BUFFER is waiting in the GATT queue so that
+         * data written through a BGXConnection queues at most one drain operation.
+         */
+        private boolean fTxDrainQueued;
+
+        /**
+         * Blocking writers from a BGXConnection OutputStream or WritableByteChannel
+         * wait on dataWriteSync while mTxBuffer holds mTxHighWaterMark bytes or more.
+         * writeChunkOfData() wakes them as the buffer drains.
          */
-        private Object dataWriteSync; // Used only to synchronize access to mData2Write
-        private byte[] mData2Write;
-        private int mWriteOffset;
+        private int mTxHighWaterMark;
+        private int mTxWritersWaiting;
+
+        /**
+         * Write coalescing. When mTxCoalesceDelay is non-zero a partly filled
+         * chunk is held back until more data fills it, until mTxCoalesceDelay
+         * milliseconds have passed since mTxPendingSince (the time the buffer
+         * became non-empty), or until it is flushed. mTxFlushMark is the number
+         * of bytes at the front of the buffer that must be sent without waiting.
+         */
+        private int mTxCoalesceDelay;
+
+        /**
+         * Write completion tracking. Every byte that passes through the TX buffer
+         * has a position in a sequence that starts at 0 for the device. mTxBytesQueued,
+         * mTxChunks.bytesSent() and mTxBytesCredited count the bytes appended, handed
+         * to the Bluetooth stack and covered by returned FastAck credits.
+         * BGXWriteFutures wait in mTxWritesUnsent until their first byte is sent and
+         * then in mTxWritesUnacked until they complete. All guarded by dataWriteSync.
+         */
+        private long mTxBytesQueued;
+        private long mTxBytesCredited;
+        private ArrayDeque<BGXWriteFuture> mTxWritesUnsent;
+        private ArrayDeque<BGXWriteFuture> mTxWritesUnacked;
+
+        /**
+         * Encodes ACTION_WRITE_SERIAL_DATA strings straight into mTxBuffer.
+         * Guarded by dataWriteSync.
+         */
+        private BGXTextEncoder mTxEncoder;
+        private long mTxPendingSince;
+        private int mTxFlushMark;
+        private Runnable mTxCoalesceRunnable;
+
+        /**
+         * The open BGXConnection handles for this device.
+         */
+        private CopyOnWriteArrayList<BGXConnection> mConnections;
 
         /**
          * FastAck variables.
@@ -696,42 +871,145 @@ public class BGXpressService extends JobIntentService {
         private boolean mFastAck; // does the device support fastAck?
         private int mFastAckRxBytes;
         private int mFastAckTxBytes;
-        private int mFastAckRxBytesToReturn;
+
+        /**
+         * Whether BGX_DATA_RECEIVED carries the received data as a String
+         * in addition to the raw bytes.
+         */
+        private volatile boolean fRxTextDecode;
+
+        /**
+         * Decodes the "data" extra. Holds the bytes of a character split between
+         * notifications until the rest of it arrives. Guarded by itself.
+         */
+        private final BGXTextDecoder mRxTextDecoder;
+
+        /**
+         * The FastAck credits owed to the BGX (see releaseRxCredits()). Only
+         * the bookkeeping is done while holding its lock; credit updates are
+         * queued afterwards because queueGattCommand() locks the DeviceProperties.
+         */
+        private final BGXRxCredits mRxCredits = new BGXRxCredits();
+
+        /**
+         * RX coalescing. When mRxCoalesceBytes or mRxCoalesceDelay is non-zero,
+         * notifications are gathered in mRxCoalesceBuffer and delivered as one
+         * BGX_DATA_RECEIVED by mRxCoalesceRunnable. Guarded by rxCoalesceSync.
+         *
+         * <p>Coalesced data is delivered while holding rxDeliverSync, which is
+         * taken before rxCoalesceSync, so that data delivered early because the
+         * buffer is full cannot overtake data already taken by a flush.
+         */
+        private final Object rxCoalesceSync = new Object();
+        private final Object rxDeliverSync = new Object();
+        private int mRxCoalesceBytes;
+        private int mRxCoalesceDelay;
+        private ByteRingBuffer mRxCoalesceBuffer;
+        private String mRxCoalesceAddress;
+        private long mRxCoalesceNanos;  // timestamp of the first notification in the buffer.
+        private Runnable mRxCoalesceRunnable;
+
+        /**
+         * Cadence of the received notifications during the current connection.
+         */
+        private final BGXRxStatistics mRxStatistics;
 
         private final Integer kInitialFastAckRxBytes = 0x7FFF;
-        private final Integer kFastAckRxReturnThreshold = 0x1000;
 
         private BroadcastReceiver mBroadcastReceiver;
 
         /**
-         * mIntentQueue
+         * The GATT command queue.
          * The purpose of this is to solve a problem where the
          * BluetoothGatt cannot perform more than one asynchronous
          * operation at a time.
          *
-         * <p>Some intents are for operations that require either a read
-         * or write operation on the BluetoothGatt object. Handling
-         * more than one at a time will result in failure. So we will
-         * queue intents that require a read or write.
+         * <p>Some operations require either a read or write operation on the
+         * BluetoothGatt object. Handling more than one at a time will result
+         * in failure. So we queue a GattCommand for each of them.
          *
-         * <p>queueGattIntent()
-         * Queues an intent for asynchronous execution when exclusive access
-         * of the GATT is guaranteed.
+         * <p>queueGattCommand()
+         * Queues a command for asynchronous execution when exclusive access
+         * of the GATT is guaranteed. queueGattIntent() converts the public
+         * Intent actions into commands.
          *
          * <p>clearGattBusyFlagAndExecuteNext()
          * Called when the current operation is finished with the GATT.
          *
-         * <p>executeNextGattIntent()
-         * Retrieves a GATT intent from the queue and then executes the operation
+         * <p>executeNextGattCommand()
+         * Retrieves a command from the queue and then executes the operation
          * and guarantees exclusive access to the GATT.
+         *
+         * The queue is split into lanes which are served in strict priority order:
+         * FastAck credit returns first, then control operations (bus mode, MTU,
+         * notification setup, etc.), then bulk data. This way a credit return or
+         * a mode change goes out within one GATT round trip even while a large
+         * transfer is queued. The bulk TX drain yields the GATT between chunks
+         * whenever one of the higher lanes has work.
          */
 
-        private ArrayList<Intent> mIntentArray;
+        private static final int kGattLaneCredit = 0;
+        private static final int kGattLaneControl = 1;
+        private static final int kGattLaneBulk = 2;
+
+        private ArrayDeque<GattCommand> mCreditCommands;
+        private ArrayDeque<GattCommand> mControlCommands;
+        private ArrayDeque<GattCommand> mBulkCommands;
         private volatile boolean fGattBusy;
-        private Intent mLastExecutedIntent;
+        private volatile GattCommand mLastExecutedCommand;
+
+        /**
+         * The GATT watchdog. While a command holds the GATT, mGattWatchdog is
+         * posted to fire once the command has made no progress for its timeout.
+         * It then abandons or retries the command and restarts the queue, so a
+         * GATT callback that Android never delivers cannot stall the device.
+         */
+        private static final int kGattDefaultTimeout = 5000;
+        private volatile int mGattTimeout;
+        private Runnable mGattWatchdog;
+
+        /**
+         * The callbacks still owed to commands the watchdog abandoned. Android
+         * may deliver them late, after another command took the GATT, so each
+         * one is ignored once instead of releasing the GATT of that command.
+         * Entries expire after kStaleGattCallbackLifetime ms in case the
+         * callback was really lost. Guarded by the DeviceProperties.
+         */
+        private static final int kStaleGattCallbackLimit = 8;
+        private static final long kStaleGattCallbackLifetime = 30000;
+        private final ArrayDeque<StaleGattCallback> mStaleGattCallbacks;
+
+        /**
+         * Incremented whenever clearGattQueue() ends a connection, so that a
+         * retry scheduled during an earlier connection is dropped.
+         * Guarded by the DeviceProperties.
+         */
+        private int mGattGeneration;
+
+        /**
+         * Set while a FastAck reset (an UpdateFastAckRxBytesCommand with opcode
+         * 0x00) waits outside the queue for its retry. Credit updates written
+         * before it would be wiped by it, so the credit lane is neither served
+         * nor coalesced until the reset is requeued at its front.
+         * Guarded by the DeviceProperties.
+         */
+        private boolean fCreditResetPending;
+
+        /**
+         * Queue depth, wait and service times of the GATT commands. The optional
+         * mGattStatisticsDump logs them periodically (see setBGXGattStatisticsDump()).
+         */
+        private final BGXGattStatistics mGattStatistics;
+        private Runnable mGattStatisticsDump;
+
+        /**
+         * Queued by queueTxDrain(). There is never more than one drain in the
+         * queue, so the same instance is reused.
+         */
+        private final GattCommand mDrainTxCommand = new DrainTxCommand();
 
         /**
-         * Clear GattBusy flag and execute next Intent from queue.
+         * Clear GattBusy flag and execute next command from queue.
          */
         private void clearGattBusyFlagAndExecuteNext() {
             if (fOTAInProgress) {
@@ -741,17 +1019,21 @@ public class BGXpressService extends JobIntentService {
 
             if (fGattBusy) {
                 fGattBusy = false;
+                mHandler.removeCallbacks(mGattWatchdog);
 
                 int sz;
                 synchronized (this) {
-                    sz = mIntentArray.size();
+                    if (null != mLastExecutedCommand) {
+                        onGattCommandReleased(mLastExecutedCommand);
+                    }
+                    sz = gattQueueSize();
                 }
 
                 if (sz > 0) {
-                    mHandler.post(new Runnable() {
+                    post(new Runnable() {
                         @Override
                         public void run() {
-                            executeNextGattIntent();
+                            executeNextGattCommand();
                         }
                     });
                 }
@@ -759,635 +1041,2154 @@ public class BGXpressService extends JobIntentService {
         }
 
         /**
-         * Add Gatt Intent to queue.
+         * Converts a GATT Intent action into a command and queues it.
          *
          * @param intent - Gatt Intent which is added to queue.
          */
         private void queueGattIntent(Intent intent) {
+            GattCommand command = gattCommandForIntent(intent);
+            if (null == command) {
+                Log.e("bgx_dbg", "No GATT command for " + intent.getAction() + ".");
+                return;
+            }
+
+            queueGattCommand(command);
+        }
+
+        /**
+         * Add a command to the queue.
+         *
+         * @param command - The command which is added to queue.
+         */
+        private void queueGattCommand(GattCommand command) {
             synchronized (this) {
-                mIntentArray.add(intent);
+                if (!addGattCommand(command)) {
+                    return;
+                }
             }
 
             if (!fGattBusy) {
-                boolean fresult = mHandler.post(new Runnable() {
+                boolean fresult = post(new Runnable() {
                     @Override
                     public void run() {
-                        executeNextGattIntent();
+                        executeNextGattCommand();
                     }
                 });
 
                 if (!fresult) {
                     Log.e("bgx_dbg", "Error posting runnable.");
                 } else {
-                    Log.d("bgx_dbg", "Post succeeded of " + intent.getAction() + ".");
+                    Log.d("bgx_dbg", "Post succeeded of " + command.name() + ".");
+                }
+            }
+        }
+
+        /**
+         * Coalesces the command or adds it to the back of its lane. Must hold the lock.
+         *
+         * @return true if the command was added, false if it was coalesced.
+         */
+        private boolean addGattCommand(GattCommand command) {
+            if (coalesceGattCommand(command)) {
+                mGattStatistics.onCoalesced(command.getClass());
+                Log.d("bgx_dbg", "Coalesced " + command.name() + " with a queued command.");
+                return false;
+            }
+
+            command.mQueuedNanos = SystemClock.elapsedRealtimeNanos();
+            gattLane(command.lane()).add(command);
+            mGattStatistics.onQueued(command.getClass(), gattQueueSize());
+            return true;
+        }
+
+        /**
+         * Merges a command into one that is already waiting in its lane, so that
+         * e.g. a burst of credit returns or bus mode reads costs one round trip.
+         * The lane is searched from the back for as long as the command may be
+         * moved ahead of the commands it passes. Must hold the lock.
+         *
+         * @return true if the command was merged and must not be queued.
+         */
+        private boolean coalesceGattCommand(GattCommand command) {
+            if (fCreditResetPending && kGattLaneCredit == command.lane()) {
+                // the credit lane replays behind the reset when it is requeued.
+                return false;
+            }
+
+            Iterator<GattCommand> iterator = gattLane(command.lane()).descendingIterator();
+            while (iterator.hasNext()) {
+                GattCommand pending = iterator.next();
+                if (command.mergeInto(pending)) {
+                    return true;
+                }
+                if (!command.commutesWith(pending)) {
+                    return false;
                 }
             }
+            return false;
         }
 
         /**
-         * Clear Gatt Intent queue.
+         * Clear the GATT command queue.
          */
         private void clearGattQueue() {
             synchronized (this) {
-                mIntentArray.clear();
+                mCreditCommands.clear();
+                mControlCommands.clear();
+                mBulkCommands.clear();
+                mStaleGattCallbacks.clear();
                 fGattBusy = false;
+                fCreditResetPending = false;
+                ++mGattGeneration;
             }
+            mHandler.removeCallbacks(mGattWatchdog);
         }
 
         /**
-         * Execute Intent from Gatt Intent queue.
+         * Reads the extras of a GATT Intent into the corresponding command.
+         *
+         * @return The command, or null if the action is not a GATT operation.
          */
-        private void executeNextGattIntent() {
-            boolean executeAnother = false;
-            if (!fGattBusy) {
-                synchronized (this) {
-                    if (mIntentArray.size() > 0) {
-                        Intent intent = mIntentArray.remove(0);
-                        mLastExecutedIntent = intent;
-                        fGattBusy = true;
+        private GattCommand gattCommandForIntent(Intent intent) {
+            switch (intent.getAction()) {
+                case ACTION_WRITE_BUS_MODE:
+                    return new WriteBusModeCommand(intent.getIntExtra("busmode", BusMode.UNKNOWN_MODE), intent.getStringExtra("password"));
+                case ACTION_WRITE_SERIAL_DATA:
+                    return new WriteSerialDataCommand(intent.getStringExtra("value"));
+                case ACTION_WRITE_SERIAL_BIN_DATA:
+                    return new WriteSerialBinDataCommand(intent.getByteArrayExtra("value"));
+                case ACTION_DRAIN_TX_BUFFER:
+                    return mDrainTxCommand;
+                case ACTION_READ_BUS_MODE:
+                    return new ReadBusModeCommand();
+                case ACTION_BGX_GET_INFO:
+                    return new GetInfoCommand();
+                case ACTION_OTA_WITH_IMAGE:
+                case ACTION_OTA_FIRMWARE_IMAGE:
+                    return new OtaCommand(ACTION_OTA_FIRMWARE_IMAGE.equals(intent.getAction()),
+                            intent.getStringExtra("image_path"),
+                            intent.getStringExtra("password"),
+                            intent.getIntExtra("writeType", WRITE_TYPE_DEFAULT));
+                case ACTION_ENABLE_MODE_CHANGE_NOTIFICATION:
+                    return new EnableModeChangeNotificationCommand();
+                case ACTION_ENABLE_TX_CHANGE_NOTIFICATION:
+                    return new EnableTxChangeNotificationCommand();
+                case ACTION_SET_2M_PHY:
+                    return new Set2MPhyCommand();
+                case ACTION_READ_FIRMWARE_REVISION:
+                    return new ReadFirmwareRevisionCommand();
+                case ACTION_REQUEST_MTU:
+                    return new RequestMtuCommand(intent.getIntExtra("mtu", 250));
+                case ACTION_SETUP_FAST_ACK:
+                    return new SetupFastAckCommand();
+                case ACTION_UPDATE_FAST_ACK_RX_BYTES:
+                    return new UpdateFastAckRxBytesCommand(intent.getIntExtra("opcode", -1), intent.getIntExtra("rxbytes", 0));
+                case ACTION_SET_WRITE_TYPE:
+                    return new SetWriteTypeCommand(intent.getBooleanExtra("acknowledgedWrites", false));
+                case ACTION_SET_READ_TYPE:
+                    return new SetReadTypeCommand(intent.getBooleanExtra("acknowledgedReads", false));
+                case BGX_CONNECTION_STATUS_CHANGE:
+                    return new PublishEventCommand(intent);
+                case ACTION_POLL_BOND_STATUS:
+                    return new PollBondStatusCommand();
+                default:
+                    return null;
+            }
+        }
 
-                        Log.d("bgx_dbg", "Executing " + mLastExecutedIntent.getAction() + " from GATT queue.");
+        /**
+         * Must be called while synchronized on this.
+         */
+        private ArrayDeque<GattCommand> gattLane(int lane) {
+            switch (lane) {
+                case kGattLaneCredit:
+                    return mCreditCommands;
+                case kGattLaneBulk:
+                    return mBulkCommands;
+                default:
+                    return mControlCommands;
+            }
+        }
 
-                        switch (intent.getAction()) {
-                            case ACTION_WRITE_BUS_MODE: {
-                                int busMode = intent.getIntExtra("busmode", BusMode.UNKNOWN_MODE);
+        /**
+         * Must be called while synchronized on this.
+         */
+        private int gattQueueSize() {
+            return mCreditCommands.size() + mControlCommands.size() + mBulkCommands.size();
+        }
 
-                                String password = intent.getStringExtra("password");
-                                if (null == password) {
-                                    password = "";
-                                }
+        /**
+         * Must be called while synchronized on this.
+         *
+         * @return The lane holding the next command to execute or null if the queue is empty.
+         */
+        private ArrayDeque<GattCommand> nextGattLane() {
+            if (!mCreditCommands.isEmpty() && !fCreditResetPending) {
+                return mCreditCommands;
+            } else if (!mControlCommands.isEmpty()) {
+                return mControlCommands;
+            } else if (!mBulkCommands.isEmpty()) {
+                return mBulkCommands;
+            }
+            return null;
+        }
 
-                                byte[] modevalue;
+        /**
+         * @return true if a credit return or control operation is waiting for the GATT.
+         */
+        private boolean hasPriorityGattCommands() {
+            synchronized (this) {
+                return (!mCreditCommands.isEmpty() && !fCreditResetPending) || !mControlCommands.isEmpty();
+            }
+        }
 
-                                // only send the password + null if the password is supplied because
-                                //  writing more than one byte on a version of BGX firmware < 1.2 causes an error
-                                if (BusMode.REMOTE_COMMAND_MODE == busMode && password.length() > 0) {
-                                    modevalue = new byte[password.length() + 2];
-                                    modevalue[0] = (byte) busMode;
+        /**
+         * Execute the next command from the GATT command queue.
+         */
+        private void executeNextGattCommand() {
+            GattCommand command = null;
+            GattCommand nextCommand = null;
 
-                                    for (int i = 0; i < password.length(); ++i) {
-                                        modevalue[1 + i] = password.getBytes()[i];
-                                    }
+            synchronized (this) {
+                ArrayDeque<GattCommand> lane = nextGattLane();
+                if (fGattBusy) {
+                    nextCommand = (null == lane) ? null : lane.peek();
+                } else if (null != lane) {
+                    command = lane.poll();
+                    mLastExecutedCommand = command;
+                    fGattBusy = true;
+
+                    command.mExecutedNanos = SystemClock.elapsedRealtimeNanos();
+                    mGattStatistics.onExecuted(command.getClass(), command.mExecutedNanos - command.mQueuedNanos, gattQueueSize());
+                }
+            }
 
-                                    modevalue[1 + password.length()] = 0;
-                                } else {
-                                    modevalue = new byte[1];
-                                    modevalue[0] = (byte) busMode;
-                                }
+            if (null == command) {
+                if (fGattBusy) {
+                    Log.d("bgx_dbg", "GattBusy - can't execute. Last command: " + gattCommandName(mLastExecutedCommand) + " Next command: " + gattCommandName(nextCommand));
+                }
+                return;
+            }
 
-                                this.mBGXSSModeCharacteristic.setValue(modevalue);
+            Log.d("bgx_dbg", "Executing " + command.name() + " from GATT queue.");
 
-                                if (mBluetoothGatt == null) {
-                                    Log.e("bgx_dbg", "ACTION_WRITE_BUS_MODE: BluetoothGatt is null");
-                                    return;
-                                }
+            // not synchronized: execute() may queue commands and take other locks.
+            if (command.execute()) {
+                armGattWatchdog();
+                return;
+            }
 
-                                boolean result = mBluetoothGatt.writeCharacteristic(this.mBGXSSModeCharacteristic);
-                                if (!result) {
-                                    Log.e("bgx_dbg", "mBGXSSModeCharacteristic write failed.");
-                                }
-                            }
-                            break;
-                            case ACTION_WRITE_SERIAL_DATA: {
-                                synchronized (dataWriteSync) {
-                                    try {
-                                        String string2Write = intent.getStringExtra("value");
-                                        if (null == mData2Write) {
-                                            mData2Write = string2Write.getBytes();
-                                            mWriteOffset = 0;
-                                        } else {
-                                            ByteArrayOutputStream output = new ByteArrayOutputStream();
-
-                                            output.write(mData2Write);
-                                            output.write(string2Write.getBytes());
-
-                                            mData2Write = output.toByteArray();
-                                            Log.d("bgx_dbg", "Queued " + string2Write.length() + "bytes Total: " + output.size() + " bytes");
-                                        }
-                                    } catch (IOException exception) {
-                                        Log.e("bgx_dbg", exception.getLocalizedMessage());
-                                    }
-                                }
-                                writeChunkOfData();
-                            }
-                            break;
-                            case ACTION_WRITE_SERIAL_BIN_DATA: {
-                                mData2Write = intent.getByteArrayExtra("value");
-                                mWriteOffset = 0;
-                                writeChunkOfData();
-                            }
-                            break;
-                            case ACTION_READ_BUS_MODE: {
-                                assert (null != this.mBGXSSModeCharacteristic);
+            // finished without waiting for a GATT callback.
+            synchronized (this) {
+                fGattBusy = false;
+                onGattCommandReleased(command);
+            }
 
-                                if (mBluetoothGatt == null) {
-                                    Log.e("bgx_dbg", "ACTION_READ_BUS_MODE: BluetoothGatt is null");
-                                    return;
-                                }
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    executeNextGattCommand();
+                }
+            });
+        }
 
-                                boolean result = mBluetoothGatt.readCharacteristic(this.mBGXSSModeCharacteristic);
-                                if (!result) {
-                                    Log.e("bgx_dbg", "mBluetoothGatt.readCharacteristic failed for ACTION_READ_BUS_MODE.");
-                                    queueGattIntent(new Intent(BGXpressService.ACTION_READ_BUS_MODE));
-                                }
-                            }
-                            break;
-                            case ACTION_BGX_GET_INFO: {
-                                if (null != this.mOTADeviceIDCharacterisitc) {
-                                    if (mBluetoothGatt == null) {
-                                        Log.e("bgx_dbg", "ACTION_BGX_GET_INFO: BluetoothGatt is null");
-                                        return;
-                                    }
+        /**
+         * Must be called while synchronized on this.
+         */
+        private void onGattCommandReleased(GattCommand command) {
+            mGattStatistics.onReleased(command.getClass(), SystemClock.elapsedRealtimeNanos() - command.mExecutedNanos);
+            command.complete();
+        }
 
-                                    boolean readResult = mBluetoothGatt.readCharacteristic(this.mOTADeviceIDCharacterisitc);
-                                    if (!readResult) {
-                                        Log.e("bgx_dbg", "Read initiation failed.");
-                                        queueGattIntent(new Intent(BGXpressService.ACTION_BGX_GET_INFO));
-                                    } else {
-                                        Log.d("bgx_dbg", "Began reading the OTADeviceIDCharacteristic");
-                                    }
-                                } else {
-                                    Log.e("bgx_dbg", "ERROR: ACTION_BGX_GET_INFO failed because mOTADeviceIDCharacteristic is null.");
-                                }
-                            }
-                            break;
-                            case ACTION_OTA_WITH_IMAGE: {
-                                fOTAUserCanceled = false;
-                                fOTAInProgress = true;
-                                String image_path = intent.getStringExtra("image_path");
-                                String password = intent.getStringExtra("password");
-                                int theWriteType = intent.getIntExtra("writeType", WRITE_TYPE_DEFAULT);
-
-                                mOTADataCharacteristic.setWriteType(theWriteType);
-                                handleActionOTAWithImage(image_path, password);
-                            }
-                            break;
-                            case ACTION_OTA_FIRMWARE_IMAGE: {
-                                fOTAUserCanceled = false;
-                                fOTAInProgress = true;
-                                String image_path = intent.getStringExtra("image_path");
-                                String password = intent.getStringExtra("password");
-                                int theWriteType = intent.getIntExtra("writeType", WRITE_TYPE_DEFAULT);
-
-                                mOTADataCharacteristic.setWriteType(theWriteType);
-                                handleActionOtaFirmwareImage(image_path, password);
-                            }
-                            break;
-                            case ACTION_ENABLE_MODE_CHANGE_NOTIFICATION: {
-                                assert (null != mBGXSSModeCharacteristic);
-                                BluetoothGattDescriptor desc = mBGXSSModeCharacteristic.getDescriptor(UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"));
+        /**
+         * Posts work for this device to the shared mHandler, using the device as
+         * the token so that cancelling its connection removes only its own work.
+         */
+        private boolean post(Runnable r) {
+            return postDelayed(r, 0);
+        }
 
-                                assert (null != desc);
-                                desc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        private boolean postDelayed(Runnable r, long delayMillis) {
+            return mHandler.postAtTime(r, this, SystemClock.uptimeMillis() + delayMillis);
+        }
 
-                                if (mBluetoothGatt == null) {
-                                    Log.e("bgx_dbg", "ACTION_ENABLE_MODE_CHANGE_NOTIFICATION: BluetoothGatt is null");
-                                    return;
-                                }
+        private String gattCommandName(GattCommand command) {
+            return (null == command) ? "null" : command.name();
+        }
 
-                                boolean fresult = mBluetoothGatt.writeDescriptor(desc);
-                                if (!fresult) {
-                                    Log.e("bgx_dbg", "An error occurred writing to the characteristic descriptor for BGXSSMode.");
-                                    queueGattIntent(new Intent(BGXpressService.ACTION_ENABLE_MODE_CHANGE_NOTIFICATION));
-                                } else {
-                                    fresult = mBluetoothGatt.setCharacteristicNotification(mBGXSSModeCharacteristic, true);
-                                    if (!fresult) {
-                                        Log.e("bgx_dbg", "Failed to set characterisitic notification for bgxss mode.");
-                                        queueGattIntent(new Intent(BGXpressService.ACTION_ENABLE_MODE_CHANGE_NOTIFICATION));
-                                    }
-                                }
-                            }
-                            break;
-                            case ACTION_ENABLE_TX_CHANGE_NOTIFICATION: {
-                                assert (null != mTxCharacteristic);
-                                BluetoothGattDescriptor desc = mTxCharacteristic.getDescriptor(UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"));
-                                desc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        final class StaleGattCallback {
+            final Object mTarget;
+            final long mExpires;
 
-                                if (mBluetoothGatt == null) {
-                                    Log.e("bgx_dbg", "ACTION_ENABLE_TX_CHANGE_NOTIFICATION: BluetoothGatt is null");
-                                    return;
-                                }
+            StaleGattCallback(Object target, long expires) {
+                this.mTarget = target;
+                this.mExpires = expires;
+            }
+        }
 
-                                boolean fresult = mBluetoothGatt.writeDescriptor(desc);
-                                if (!fresult) {
-                                    Log.e("bgx_dbg", "An error occurred writing to the characteristic descriptor for Tx. (1)");
-                                    queueGattIntent(new Intent(BGXpressService.ACTION_ENABLE_TX_CHANGE_NOTIFICATION));
-                                }
-                                mBluetoothGatt.setCharacteristicNotification(mTxCharacteristic, true);
-                            }
-                            break;
-                            case ACTION_SET_2M_PHY: {
-                                if (Build.VERSION.SDK_INT >= 26) {
-                                    if (mBluetoothGatt == null) {
-                                        Log.e("bgx_dbg", "ACTION_SET_2M_PHY: BluetoothGatt is null");
-                                        return;
-                                    }
+        /**
+         * Remembers that a callback for target is still owed although its
+         * command no longer holds the GATT.
+         */
+        private synchronized void markGattCallbackStale(Object target) {
+            if (null == target) {
+                return;
+            }
 
-                                    mBluetoothGatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+            if (mStaleGattCallbacks.size() == kStaleGattCallbackLimit) {
+                mStaleGattCallbacks.poll();
+            }
+            mStaleGattCallbacks.add(new StaleGattCallback(target, SystemClock.elapsedRealtime() + kStaleGattCallbackLifetime));
+        }
 
-                                    m2mphyRunnable = new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            m2mphyRunnable = null;
-                                            clearGattBusyFlagAndExecuteNext();
-                                        }
-                                    };
-                                    mHandler.postDelayed(m2mphyRunnable, 2500);
-                                }
-                            }
-                            break;
-                            case ACTION_READ_FIRMWARE_REVISION: {
-                                if (mBluetoothGatt == null) {
-                                    Log.e("bgx_dbg", "ACTION_READ_FIRMWARE_REVISION: BluetoothGatt is null");
-                                    return;
-                                }
+        /**
+         * Decides whether a GATT callback belongs to the command holding the GATT,
+         * i.e. whether it may release the GATT or continue the command.
+         *
+         * @param target The characteristic or descriptor of the callback, or the
+         *               command class for callbacks without one (see GattCommand.gattTarget()).
+         * @return false for a late callback of an abandoned command or a callback
+         * that does not match the command holding the GATT.
+         */
+        private synchronized boolean acceptGattCallback(Object target) {
+            long now = SystemClock.elapsedRealtime();
+            Iterator<StaleGattCallback> iterator = mStaleGattCallbacks.iterator();
+            while (iterator.hasNext()) {
+                StaleGattCallback stale = iterator.next();
+                if (stale.mExpires <= now) {
+                    iterator.remove();
+                } else if (stale.mTarget == target) {
+                    iterator.remove();
+                    Log.w("bgx_dbg", "Ignoring a late GATT callback of an abandoned command.");
+                    return false;
+                }
+            }
 
-                                if (!mBluetoothGatt.readCharacteristic(mFirmwareRevisionCharacteristic)) {
-                                    Log.d("bgx_dbg", "Read FirmwareRevisionCharacteristic failed.");
-                                }
-                            }
-                            break;
-                            case ACTION_REQUEST_MTU: {
-                                int mtu;
-                                mtu = intent.getIntExtra("mtu", 250);
+            GattCommand command = mLastExecutedCommand;
+            if (!fGattBusy || null == command) {
+                return false;
+            }
 
-                                if (mBluetoothGatt != null) {
-                                    if (!mBluetoothGatt.requestMtu(mtu)) {
-                                        Log.d("bgx_dbg", "Error: requestMTU returned false.");
-                                    } else {
-                                        Log.d("bgx_dbg", "Called mBluetoothGatt.requestMtu(" + mtu + ")");
-                                    }
-                                } else {
-                                    executeAnother = true;
-                                }
-                            }
-                            break;
-                            case ACTION_SETUP_FAST_ACK: {
-                                if ((mRxCharacteristic.getProperties() & PROPERTY_NOTIFY) != 0) {
-                                    Log.d("bgx_fastAck", "fastAck: YES");
+            Object expected = command.gattTarget();
+            if (null != expected && expected != target) {
+                Log.w("bgx_dbg", "Ignoring a GATT callback that does not belong to " + command.name() + ".");
+                return false;
+            }
+            return true;
+        }
 
-                                    BluetoothGattDescriptor desc = mRxCharacteristic.getDescriptor(UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"));
-                                    desc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        /**
+         * @return The client characteristic configuration descriptor of characteristic.
+         */
+        private BluetoothGattDescriptor clientConfigDescriptor(BluetoothGattCharacteristic characteristic) {
+            return (null == characteristic) ? null : characteristic.getDescriptor(UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"));
+        }
 
-                                    if (mBluetoothGatt == null) {
-                                        Log.e("bgx_dbg", "ACTION_SETUP_FAST_ACK: BluetoothGatt is null");
-                                        return;
-                                    }
+        /**
+         * (Re)starts the timeout of the command holding the GATT. Called when
+         * the command starts and whenever it makes progress.
+         */
+        private void armGattWatchdog() {
+            GattCommand command = mLastExecutedCommand;
+            mHandler.removeCallbacks(mGattWatchdog);
 
-                                    boolean fresult = mBluetoothGatt.writeDescriptor(desc);
-                                    if (!fresult) {
-                                        Log.e("bgx_dbg", "An error occurred writing to the characteristic descriptor for Rx.");
-                                    }
+            if (fGattBusy && null != command && command.timeout() > 0) {
+                postDelayed(mGattWatchdog, command.timeout());
+            }
+        }
 
-                                    mBluetoothGatt.setCharacteristicNotification(mRxCharacteristic, true);
+        /**
+         * Runs on the handler thread when the command holding the GATT has
+         * not made progress within its timeout.
+         */
+        private void onGattCommandTimeout() {
+            GattCommand command;
+            boolean fRetry;
 
-                                    mFastAck = true;
-                                    mFastAckRxBytes = 0;
-                                    mFastAckTxBytes = 0;
-                                    mFastAckRxBytesToReturn = 0;
+            synchronized (this) {
+                command = mLastExecutedCommand;
+                if (!fGattBusy || null == command || fOTAInProgress) {
+                    return;
+                }
 
-                                    updateFastAckRxBytes(0, kInitialFastAckRxBytes);
-                                } else {
-                                    Log.d("bgx_fastAck", "fastAck: NO");
+                fRetry = command.retryOnTimeout() && 0 == command.mTimeoutCount;
+                ++command.mTimeoutCount;
+                mGattStatistics.onTimeout(command.getClass());
+            }
 
-                                    mFastAck = false;
-                                    fGattBusy = false;
-                                    executeAnother = true;
-                                }
-                            }
-                            break;
-                            case ACTION_UPDATE_FAST_ACK_RX_BYTES: {
-                                BluetoothGattCharacteristic txChar;
-
-                                if (null == mTxCharacteristic2) {
-                                    txChar = mTxCharacteristic;
-                                } else {
-                                    txChar = mTxCharacteristic2;
-                                }
+            Log.e("bgx_dbg", "GATT command " + command.name() + " timed out after " + command.timeout() + " ms.");
 
-                                if (null == txChar) {
-                                    Log.e("bgx_dbg", "Error: Tx Characteristic could not be found.");
-                                }
+            command.timedOut();
+            if (fRetry) {
+                fRetry = retryGattCommand(command);
+            }
 
-                                int opcode = intent.getIntExtra("opcode", -1);
-                                int rxbytes = intent.getIntExtra("rxbytes", 0);
+            Intent intent = new Intent(BGX_GATT_TIMEOUT);
+            intent.putExtra("operation", command.name());
+            intent.putExtra("timeout", (long) command.timeout());
+            intent.putExtra("retrying", fRetry);
+            if (null != mBluetoothGatt) {
+                intent.putExtra("DeviceAddress", mBluetoothGatt.getDevice().getAddress());
+            }
+            publishEvent(intent);
 
-                                byte[] val = new byte[3];
-                                val[0] = (byte) opcode;
-                                val[1] = (byte) (rxbytes & 0xFF);
-                                val[2] = (byte) ((rxbytes & 0xFF00) >> 8);
+            clearGattBusyFlagAndExecuteNext();
+        }
 
-                                txChar.setValue(val);
+        /**
+         * Forgets the TX chunks whose onCharacteristicWrite() never arrived.
+         * Without FastAck the writes containing them fail because it is not
+         * known whether they reached the BGX. With FastAck they still complete
+         * if the BGX returns their credits.
+         */
+        private void abandonTxChunksInFlight() {
+            ArrayList<BGXWriteFuture> failedWrites = null;
+            int abandoned = 0;
+
+            synchronized (dataWriteSync) {
+                long chunkEnd = -1;
+                while (mTxChunks.inFlight() > 0) {
+                    chunkEnd = mTxChunks.takeEnd();
+                    ++abandoned;
+                }
 
-                                if (mBluetoothGatt == null) {
-                                    Log.e("bgx_dbg", "ACTION_UPDATE_FAST_ACK_RX_BYTES: BluetoothGatt is null");
-                                    return;
-                                }
+                if (chunkEnd >= 0 && !mFastAck) {
+                    failedWrites = takeTxWritesStartingBefore(chunkEnd);
+                }
+            }
 
-                                if (mBluetoothGatt.writeCharacteristic(txChar)) {
-                                    Log.d("bgx_fastAck", "Write of fastAckRxBytes: SUCCESS.");
-                                    switch (opcode) {
-                                        case 0x00:
-                                            mFastAckRxBytes = rxbytes;
-                                            Log.d("bgx_fastAck", "fastAckRxBytes: " + mFastAckRxBytes + " (initial)");
-                                            break;
-                                        case 0x01:
-                                            mFastAckRxBytes += rxbytes;
-                                            Log.d("bgx_fastAck", "fastAckRxBytes: " + mFastAckRxBytes + " (added " + rxbytes + ")");
-                                            break;
-                                    }
-                                } else {
-                                    Log.d("bgx_fastAck", "Write of fastAckRxBytes: FAIL.");
-                                }
-                            }
-                            break;
-                            case ACTION_SET_WRITE_TYPE: {
-                                boolean acknowledgedWrites = intent.getBooleanExtra("acknowledgedWrites", false);
-                                int writeType;
+            for (int i = 0; i < abandoned; ++i) {
+                markGattCallbackStale(serialDataCharacteristic());
+            }
 
-                                if (acknowledgedWrites && !mFastAck) {
-                                    writeType = WRITE_TYPE_DEFAULT;
-                                } else {
-                                    writeType = WRITE_TYPE_NO_RESPONSE;
-                                }
+            failTxWrites(failedWrites, new IOException("Write timed out."));
+            queueTxDrain();
+        }
 
-                                mRxCharacteristic.setWriteType(writeType);
-                                if (null != mRxCharacteristic2) {
-                                    mRxCharacteristic2.setWriteType(writeType);
-                                }
+        /**
+         * Retries of commands that could not be started, e.g. because the
+         * Bluetooth stack was busy and readCharacteristic() returned false.
+         * The delay doubles with each attempt, with half of it randomized so
+         * that devices do not retry in lock step.
+         */
+        private static final int kGattMaxAttempts = 5;
+        private static final int kGattRetryBaseDelay = 20;
+        private static final int kGattRetryMaxDelay = 1000;
+        private final Random mGattRetryRandom = new Random();
 
-                                fGattBusy = false;
-                                executeAnother = true;
-                            }
-                            break;
-                            case ACTION_SET_READ_TYPE: {
-                                boolean acknowledgedReads = intent.getBooleanExtra("acknowledgedReads", false);
+        /**
+         * @return The delay in milliseconds before retrying an operation that has failed attempts times.
+         */
+        private int gattRetryDelay(int attempts) {
+            int delay = Math.min(kGattRetryMaxDelay, kGattRetryBaseDelay << Math.min(attempts - 1, 16));
+            return delay / 2 + mGattRetryRandom.nextInt(delay / 2 + 1);
+        }
 
-                                BluetoothGattDescriptor desc = mTxCharacteristic.getDescriptor(UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"));
+        /**
+         * Queues a command again after a backoff delay, or publishes BGX_GATT_ERROR
+         * if it has already been attempted kGattMaxAttempts times. Does not release
+         * the GATT; a command that calls this from execute() normally returns false.
+         *
+         * @return true if a retry was scheduled.
+         */
+        private boolean retryGattCommand(final GattCommand command) {
+            int attempts;
+            final int generation;
+            synchronized (this) {
+                attempts = ++command.mAttempts;
+                generation = mGattGeneration;
+            }
 
-                                if (acknowledgedReads && !mFastAck) {
-                                    desc.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
-                                } else {
-                                    desc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                                }
+            if (attempts >= kGattMaxAttempts) {
+                Log.e("bgx_dbg", "GATT command " + command.name() + " failed after " + attempts + " attempts.");
 
-                                if (mBluetoothGatt == null) {
-                                    Log.e("bgx_dbg", "ACTION_SET_READ_TYPE: BluetoothGatt is null");
-                                    return;
-                                }
+                Intent intent = new Intent(BGX_GATT_ERROR);
+                intent.putExtra("operation", command.name());
+                intent.putExtra("attempts", attempts);
+                if (null != mBluetoothGatt) {
+                    intent.putExtra("DeviceAddress", mBluetoothGatt.getDevice().getAddress());
+                }
+                publishEvent(intent);
+                return false;
+            }
 
-                                boolean fresult = mBluetoothGatt.writeDescriptor(desc);
-                                if (!fresult) {
-                                    Log.e("bgx_dbg", "An error occurred writing to the characteristic descriptor for Tx. (2)");
-                                }
+            int delay = gattRetryDelay(attempts);
 
-                                mBluetoothGatt.setCharacteristicNotification(mTxCharacteristic, true);
-                            }
-                            break;
-                            case BGX_CONNECTION_STATUS_CHANGE:
-                                sendBroadcast(intent);
-                                fGattBusy = false;
-                                executeAnother = true;
-                                break;
-                            case ACTION_POLL_BOND_STATUS: {
-                                boolean fbonded = false;
+            Log.d("bgx_dbg", "Retrying " + command.name() + " in " + delay + " ms (attempt " + (attempts + 1) + ").");
 
-                                if (mBluetoothGatt == null) {
-                                    Log.e("bgx_dbg", "ACTION_POLL_BOND_STATUS: BluetoothGatt is null");
-                                    return;
-                                }
+            postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    requeueGattCommand(command, generation);
+                }
+            }, delay);
+            return true;
+        }
 
-                                int bondState = mBluetoothGatt.getDevice().getBondState();
-                                switch (bondState) {
-                                    case BOND_NONE: {
-                                        Log.d("bgx_dbg", "ACTION_POLL_BOND_STATUS: BOND_NONE");
+        /**
+         * Puts a command that is being retried at the front of its lane. It was
+         * queued before everything now in the lane, so those commands are queued
+         * again behind it and may coalesce with it.
+         *
+         * @param generation The value of mGattGeneration when the retry was scheduled.
+         */
+        private void requeueGattCommand(GattCommand command, int generation) {
+            synchronized (this) {
+                if (generation != mGattGeneration || null == mBluetoothGatt) {
+                    Log.d("bgx_dbg", "Dropping the retry of " + command.name() + " from an earlier connection.");
+                    return;
+                }
 
-                                        if (mLastBondState != bondState) {
-                                            Log.e("bgx_dbg", "Bond state has moved from " + mLastBondState + "to " + bondState + " (might mean bonding totally failed and we need to recover).");
-                                        }
-                                    }
-                                    break;
-                                    case BluetoothDevice.BOND_BONDING: {
-                                        Log.d("bgx_dbg", "ACTION_POLL_BOND_STATUS: BOND_BONDING");
-                                    }
-                                    break;
-                                    case BluetoothDevice.BOND_BONDED: {
-                                        Log.d("bgx_dbg", "ACTION_POLL_BOND_STATUS: BOND_BONDED");
-                                        fbonded = true;
+                if (command instanceof UpdateFastAckRxBytesCommand && 0x00 == ((UpdateFastAckRxBytesCommand) command).mOpcode) {
+                    fCreditResetPending = false;
+                }
 
-                                        Intent broadcastIntent = new Intent();
-                                        broadcastIntent.setAction(BGX_CONNECTION_STATUS_CHANGE);
-                                        broadcastIntent.putExtra("bgx-connection-status", INTERROGATING);
-                                        broadcastIntent.putExtra("device", mBluetoothGatt.getDevice());
-                                        broadcastIntent.putExtra("DeviceAddress", mBluetoothGatt.getDevice().getAddress());
-                                        broadcastIntent.putExtra("bonded", true);
-                                        sendBroadcast(broadcastIntent);
-                                    }
-                                    break;
-                                    default:
-                                        Log.e("bgx_err", "getBondState returned unknown value.");
-                                        break;
-                                }
-                                mLastBondState = bondState;
+                ArrayDeque<GattCommand> lane = gattLane(command.lane());
+                ArrayList<GattCommand> queued = new ArrayList<>(lane);
+                lane.clear();
 
-                                fGattBusy = false;
-                                if (fbonded) {
-                                    boolean fResult = mBluetoothGatt.discoverServices();
+                command.mQueuedNanos = SystemClock.elapsedRealtimeNanos();
+                lane.add(command);
+                mGattStatistics.onQueued(command.getClass(), gattQueueSize() + queued.size());
 
-                                    Log.d("bgx_dbg", "discoverServices: " + (fResult ? "true" : "false"));
-                                } else if (!fUserConnectionCanceled) {
-                                    mHandler.postAtTime(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            Intent intent = new Intent();
-                                            intent.setAction(ACTION_POLL_BOND_STATUS);
-                                            queueGattIntent(intent);
-                                        }
-                                    }, 500);
-                                }
-                            }
-                            break;
-                        }
+                for (GattCommand pending : queued) {
+                    if (coalesceGattCommand(pending)) {
+                        mGattStatistics.onCoalesced(pending.getClass());
+                    } else {
+                        lane.add(pending);
                     }
                 }
-            } else {
-                Intent nextIntent = null;
-                if (mIntentArray.size() > 0) {
-                    nextIntent = mIntentArray.get(0);
-                }
-
-                String nextAction = "null";
-
-                if (null != nextIntent) {
-                    nextAction = nextIntent.getAction();
-                }
-
-                Log.d("bgx_dbg", "GattBusy - can't execute. Last intent action: " + mLastExecutedIntent.getAction() + " Next intent action: " + nextAction);
             }
 
-            if (!fGattBusy && executeAnother) {
-                mHandler.post(new Runnable() {
+            if (!fGattBusy) {
+                post(new Runnable() {
                     @Override
                     public void run() {
-                        executeNextGattIntent();
+                        executeNextGattCommand();
                     }
                 });
             }
         }
 
         /**
-         * @param opcode  Either 0x00 or 0x01. 0x00 sends the initial value and 0x01 sends value to add to rxbytes.
-         * @param rxbytes The value to send in the second two bytes in the TX backchannel.
+         * An operation that needs exclusive use of the GATT.
+         *
+         * <p>The subclasses below are the only commands. Each one carries its
+         * arguments as fields, so queueing and dispatching a command needs
+         * neither an Intent nor a lookup by action string.
          */
-        void updateFastAckRxBytes(int opcode, int rxbytes) {
-            if (0x01 == opcode) {
-                mFastAckRxBytesToReturn += rxbytes;
-                if (mFastAckRxBytesToReturn > kFastAckRxReturnThreshold) {
-                    Intent intent = new Intent();
-                    intent.setAction(ACTION_UPDATE_FAST_ACK_RX_BYTES);
-                    intent.putExtra("opcode", opcode);
-                    intent.putExtra("rxbytes", mFastAckRxBytesToReturn);
-                    queueGattIntent(intent);
-                    mFastAckRxBytesToReturn = 0;
-                }
-            } else if (0x00 == opcode) {
-                Intent intent = new Intent();
-                intent.setAction(ACTION_UPDATE_FAST_ACK_RX_BYTES);
-                intent.putExtra("opcode", opcode);
-                intent.putExtra("rxbytes", rxbytes);
-                queueGattIntent(intent);
+        abstract class GattCommand {
+
+            /**
+             * The number of times the command has timed out or failed to start, and
+             * when it was last queued and executed. Guarded by the DeviceProperties.
+             */
+            int mTimeoutCount;
+            int mAttempts;
+            long mQueuedNanos;
+            long mExecutedNanos;
+
+            /**
+             * Starts the operation. Called on the handler thread without holding
+             * the lock of the DeviceProperties.
+             *
+             * @return true if the operation holds the GATT until a callback calls
+             * clearGattBusyFlagAndExecuteNext(), false if it has already finished.
+             */
+            abstract boolean execute();
+
+            /**
+             * Called once the operation has released the GATT.
+             */
+            void complete() {
+            }
+
+            /**
+             * @return The queue lane of the command.
+             */
+            int lane() {
+                return kGattLaneControl;
+            }
+
+            /**
+             * @return How long, in milliseconds, the command may hold the GATT
+             * without progress before the watchdog abandons it. 0 for no limit.
+             */
+            int timeout() {
+                return mGattTimeout;
+            }
+
+            /**
+             * Called by the watchdog when the command times out, before the GATT
+             * is released. Cleans up state that waits for the missing callback.
+             */
+            void timedOut() {
+                markGattCallbackStale(gattTarget());
+            }
+
+            /**
+             * @return What the callback finishing the command refers to: the
+             * characteristic it reads or writes, the descriptor it writes, or the
+             * command class for callbacks without either. null if the command
+             * accepts any callback.
+             */
+            Object gattTarget() {
+                return null;
+            }
+
+            /**
+             * @return true if executing the command again is harmless, in which case
+             * it is retried (with backoff) once after a timeout.
+             */
+            boolean retryOnTimeout() {
+                return false;
+            }
+
+            /**
+             * Folds this command into a queued command that has not executed yet.
+             * Called while synchronized on the DeviceProperties.
+             *
+             * @return true if pending now also does the work of this command.
+             */
+            boolean mergeInto(GattCommand pending) {
+                return false;
+            }
+
+            /**
+             * @return true if this command may execute before the queued command
+             * pending without changing the outcome, in which case coalescing looks
+             * further up the queue.
+             */
+            boolean commutesWith(GattCommand pending) {
+                return false;
+            }
+
+            String name() {
+                return getClass().getSimpleName();
             }
         }
 
-        private BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        /**
+         * A command that reads a value that only the BGX changes or enables a
+         * notification. Executing it twice has the same effect as once, so it
+         * is dropped while another command of its type is queued behind commands
+         * it commutes with. Each subclass lists the commands that touch none of
+         * the state it touches.
+         */
+        abstract class IdempotentCommand extends GattCommand {
+            @Override
+            boolean mergeInto(GattCommand pending) {
+                return pending.getClass() == getClass();
+            }
+        }
+
+        final class WriteBusModeCommand extends GattCommand {
+            private int mBusMode;
+            private String mPassword;
+
+            WriteBusModeCommand(int busMode, String password) {
+                this.mBusMode = busMode;
+                this.mPassword = (null == password) ? "" : password;
+            }
 
             @Override
-            public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
-                if (null != m2mphyRunnable) {
-                    mHandler.removeCallbacks(m2mphyRunnable);
-                    m2mphyRunnable = null;
+            boolean retryOnTimeout() {
+                return true;
+            }
+
+            /**
+             * Consecutive bus mode writes collapse to the last one.
+             */
+            @Override
+            boolean mergeInto(GattCommand pending) {
+                if (!(pending instanceof WriteBusModeCommand)) {
+                    return false;
                 }
 
-                if (BluetoothGatt.GATT_SUCCESS == status) {
-                    switch (txPhy) {
-                        case BluetoothDevice.PHY_LE_1M:
-                            Log.d("bgx_dbg", "txPhy: 1M PHY");
-                            break;
-                        case BluetoothDevice.PHY_LE_2M:
-                            Log.d("bgx_dbg", "txPhy: 2M PHY");
-                            break;
-                        case BluetoothDevice.PHY_LE_CODED:
-                            Log.d("bgx_dbg", "txPhy: CODED PHY");
-                            break;
-                    }
+                WriteBusModeCommand write = (WriteBusModeCommand) pending;
+                write.mBusMode = mBusMode;
+                write.mPassword = mPassword;
+                return true;
+            }
 
-                    switch (rxPhy) {
-                        case BluetoothDevice.PHY_LE_1M:
-                            Log.d("bgx_dbg", "rxPhy: 1M PHY");
-                            break;
-                        case BluetoothDevice.PHY_LE_2M:
-                            Log.d("bgx_dbg", "rxPhy: 2M PHY");
-                            break;
-                        case BluetoothDevice.PHY_LE_CODED:
-                            Log.d("bgx_dbg", "rxPhy: CODED PHY");
-                            break;
+            @Override
+            boolean execute() {
+                byte[] modevalue;
+
+                // only send the password + null if the password is supplied because
+                //  writing more than one byte on a version of BGX firmware < 1.2 causes an error
+                if (BusMode.REMOTE_COMMAND_MODE == mBusMode && mPassword.length() > 0) {
+                    modevalue = new byte[mPassword.length() + 2];
+                    modevalue[0] = (byte) mBusMode;
+
+                    for (int i = 0; i < mPassword.length(); ++i) {
+                        modevalue[1 + i] = mPassword.getBytes()[i];
                     }
 
+                    modevalue[1 + mPassword.length()] = 0;
                 } else {
-                    Log.e("bgx_dbg", "onPhyUpdate: ERROR");
+                    modevalue = new byte[1];
+                    modevalue[0] = (byte) mBusMode;
                 }
 
-                clearGattBusyFlagAndExecuteNext();
-            }
+                mBGXSSModeCharacteristic.setValue(modevalue);
 
-            @Override
-            public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
-                if (0 == status) {
-                    mMTUInitialReadComplete = true;
-                    deviceWriteChunkSize = mtu - 3;
+                if (mBluetoothGatt == null) {
+                    Log.e("bgx_dbg", "WriteBusModeCommand: BluetoothGatt is null");
+                    return true;
                 }
 
-                Intent intent = new Intent();
-                intent.setAction(BGX_MTU_CHANGE);
-                intent.putExtra("mtu", mtu);
-                intent.putExtra("status", status);
-                intent.putExtra("deviceAddress", gatt.getDevice().getAddress());
-                sendBroadcast(intent);
+                boolean result = mBluetoothGatt.writeCharacteristic(mBGXSSModeCharacteristic);
+                if (!result) {
+                    Log.e("bgx_dbg", "mBGXSSModeCharacteristic write failed.");
+                    retryGattCommand(this);
+                    return false;
+                }
+                return true;
+            }
 
-                clearGattBusyFlagAndExecuteNext();
+            @Override
+            Object gattTarget() {
+                return mBGXSSModeCharacteristic;
             }
+        }
 
+        /**
+         * A command that writes the TX buffer to the BGX.
+         */
+        abstract class TxCommand extends GattCommand {
             @Override
-            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-                super.onConnectionStateChange(gatt, status, newState);
+            int lane() {
+                return kGattLaneBulk;
+            }
 
-                String snewstate = "?";
-                String sprevstate = "?";
+            @Override
+            void timedOut() {
+                abandonTxChunksInFlight();
+            }
 
-                switch (newState) {
-                    case BluetoothProfile.STATE_DISCONNECTED:
-                        snewstate = "DISCONNECTED";
-                        break;
-                    case BluetoothProfile.STATE_CONNECTING:
-                        snewstate = "CONNECTING";
-                        break;
-                    case BluetoothProfile.STATE_CONNECTED:
-                        snewstate = "CONNECTED";
-                        break;
-                    case BluetoothProfile.STATE_DISCONNECTING:
-                        snewstate = "DISCONNECTING";
-                        break;
-                }
+            @Override
+            Object gattTarget() {
+                return serialDataCharacteristic();
+            }
 
-                switch (mDeviceConnectionState) {
-                    case BluetoothProfile.STATE_DISCONNECTED:
-                        sprevstate = "DISCONNECTED";
-                        break;
-                    case BluetoothProfile.STATE_CONNECTING:
-                        sprevstate = "CONNECTING";
-                        break;
-                    case BluetoothProfile.STATE_CONNECTED:
-                        sprevstate = "CONNECTED";
-                        break;
-                    case BluetoothProfile.STATE_DISCONNECTING:
-                        sprevstate = "DISCONNECTING";
-                        break;
+            /**
+             * Writes the next chunk of the TX buffer.
+             *
+             * @return false if nothing is buffered or in flight, in which case no
+             * callback will follow and the GATT must be released.
+             */
+            boolean drainTxBuffer() {
+                synchronized (dataWriteSync) {
+                    if (mTxBuffer.isEmpty() && 0 == mTxChunks.inFlight()) {
+                        return false;
+                    }
                 }
 
-                if (BluetoothGatt.GATT_SUCCESS != status && BluetoothProfile.STATE_DISCONNECTED == newState) {
-                    Intent errorIntent = new Intent();
-                    errorIntent.setAction(BGX_CONNECTION_ERROR);
-                    errorIntent.putExtra("status", status);
-                    sendBroadcast(errorIntent);
-                }
+                writeChunkOfData();
+                return true;
+            }
+        }
 
-                Log.d("bgx_dbg", "onConnectionStateChanged for " + gatt.getDevice().getName() + " newState: " + snewstate + "(" + newState + ")" + " prevState: " + sprevstate + "(" + mDeviceConnectionState + ")" + " status: " + status);
+        final class WriteSerialDataCommand extends TxCommand {
+            private final String mValue;
 
-                DeviceProperties dp = mDeviceProperties.get(gatt.getDevice().getAddress());
+            WriteSerialDataCommand(String value) {
+                this.mValue = value;
+            }
 
-                if (mDeviceConnectionState != newState) {
-                    mDeviceConnectionState = newState;
+            @Override
+            boolean execute() {
+                if (null != mValue) {
+                    appendTxText(mValue);
+                }
+                return drainTxBuffer();
+            }
+        }
 
-                    Intent broadcastIntent = new Intent();
-                    broadcastIntent.setAction(BGX_CONNECTION_STATUS_CHANGE);
-                    broadcastIntent.putExtra("device", gatt.getDevice());
-                    broadcastIntent.putExtra("DeviceAddress", gatt.getDevice().getAddress());
+        final class WriteSerialBinDataCommand extends TxCommand {
+            private final byte[] mValue;
 
-                    if (null != mBroadcastReceiver && (BluetoothProfile.STATE_DISCONNECTING == mDeviceConnectionState || BluetoothProfile.STATE_DISCONNECTED == mDeviceConnectionState)) {
-                        unregisterReceiver(mBroadcastReceiver);
-                        mBroadcastReceiver = null;
-                    }
+            WriteSerialBinDataCommand(byte[] value) {
+                this.mValue = value;
+            }
 
-                    switch (mDeviceConnectionState) {
-                        case BluetoothProfile.STATE_CONNECTING:
-                            mBGXDeviceConnectionState = BGX_CONNECTION_STATUS.CONNECTING;
+            @Override
+            boolean execute() {
+                if (null != mValue) {
+                    appendTxData(mValue);
+                }
+                return drainTxBuffer();
+            }
+        }
+
+        final class DrainTxCommand extends TxCommand {
+            @Override
+            boolean execute() {
+                synchronized (dataWriteSync) {
+                    fTxDrainQueued = false;
+                }
+                return drainTxBuffer();
+            }
+        }
+
+        final class ReadBusModeCommand extends IdempotentCommand {
+            @Override
+            boolean retryOnTimeout() {
+                return true;
+            }
+
+            /**
+             * A read queued after a bus mode write must see the new bus mode.
+             */
+            @Override
+            boolean commutesWith(GattCommand pending) {
+                return pending instanceof GetInfoCommand
+                        || pending instanceof ReadFirmwareRevisionCommand
+                        || pending instanceof EnableModeChangeNotificationCommand
+                        || pending instanceof EnableTxChangeNotificationCommand
+                        || pending instanceof SetupFastAckCommand
+                        || pending instanceof SetWriteTypeCommand
+                        || pending instanceof SetReadTypeCommand;
+            }
+
+            @Override
+            boolean execute() {
+                assert (null != mBGXSSModeCharacteristic);
+
+                if (mBluetoothGatt == null) {
+                    Log.e("bgx_dbg", "ReadBusModeCommand: BluetoothGatt is null");
+                    return true;
+                }
+
+                boolean result = mBluetoothGatt.readCharacteristic(mBGXSSModeCharacteristic);
+                if (!result) {
+                    Log.e("bgx_dbg", "mBluetoothGatt.readCharacteristic failed for ReadBusModeCommand.");
+                    retryGattCommand(this);
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            Object gattTarget() {
+                return mBGXSSModeCharacteristic;
+            }
+        }
+
+        final class GetInfoCommand extends IdempotentCommand {
+            @Override
+            boolean retryOnTimeout() {
+                return true;
+            }
+
+            /**
+             * The device ID never changes, so only barriers like PublishEventCommand
+             * and link changes stay ahead of the read.
+             */
+            @Override
+            boolean commutesWith(GattCommand pending) {
+                return pending instanceof WriteBusModeCommand
+                        || pending instanceof ReadBusModeCommand
+                        || pending instanceof ReadFirmwareRevisionCommand
+                        || pending instanceof EnableModeChangeNotificationCommand
+                        || pending instanceof EnableTxChangeNotificationCommand
+                        || pending instanceof SetupFastAckCommand
+                        || pending instanceof SetWriteTypeCommand
+                        || pending instanceof SetReadTypeCommand;
+            }
+
+            @Override
+            boolean execute() {
+                if (null != mOTADeviceIDCharacterisitc) {
+                    if (mBluetoothGatt == null) {
+                        Log.e("bgx_dbg", "GetInfoCommand: BluetoothGatt is null");
+                        return true;
+                    }
+
+                    boolean readResult = mBluetoothGatt.readCharacteristic(mOTADeviceIDCharacterisitc);
+                    if (!readResult) {
+                        Log.e("bgx_dbg", "Read initiation failed.");
+                        retryGattCommand(this);
+                        return false;
+                    } else {
+                        Log.d("bgx_dbg", "Began reading the OTADeviceIDCharacteristic");
+                    }
+                } else {
+                    // nothing was read, so no callback will release the GATT.
+                    Log.e("bgx_dbg", "ERROR: GetInfoCommand failed because mOTADeviceIDCharacteristic is null.");
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            Object gattTarget() {
+                return mOTADeviceIDCharacterisitc;
+            }
+        }
+
+        final class OtaCommand extends GattCommand {
+            private final boolean fFirmwareImage;
+            private final String mImagePath;
+            private final String mPassword;
+            private final int mWriteType;
+
+            /**
+             * @param firmwareImage true for ACTION_OTA_FIRMWARE_IMAGE, false for ACTION_OTA_WITH_IMAGE.
+             */
+            OtaCommand(boolean firmwareImage, String imagePath, String password, int writeType) {
+                this.fFirmwareImage = firmwareImage;
+                this.mImagePath = imagePath;
+                this.mPassword = password;
+                this.mWriteType = writeType;
+            }
+
+            @Override
+            int lane() {
+                return kGattLaneBulk;
+            }
+
+            @Override
+            int timeout() {
+                // the OTA holds the GATT for the whole update and handles its own errors.
+                return 0;
+            }
+
+            @Override
+            boolean execute() {
+                fOTAUserCanceled = false;
+                fOTAInProgress = true;
+
+                mOTADataCharacteristic.setWriteType(mWriteType);
+                if (fFirmwareImage) {
+                    handleActionOtaFirmwareImage(mImagePath, mPassword);
+                } else {
+                    handleActionOTAWithImage(mImagePath, mPassword);
+                }
+                return true;
+            }
+        }
+
+        final class EnableModeChangeNotificationCommand extends IdempotentCommand {
+            @Override
+            boolean retryOnTimeout() {
+                return true;
+            }
+
+            /**
+             * A bus mode write must stay on the side of the notification it was
+             * queued on, since it decides whether the change is reported.
+             */
+            @Override
+            boolean commutesWith(GattCommand pending) {
+                return pending instanceof ReadBusModeCommand
+                        || pending instanceof GetInfoCommand
+                        || pending instanceof ReadFirmwareRevisionCommand
+                        || pending instanceof EnableTxChangeNotificationCommand
+                        || pending instanceof SetupFastAckCommand
+                        || pending instanceof SetWriteTypeCommand
+                        || pending instanceof SetReadTypeCommand;
+            }
+
+            @Override
+            boolean execute() {
+                assert (null != mBGXSSModeCharacteristic);
+                BluetoothGattDescriptor desc = mBGXSSModeCharacteristic.getDescriptor(UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"));
+
+                assert (null != desc);
+                desc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+
+                if (mBluetoothGatt == null) {
+                    Log.e("bgx_dbg", "EnableModeChangeNotificationCommand: BluetoothGatt is null");
+                    return true;
+                }
+
+                boolean fresult = mBluetoothGatt.writeDescriptor(desc);
+                if (!fresult) {
+                    Log.e("bgx_dbg", "An error occurred writing to the characteristic descriptor for BGXSSMode.");
+                    retryGattCommand(this);
+                    return false;
+                } else {
+                    fresult = mBluetoothGatt.setCharacteristicNotification(mBGXSSModeCharacteristic, true);
+                    if (!fresult) {
+                        // the retry writes the descriptor again; ignore the callback of this write.
+                        Log.e("bgx_dbg", "Failed to set characterisitic notification for bgxss mode.");
+                        markGattCallbackStale(gattTarget());
+                        retryGattCommand(this);
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            Object gattTarget() {
+                return clientConfigDescriptor(mBGXSSModeCharacteristic);
+            }
+        }
+
+        final class EnableTxChangeNotificationCommand extends IdempotentCommand {
+            @Override
+            boolean retryOnTimeout() {
+                return true;
+            }
+
+            /**
+             * SetReadTypeCommand writes the same descriptor.
+             */
+            @Override
+            boolean commutesWith(GattCommand pending) {
+                return pending instanceof ReadBusModeCommand
+                        || pending instanceof GetInfoCommand
+                        || pending instanceof ReadFirmwareRevisionCommand
+                        || pending instanceof EnableModeChangeNotificationCommand
+                        || pending instanceof SetupFastAckCommand
+                        || pending instanceof SetWriteTypeCommand;
+            }
+
+            @Override
+            boolean execute() {
+                assert (null != mTxCharacteristic);
+                BluetoothGattDescriptor desc = mTxCharacteristic.getDescriptor(UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"));
+                desc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+
+                if (mBluetoothGatt == null) {
+                    Log.e("bgx_dbg", "EnableTxChangeNotificationCommand: BluetoothGatt is null");
+                    return true;
+                }
+
+                boolean fresult = mBluetoothGatt.writeDescriptor(desc);
+                if (!fresult) {
+                    Log.e("bgx_dbg", "An error occurred writing to the characteristic descriptor for Tx. (1)");
+                    retryGattCommand(this);
+                    return false;
+                }
+                mBluetoothGatt.setCharacteristicNotification(mTxCharacteristic, true);
+                return true;
+            }
+
+            @Override
+            Object gattTarget() {
+                return clientConfigDescriptor(mTxCharacteristic);
+            }
+        }
+
+        final class Set2MPhyCommand extends GattCommand {
+            @Override
+            int timeout() {
+                // m2mphyRunnable releases the GATT after 2.5 s.
+                return (0 == mGattTimeout) ? 0 : 2500 + mGattTimeout;
+            }
+
+            @Override
+            boolean execute() {
+                if (Build.VERSION.SDK_INT >= 26) {
+                    if (mBluetoothGatt == null) {
+                        Log.e("bgx_dbg", "Set2MPhyCommand: BluetoothGatt is null");
+                        return true;
+                    }
+
+                    mBluetoothGatt.setPreferredPhy(BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+
+                    m2mphyRunnable = new Runnable() {
+                        @Override
+                        public void run() {
+                            m2mphyRunnable = null;
+                            markGattCallbackStale(Set2MPhyCommand.class);
+                            clearGattBusyFlagAndExecuteNext();
+                        }
+                    };
+                    postDelayed(m2mphyRunnable, 2500);
+                }
+                return true;
+            }
+
+            @Override
+            void timedOut() {
+                if (null != m2mphyRunnable) {
+                    mHandler.removeCallbacks(m2mphyRunnable);
+                    m2mphyRunnable = null;
+                }
+                super.timedOut();
+            }
+
+            @Override
+            Object gattTarget() {
+                return Set2MPhyCommand.class;
+            }
+        }
+
+        final class ReadFirmwareRevisionCommand extends IdempotentCommand {
+            @Override
+            boolean retryOnTimeout() {
+                return true;
+            }
+
+            /**
+             * The firmware revision never changes. The read requests the MTU
+             * when it completes, so it stays behind queued MTU requests.
+             */
+            @Override
+            boolean commutesWith(GattCommand pending) {
+                return pending instanceof WriteBusModeCommand
+                        || pending instanceof ReadBusModeCommand
+                        || pending instanceof GetInfoCommand
+                        || pending instanceof EnableModeChangeNotificationCommand
+                        || pending instanceof EnableTxChangeNotificationCommand
+                        || pending instanceof SetupFastAckCommand
+                        || pending instanceof SetWriteTypeCommand
+                        || pending instanceof SetReadTypeCommand;
+            }
+
+            @Override
+            boolean execute() {
+                if (mBluetoothGatt == null) {
+                    Log.e("bgx_dbg", "ReadFirmwareRevisionCommand: BluetoothGatt is null");
+                    return true;
+                }
+
+                if (!mBluetoothGatt.readCharacteristic(mFirmwareRevisionCharacteristic)) {
+                    Log.d("bgx_dbg", "Read FirmwareRevisionCharacteristic failed.");
+                    retryGattCommand(this);
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            Object gattTarget() {
+                return mFirmwareRevisionCharacteristic;
+            }
+        }
+
+        final class RequestMtuCommand extends GattCommand {
+            private final int mMtu;
+
+            RequestMtuCommand(int mtu) {
+                this.mMtu = mtu;
+            }
+
+            @Override
+            int timeout() {
+                // the exchange can involve a connection parameter update.
+                return 2 * mGattTimeout;
+            }
+
+            @Override
+            boolean retryOnTimeout() {
+                return true;
+            }
+
+            @Override
+            boolean execute() {
+                if (mBluetoothGatt == null) {
+                    return false;
+                }
+
+                if (!mBluetoothGatt.requestMtu(mMtu)) {
+                    Log.d("bgx_dbg", "Error: requestMTU returned false.");
+                    retryGattCommand(this);
+                    return false;
+                }
+
+                Log.d("bgx_dbg", "Called mBluetoothGatt.requestMtu(" + mMtu + ")");
+                return true;
+            }
+
+            @Override
+            Object gattTarget() {
+                return RequestMtuCommand.class;
+            }
+        }
+
+        final class SetupFastAckCommand extends IdempotentCommand {
+            @Override
+            boolean retryOnTimeout() {
+                return true;
+            }
+
+            /**
+             * SetWriteTypeCommand and SetReadTypeCommand depend on mFastAck.
+             */
+            @Override
+            boolean commutesWith(GattCommand pending) {
+                return pending instanceof ReadBusModeCommand
+                        || pending instanceof GetInfoCommand
+                        || pending instanceof ReadFirmwareRevisionCommand
+                        || pending instanceof EnableModeChangeNotificationCommand
+                        || pending instanceof EnableTxChangeNotificationCommand;
+            }
+
+            @Override
+            boolean execute() {
+                if ((mRxCharacteristic.getProperties() & PROPERTY_NOTIFY) != 0) {
+                    Log.d("bgx_fastAck", "fastAck: YES");
+
+                    BluetoothGattDescriptor desc = mRxCharacteristic.getDescriptor(UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"));
+                    desc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+
+                    if (mBluetoothGatt == null) {
+                        Log.e("bgx_dbg", "SetupFastAckCommand: BluetoothGatt is null");
+                        return true;
+                    }
+
+                    boolean fresult = mBluetoothGatt.writeDescriptor(desc);
+                    if (!fresult) {
+                        Log.e("bgx_dbg", "An error occurred writing to the characteristic descriptor for Rx.");
+                        retryGattCommand(this);
+                        return false;
+                    }
+
+                    mBluetoothGatt.setCharacteristicNotification(mRxCharacteristic, true);
+
+                    mFastAck = true;
+                    mFastAckRxBytes = 0;
+                    mFastAckTxBytes = 0;
+                    mRxCredits.reset();
+
+                    queueGattCommand(new UpdateFastAckRxBytesCommand(0, kInitialFastAckRxBytes));
+                    return true;
+                }
+
+                Log.d("bgx_fastAck", "fastAck: NO");
+                mFastAck = false;
+                return false;
+            }
+
+            @Override
+            Object gattTarget() {
+                return clientConfigDescriptor(mRxCharacteristic);
+            }
+        }
+
+        final class UpdateFastAckRxBytesCommand extends GattCommand {
+            private int mOpcode;
+            private int mRxBytes;
+
+            /**
+             * @param opcode  Either 0x00 or 0x01. 0x00 sends the initial value and 0x01 sends value to add to rxbytes.
+             * @param rxbytes The value to send in the second two bytes in the TX backchannel.
+             */
+            UpdateFastAckRxBytesCommand(int opcode, int rxbytes) {
+                this.mOpcode = opcode;
+                this.mRxBytes = rxbytes;
+            }
+
+            @Override
+            int lane() {
+                return kGattLaneCredit;
+            }
+
+            /**
+             * Credits returned while an update is queued are added to it, as long
+             * as the sum fits in the 16 bits of the update. An initial value
+             * replaces whatever the queued update would have done.
+             */
+            @Override
+            boolean mergeInto(GattCommand pending) {
+                if (!(pending instanceof UpdateFastAckRxBytesCommand)) {
+                    return false;
+                }
+
+                UpdateFastAckRxBytesCommand update = (UpdateFastAckRxBytesCommand) pending;
+                if (0x00 == mOpcode) {
+                    update.mOpcode = mOpcode;
+                    update.mRxBytes = mRxBytes;
+                    return true;
+                }
+
+                if (0x01 == mOpcode && update.mRxBytes + mRxBytes <= 0xFFFF) {
+                    update.mRxBytes += mRxBytes;
+                    return true;
+                }
+                return false;
+            }
+
+            @Override
+            boolean execute() {
+                BluetoothGattCharacteristic txChar;
+
+                if (null == mTxCharacteristic2) {
+                    txChar = mTxCharacteristic;
+                } else {
+                    txChar = mTxCharacteristic2;
+                }
+
+                if (null == txChar) {
+                    Log.e("bgx_dbg", "Error: Tx Characteristic could not be found.");
+                }
+
+                byte[] val = new byte[3];
+                val[0] = (byte) mOpcode;
+                val[1] = (byte) (mRxBytes & 0xFF);
+                val[2] = (byte) ((mRxBytes & 0xFF00) >> 8);
+
+                txChar.setValue(val);
+
+                if (mBluetoothGatt == null) {
+                    Log.e("bgx_dbg", "UpdateFastAckRxBytesCommand: BluetoothGatt is null");
+                    return true;
+                }
+
+                if (mBluetoothGatt.writeCharacteristic(txChar)) {
+                    Log.d("bgx_fastAck", "Write of fastAckRxBytes: SUCCESS.");
+                    switch (mOpcode) {
+                        case 0x00:
+                            mFastAckRxBytes = mRxBytes;
+                            Log.d("bgx_fastAck", "fastAckRxBytes: " + mFastAckRxBytes + " (initial)");
+                            break;
+                        case 0x01:
+                            mFastAckRxBytes += mRxBytes;
+                            Log.d("bgx_fastAck", "fastAckRxBytes: " + mFastAckRxBytes + " (added " + mRxBytes + ")");
+                            break;
+                    }
+                } else {
+                    // the credits would otherwise be lost.
+                    Log.d("bgx_fastAck", "Write of fastAckRxBytes: FAIL.");
+                    boolean fRetrying = retryGattCommand(this);
+                    if (0x00 == mOpcode) {
+                        synchronized (DeviceProperties.this) {
+                            fCreditResetPending = fRetrying;
+                        }
+                    }
+                    return false;
+                }
+                return true;
+            }
+
+            @Override
+            Object gattTarget() {
+                return (null == mTxCharacteristic2) ? mTxCharacteristic : mTxCharacteristic2;
+            }
+        }
+
+        final class SetWriteTypeCommand extends GattCommand {
+            private final boolean fAcknowledgedWrites;
+
+            SetWriteTypeCommand(boolean acknowledgedWrites) {
+                this.fAcknowledgedWrites = acknowledgedWrites;
+            }
+
+            @Override
+            boolean execute() {
+                int writeType;
+
+                if (fAcknowledgedWrites && !mFastAck) {
+                    writeType = WRITE_TYPE_DEFAULT;
+                } else {
+                    writeType = WRITE_TYPE_NO_RESPONSE;
+                }
+
+                mRxCharacteristic.setWriteType(writeType);
+                if (null != mRxCharacteristic2) {
+                    mRxCharacteristic2.setWriteType(writeType);
+                }
+                return false;
+            }
+        }
+
+        final class SetReadTypeCommand extends GattCommand {
+            private final boolean fAcknowledgedReads;
+
+            SetReadTypeCommand(boolean acknowledgedReads) {
+                this.fAcknowledgedReads = acknowledgedReads;
+            }
+
+            @Override
+            boolean retryOnTimeout() {
+                return true;
+            }
+
+            @Override
+            boolean execute() {
+                BluetoothGattDescriptor desc = mTxCharacteristic.getDescriptor(UUID.fromString("00002902-0000-1000-8000-00805f9b34fb"));
+
+                if (fAcknowledgedReads && !mFastAck) {
+                    desc.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+                } else {
+                    desc.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                }
+
+                if (mBluetoothGatt == null) {
+                    Log.e("bgx_dbg", "SetReadTypeCommand: BluetoothGatt is null");
+                    return true;
+                }
+
+                boolean fresult = mBluetoothGatt.writeDescriptor(desc);
+                if (!fresult) {
+                    Log.e("bgx_dbg", "An error occurred writing to the characteristic descriptor for Tx. (2)");
+                    retryGattCommand(this);
+                    return false;
+                }
+
+                mBluetoothGatt.setCharacteristicNotification(mTxCharacteristic, true);
+                return true;
+            }
+
+            @Override
+            Object gattTarget() {
+                return clientConfigDescriptor(mTxCharacteristic);
+            }
+        }
+
+        /**
+         * Publishes an event once the commands queued before it have finished.
+         */
+        final class PublishEventCommand extends GattCommand {
+            private final Intent mEvent;
+
+            PublishEventCommand(Intent event) {
+                this.mEvent = event;
+            }
+
+            @Override
+            boolean execute() {
+                publishEvent(mEvent);
+                return false;
+            }
+        }
+
+        final class PollBondStatusCommand extends GattCommand {
+            @Override
+            boolean execute() {
+                boolean fbonded = false;
+
+                if (mBluetoothGatt == null) {
+                    Log.e("bgx_dbg", "PollBondStatusCommand: BluetoothGatt is null");
+                    return true;
+                }
+
+                int bondState = mBluetoothGatt.getDevice().getBondState();
+                switch (bondState) {
+                    case BOND_NONE: {
+                        Log.d("bgx_dbg", "PollBondStatusCommand: BOND_NONE");
+
+                        if (mLastBondState != bondState) {
+                            Log.e("bgx_dbg", "Bond state has moved from " + mLastBondState + "to " + bondState + " (might mean bonding totally failed and we need to recover).");
+                        }
+                    }
+                    break;
+                    case BluetoothDevice.BOND_BONDING: {
+                        Log.d("bgx_dbg", "PollBondStatusCommand: BOND_BONDING");
+                    }
+                    break;
+                    case BluetoothDevice.BOND_BONDED: {
+                        Log.d("bgx_dbg", "PollBondStatusCommand: BOND_BONDED");
+                        fbonded = true;
+
+                        Intent broadcastIntent = new Intent();
+                        broadcastIntent.setAction(BGX_CONNECTION_STATUS_CHANGE);
+                        broadcastIntent.putExtra("bgx-connection-status", INTERROGATING);
+                        broadcastIntent.putExtra("device", mBluetoothGatt.getDevice());
+                        broadcastIntent.putExtra("DeviceAddress", mBluetoothGatt.getDevice().getAddress());
+                        broadcastIntent.putExtra("bonded", true);
+                        publishEvent(broadcastIntent);
+                    }
+                    break;
+                    default:
+                        Log.e("bgx_err", "getBondState returned unknown value.");
+                        break;
+                }
+                mLastBondState = bondState;
+
+                if (fbonded) {
+                    boolean fResult = mBluetoothGatt.discoverServices();
+
+                    Log.d("bgx_dbg", "discoverServices: " + (fResult ? "true" : "false"));
+                } else if (!fUserConnectionCanceled) {
+                    postDelayed(new Runnable() {
+                        @Override
+                        public void run() {
+                            queueGattCommand(new PollBondStatusCommand());
+                        }
+                    }, 500);
+                }
+                return false;
+            }
+        }
+
+        /**
+         * Encodes a string as UTF-8 and appends it to the TX buffer.
+         *
+         * @return true if the data was queued, false if the TX buffer was full.
+         */
+        private boolean appendTxText(String text) {
+            synchronized (dataWriteSync) {
+                boolean wasEmpty = mTxBuffer.isEmpty();
+                int length = mTxEncoder.encode(text, mTxBuffer);
+                if (length < 0) {
+                    Log.e("bgx_dbg", "TX buffer full. Dropped a string of " + text.length() + " characters (" + mTxBuffer.size() + " bytes queued).");
+                    return false;
+                }
+
+                onTxAppended(wasEmpty, length);
+                Log.d("bgx_dbg", "Queued " + length + " bytes Total: " + mTxBuffer.size() + " bytes");
+            }
+            return true;
+        }
+
+        /**
+         * Appends data to the end of the TX buffer. If there is not enough
+         * room left in the buffer, the data is dropped.
+         *
+         * @param data The data to be written to the BGX.
+         * @return true if the data was queued.
+         */
+        private boolean appendTxData(byte[] data) {
+            synchronized (dataWriteSync) {
+                if (!appendTx(data, 0, data.length)) {
+                    Log.e("bgx_dbg", "TX buffer full. Dropped " + data.length + " bytes (" + mTxBuffer.size() + " bytes queued).");
+                    return false;
+                }
+
+                Log.d("bgx_dbg", "Queued " + data.length + " bytes Total: " + mTxBuffer.size() + " bytes");
+            }
+            return true;
+        }
+
+        /**
+         * Appends data to the TX buffer on behalf of a BGXConnection and
+         * makes sure a drain operation is waiting in the GATT queue.
+         *
+         * @return true if the data was queued, false if the TX buffer is full.
+         */
+        boolean enqueueTxData(byte[] data, int offset, int length) {
+            return enqueueTxData(data, offset, length, null);
+        }
+
+        /**
+         * @param future If not null, is completed once the data has been acknowledged.
+         */
+        boolean enqueueTxData(byte[] data, int offset, int length, BGXWriteFuture future) {
+            synchronized (dataWriteSync) {
+                long start = mTxBytesQueued;
+                if (!appendTx(data, offset, length)) {
+                    return false;
+                }
+                trackTxWrite(future, start);
+            }
+
+            queueTxDrain();
+            return true;
+        }
+
+        /**
+         * Appends the remaining bytes of data to the TX buffer on behalf of a
+         * BGXConnection and makes sure a drain operation is waiting in the GATT queue.
+         *
+         * @return true if the data was queued, false if the TX buffer is full.
+         */
+        boolean enqueueTxData(ByteBuffer data) {
+            return enqueueTxData(data, null);
+        }
+
+        /**
+         * @param future If not null, is completed once the data has been acknowledged.
+         */
+        boolean enqueueTxData(ByteBuffer data, BGXWriteFuture future) {
+            synchronized (dataWriteSync) {
+                long start = mTxBytesQueued;
+                if (!appendTx(data)) {
+                    return false;
+                }
+                trackTxWrite(future, start);
+            }
+
+            queueTxDrain();
+            return true;
+        }
+
+        /**
+         * Must be called while holding dataWriteSync.
+         */
+        private void trackTxWrite(BGXWriteFuture future, long start) {
+            if (null == future) {
+                return;
+            }
+
+            long now = SystemClock.elapsedRealtimeNanos();
+            future.onEnqueued(start, now);
+            if (future.mEnd == start) {
+                // nothing to send.
+                future.onCompleted(now);
+            } else {
+                mTxWritesUnsent.add(future);
+            }
+        }
+
+        /**
+         * Must be called while holding dataWriteSync. Consumes a chunk that was
+         * handed to the Bluetooth stack and timestamps the writes it starts.
+         */
+        private void onTxChunkSent(int chunkSize) {
+            long bytesSent = mTxChunks.sent(mTxBuffer, chunkSize);
+
+            if (!mTxWritesUnsent.isEmpty() && mTxWritesUnsent.peek().mStart < bytesSent) {
+                long now = SystemClock.elapsedRealtimeNanos();
+                do {
+                    BGXWriteFuture future = mTxWritesUnsent.poll();
+                    future.onFirstChunkSent(now);
+                    mTxWritesUnacked.add(future);
+                } while (!mTxWritesUnsent.isEmpty() && mTxWritesUnsent.peek().mStart < bytesSent);
+            }
+        }
+
+        /**
+         * Must be called while holding dataWriteSync.
+         *
+         * @return The sent writes that end at or before position end, or null if there are none.
+         */
+        private ArrayList<BGXWriteFuture> takeTxWritesEndingBy(long end) {
+            ArrayList<BGXWriteFuture> writes = null;
+            while (!mTxWritesUnacked.isEmpty() && mTxWritesUnacked.peek().mEnd <= end) {
+                if (null == writes) {
+                    writes = new ArrayList<>();
+                }
+                writes.add(mTxWritesUnacked.poll());
+            }
+            return writes;
+        }
+
+        /**
+         * Must be called while holding dataWriteSync.
+         *
+         * @return The sent writes that have bytes before position end, or null if there are none.
+         */
+        private ArrayList<BGXWriteFuture> takeTxWritesStartingBefore(long end) {
+            ArrayList<BGXWriteFuture> writes = null;
+            while (!mTxWritesUnacked.isEmpty() && mTxWritesUnacked.peek().mStart < end) {
+                if (null == writes) {
+                    writes = new ArrayList<>();
+                }
+                writes.add(mTxWritesUnacked.poll());
+            }
+            return writes;
+        }
+
+        /**
+         * Completes writes. Call without holding dataWriteSync because
+         * dependent actions run on this thread.
+         */
+        private void completeTxWrites(ArrayList<BGXWriteFuture> writes) {
+            if (null != writes) {
+                long now = SystemClock.elapsedRealtimeNanos();
+                for (BGXWriteFuture future : writes) {
+                    future.onCompleted(now);
+                }
+            }
+        }
+
+        /**
+         * Fails writes. Call without holding dataWriteSync.
+         */
+        private void failTxWrites(ArrayList<BGXWriteFuture> writes, IOException cause) {
+            if (null != writes) {
+                for (BGXWriteFuture future : writes) {
+                    future.onFailed(cause);
+                }
+            }
+        }
+
+        /**
+         * Appends as much of data to the TX buffer as the high-water mark allows.
+         * If block is true, waits for the buffer to drain until all of the data
+         * has been queued.
+         *
+         * @param connection The connection on whose behalf the data is written.
+         * @return The number of bytes queued. This is less than length only if block is false.
+         * @throws IOException if the BGX is disconnected, the connection is closed or the thread is interrupted.
+         */
+        int writeTxData(BGXConnection connection, byte[] data, int offset, int length, boolean block) throws IOException {
+            int written = 0;
+
+            while (written < length) {
+                int n;
+                synchronized (dataWriteSync) {
+                    n = Math.min(awaitTxRoom(connection, block), length - written);
+                    if (0 == n) {
+                        break;
+                    }
+                    appendTx(data, offset + written, n);
+                }
+
+                written += n;
+                queueTxDrain();
+            }
+
+            return written;
+        }
+
+        /**
+         * ByteBuffer version of writeTxData(). The position of data is advanced
+         * by the number of bytes queued.
+         */
+        int writeTxData(BGXConnection connection, ByteBuffer data, boolean block) throws IOException {
+            int written = 0;
+
+            while (data.hasRemaining()) {
+                int n;
+                synchronized (dataWriteSync) {
+                    n = Math.min(awaitTxRoom(connection, block), data.remaining());
+                    if (0 == n) {
+                        break;
+                    }
+
+                    int limit = data.limit();
+                    data.limit(data.position() + n);
+                    appendTx(data);
+                    data.limit(limit);
+                }
+
+                written += n;
+                queueTxDrain();
+            }
+
+            return written;
+        }
+
+        /**
+         * Waits until at least minRoom bytes may be appended to the TX buffer, or as
+         * many as the high-water mark and capacity allow if that is less.
+         *
+         * @return The number of bytes that may be appended now.
+         */
+        int waitForTxRoom(BGXConnection connection, int minRoom) throws IOException {
+            synchronized (dataWriteSync) {
+                return awaitTxRoom(connection, true, minRoom);
+            }
+        }
+
+        /**
+         * Must be called while holding dataWriteSync.
+         *
+         * @return The number of bytes that may be appended to mTxBuffer now. Zero only if block is false.
+         */
+        private int awaitTxRoom(BGXConnection connection, boolean block) throws IOException {
+            return awaitTxRoom(connection, block, 1);
+        }
+
+        private int awaitTxRoom(BGXConnection connection, boolean block, int minRoom) throws IOException {
+            while (true) {
+                if (!connection.isOpen()) {
+                    throw new IOException("BGXConnection is closed.");
+                }
+
+                if (!isGattConnected()) {
+                    throw new IOException("BGX is not connected.");
+                }
+
+                int room = Math.min(mTxHighWaterMark - mTxBuffer.size(), mTxBuffer.remaining());
+                if (room > 0 && room >= Math.min(minRoom, Math.min(mTxHighWaterMark, mTxBuffer.capacity()))) {
+                    return room;
+                }
+
+                if (!block) {
+                    return 0;
+                }
+
+                if (Thread.currentThread() == mHandlerThread) {
+                    throw new IOException("Blocking write attempted on the BGXpress handler thread.");
+                }
+
+                ++mTxWritersWaiting;
+                try {
+                    dataWriteSync.wait();
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the TX buffer to drain.");
+                } finally {
+                    --mTxWritersWaiting;
+                }
+            }
+        }
+
+        /**
+         * Wakes writers blocked in writeTxData() so they can re-check their state.
+         */
+        void wakeTxWriters() {
+            synchronized (dataWriteSync) {
+                if (mTxWritersWaiting > 0) {
+                    dataWriteSync.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Must be called while holding dataWriteSync.
+         */
+        private boolean appendTx(byte[] data, int offset, int length) {
+            boolean wasEmpty = mTxBuffer.isEmpty();
+            boolean result = mTxBuffer.append(data, offset, length);
+            if (result) {
+                onTxAppended(wasEmpty, length);
+            }
+            return result;
+        }
+
+        /**
+         * Must be called while holding dataWriteSync.
+         */
+        private boolean appendTx(ByteBuffer data) {
+            boolean wasEmpty = mTxBuffer.isEmpty();
+            int length = data.remaining();
+            boolean result = mTxBuffer.append(data);
+            if (result) {
+                onTxAppended(wasEmpty, length);
+            }
+            return result;
+        }
+
+        /**
+         * Must be called while holding dataWriteSync.
+         */
+        private void onTxAppended(boolean wasEmpty, int length) {
+            mTxBytesQueued += length;
+            if (wasEmpty && length > 0) {
+                mTxPendingSince = SystemClock.uptimeMillis();
+            }
+        }
+
+        /**
+         * Must be called while holding dataWriteSync.
+         *
+         * @return The number of milliseconds a partly filled chunk at the front of
+         * the buffer should still be held back, or zero if it should be sent now.
+         */
+        private long txCoalesceHoldTime() {
+            if (0 == mTxCoalesceDelay || mTxFlushMark > 0 || mTxBuffer.size() >= deviceWriteChunkSize) {
+                return 0;
+            }
+
+            return Math.max(0, mTxPendingSince + mTxCoalesceDelay - SystemClock.uptimeMillis());
+        }
+
+        private void queueTxDrain() {
+            synchronized (dataWriteSync) {
+                if (fTxDrainQueued || mTxBuffer.isEmpty()) {
+                    return;
+                }
+
+                long holdTime = txCoalesceHoldTime();
+                if (holdTime > 0) {
+                    mHandler.removeCallbacks(mTxCoalesceRunnable);
+                    postDelayed(mTxCoalesceRunnable, holdTime);
+                    return;
+                }
+
+                fTxDrainQueued = true;
+            }
+
+            queueGattCommand(mDrainTxCommand);
+        }
+
+        /**
+         * Sends everything currently in the TX buffer without waiting for
+         * partly filled chunks to be coalesced.
+         */
+        void flushTx() {
+            synchronized (dataWriteSync) {
+                mTxFlushMark = mTxBuffer.size();
+            }
+
+            queueTxDrain();
+        }
+
+        BGXRxStatistics getRxStatistics() {
+            return mRxStatistics.copy();
+        }
+
+        boolean isGattConnected() {
+            return null != mBluetoothGatt;
+        }
+
+        /**
+         * Calls the BGXEventListeners, sends BGX_DATA_RECEIVED and calls the
+         * DataListeners of the connections.
+         */
+        private void deliverRxData(String deviceAddress, byte[] data, long timestamp) {
+            dispatchDataEvent(deviceAddress, data, timestamp);
+
+            if (fBroadcastEvents) {
+                Intent intent = new Intent(BGX_DATA_RECEIVED);
+                intent.putExtra("bytes", data);
+                intent.putExtra("timestamp", timestamp);
+                if (fRxTextDecode) {
+                    synchronized (mRxTextDecoder) {
+                        intent.putExtra("data", mRxTextDecoder.decode(data, 0, data.length).toString());
+                    }
+                }
+                intent.putExtra("DeviceAddress", deviceAddress);
+                sendBroadcast(intent);
+            }
+
+            for (BGXConnection connection : mConnections) {
+                connection.dispatchData(data, timestamp);
+            }
+        }
+
+        /**
+         * Adds received data to the coalescing buffer if RX coalescing is enabled.
+         * The buffer is delivered on the handler thread once it holds mRxCoalesceBytes
+         * bytes or mRxCoalesceDelay milliseconds after its first notification.
+         *
+         * <p>If the data does not fit within mRxCoalesceBytes, or within
+         * kRxCoalesceBufferCapacity when there is no byte limit, the buffer and
+         * the data are delivered together on the calling thread instead.
+         *
+         * @return false if coalescing is disabled and the data must be delivered now.
+         */
+        private boolean coalesceRxData(String deviceAddress, byte[] data, long timestamp) {
+            synchronized (rxCoalesceSync) {
+                if (0 == mRxCoalesceBytes && 0 == mRxCoalesceDelay && mRxCoalesceBuffer.isEmpty()) {
+                    return false;
+                }
+
+                int limit = (mRxCoalesceBytes > 0) ? mRxCoalesceBytes : kRxCoalesceBufferCapacity;
+                if (mRxCoalesceBuffer.size() + data.length <= limit) {
+                    appendRxCoalesceBuffer(deviceAddress, data, timestamp);
+                    return true;
+                }
+            }
+
+            byte[] combined;
+            long firstTimestamp = timestamp;
+
+            synchronized (rxDeliverSync) {
+                synchronized (rxCoalesceSync) {
+                    int size = mRxCoalesceBuffer.size();
+                    if (size > 0) {
+                        firstTimestamp = mRxCoalesceNanos;
+                    }
+
+                    combined = new byte[size + data.length];
+                    mRxCoalesceBuffer.read(combined, 0, size);
+                    System.arraycopy(data, 0, combined, size, data.length);
+                    mHandler.removeCallbacks(mRxCoalesceRunnable);
+                }
+
+                deliverRxData(deviceAddress, combined, firstTimestamp);
+            }
+            return true;
+        }
+
+        /**
+         * Must be called while holding rxCoalesceSync, with room for the data.
+         */
+        private void appendRxCoalesceBuffer(String deviceAddress, byte[] data, long timestamp) {
+            boolean wasEmpty = mRxCoalesceBuffer.isEmpty();
+            if (wasEmpty) {
+                mRxCoalesceNanos = timestamp;
+            }
+            mRxCoalesceBuffer.append(data, 0, data.length);
+            mRxCoalesceAddress = deviceAddress;
+
+            if (0 == mRxCoalesceBytes && 0 == mRxCoalesceDelay) {
+                // coalescing was just turned off; deliver what is left in order.
+                post(mRxCoalesceRunnable);
+            } else if (mRxCoalesceBytes > 0 && mRxCoalesceBuffer.size() >= mRxCoalesceBytes) {
+                mHandler.removeCallbacks(mRxCoalesceRunnable);
+                post(mRxCoalesceRunnable);
+            } else if (wasEmpty && mRxCoalesceDelay > 0) {
+                postDelayed(mRxCoalesceRunnable, mRxCoalesceDelay);
+            }
+        }
+
+        /**
+         * Delivers the contents of the coalescing buffer. Runs on the handler thread.
+         */
+        private void flushRxCoalesceBuffer() {
+            byte[] data;
+            String deviceAddress;
+            long timestamp;
+
+            synchronized (rxDeliverSync) {
+                synchronized (rxCoalesceSync) {
+                    if (mRxCoalesceBuffer.isEmpty()) {
+                        return;
+                    }
+
+                    data = new byte[mRxCoalesceBuffer.size()];
+                    mRxCoalesceBuffer.read(data, 0, data.length);
+                    deviceAddress = mRxCoalesceAddress;
+                    timestamp = mRxCoalesceNanos;
+                }
+
+                deliverRxData(deviceAddress, data, timestamp);
+            }
+        }
+
+        void removeConnection(BGXConnection connection) {
+            mConnections.remove(connection);
+            releaseRxCredits();
+        }
+
+        /**
+         * Returns FastAck credits for received bytes that no BGXConnection is
+         * holding, either in an RX buffer with the BLOCK_PEER policy or as
+         * unacknowledged data with manual credit return. Called when data is
+         * received and whenever a connection releases held data.
+         */
+        void releaseRxCredits() {
+            while (true) {
+                int credits;
+                synchronized (mRxCredits) {
+                    int held = 0;
+                    for (BGXConnection connection : mConnections) {
+                        held = Math.max(held, connection.getRxBytesHeld());
+                    }
+
+                    mRxCredits.release(held);
+                    credits = mRxCredits.takeCredits();
+                }
+
+                if (0 == credits) {
+                    break;
+                }
+
+                if (mFastAck) {
+                    queueGattCommand(new UpdateFastAckRxBytesCommand(1, credits));
+                }
+            }
+        }
+
+        private BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+
+            @Override
+            public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+                // the BGX or the stack may also change the PHY on their own.
+                boolean fOwner = acceptGattCallback(Set2MPhyCommand.class);
+
+                if (fOwner && null != m2mphyRunnable) {
+                    mHandler.removeCallbacks(m2mphyRunnable);
+                    m2mphyRunnable = null;
+                }
+
+                if (BluetoothGatt.GATT_SUCCESS == status) {
+                    switch (txPhy) {
+                        case BluetoothDevice.PHY_LE_1M:
+                            Log.d("bgx_dbg", "txPhy: 1M PHY");
+                            break;
+                        case BluetoothDevice.PHY_LE_2M:
+                            Log.d("bgx_dbg", "txPhy: 2M PHY");
+                            break;
+                        case BluetoothDevice.PHY_LE_CODED:
+                            Log.d("bgx_dbg", "txPhy: CODED PHY");
+                            break;
+                    }
+
+                    switch (rxPhy) {
+                        case BluetoothDevice.PHY_LE_1M:
+                            Log.d("bgx_dbg", "rxPhy: 1M PHY");
+                            break;
+                        case BluetoothDevice.PHY_LE_2M:
+                            Log.d("bgx_dbg", "rxPhy: 2M PHY");
+                            break;
+                        case BluetoothDevice.PHY_LE_CODED:
+                            Log.d("bgx_dbg", "rxPhy: CODED PHY");
+                            break;
+                    }
+
+                } else {
+                    Log.e("bgx_dbg", "onPhyUpdate: ERROR");
+                }
+
+                if (fOwner) {
+                    clearGattBusyFlagAndExecuteNext();
+                }
+            }
+
+            @Override
+            public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+                if (0 == status) {
+                    mMTUInitialReadComplete = true;
+                    deviceWriteChunkSize = mtu - 3;
+                }
+
+                Intent intent = new Intent();
+                intent.setAction(BGX_MTU_CHANGE);
+                intent.putExtra("mtu", mtu);
+                intent.putExtra("status", status);
+                intent.putExtra("deviceAddress", gatt.getDevice().getAddress());
+                publishEvent(intent);
+
+                if (acceptGattCallback(RequestMtuCommand.class)) {
+                    clearGattBusyFlagAndExecuteNext();
+                }
+            }
+
+            @Override
+            public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+                super.onConnectionStateChange(gatt, status, newState);
+
+                String snewstate = "?";
+                String sprevstate = "?";
+
+                switch (newState) {
+                    case BluetoothProfile.STATE_DISCONNECTED:
+                        snewstate = "DISCONNECTED";
+                        break;
+                    case BluetoothProfile.STATE_CONNECTING:
+                        snewstate = "CONNECTING";
+                        break;
+                    case BluetoothProfile.STATE_CONNECTED:
+                        snewstate = "CONNECTED";
+                        break;
+                    case BluetoothProfile.STATE_DISCONNECTING:
+                        snewstate = "DISCONNECTING";
+                        break;
+                }
+
+                switch (mDeviceConnectionState) {
+                    case BluetoothProfile.STATE_DISCONNECTED:
+                        sprevstate = "DISCONNECTED";
+                        break;
+                    case BluetoothProfile.STATE_CONNECTING:
+                        sprevstate = "CONNECTING";
+                        break;
+                    case BluetoothProfile.STATE_CONNECTED:
+                        sprevstate = "CONNECTED";
+                        break;
+                    case BluetoothProfile.STATE_DISCONNECTING:
+                        sprevstate = "DISCONNECTING";
+                        break;
+                }
+
+                if (BluetoothGatt.GATT_SUCCESS != status && BluetoothProfile.STATE_DISCONNECTED == newState) {
+                    Intent errorIntent = new Intent();
+                    errorIntent.setAction(BGX_CONNECTION_ERROR);
+                    errorIntent.putExtra("status", status);
+                    sendBroadcast(errorIntent);
+                }
+
+                Log.d("bgx_dbg", "onConnectionStateChanged for " + gatt.getDevice().getName() + " newState: " + snewstate + "(" + newState + ")" + " prevState: " + sprevstate + "(" + mDeviceConnectionState + ")" + " status: " + status);
+
+                DeviceProperties dp = mDeviceProperties.get(gatt.getDevice().getAddress());
+
+                if (mDeviceConnectionState != newState) {
+                    mDeviceConnectionState = newState;
+
+                    Intent broadcastIntent = new Intent();
+                    broadcastIntent.setAction(BGX_CONNECTION_STATUS_CHANGE);
+                    broadcastIntent.putExtra("device", gatt.getDevice());
+                    broadcastIntent.putExtra("DeviceAddress", gatt.getDevice().getAddress());
+
+                    if (null != mBroadcastReceiver && (BluetoothProfile.STATE_DISCONNECTING == mDeviceConnectionState || BluetoothProfile.STATE_DISCONNECTED == mDeviceConnectionState)) {
+                        unregisterReceiver(mBroadcastReceiver);
+                        mBroadcastReceiver = null;
+                    }
+
+                    switch (mDeviceConnectionState) {
+                        case BluetoothProfile.STATE_CONNECTING:
+                            mBGXDeviceConnectionState = BGX_CONNECTION_STATUS.CONNECTING;
                             broadcastIntent.putExtra("bgx-connection-status", BGX_CONNECTION_STATUS.CONNECTING);
                             Log.d("bgx_dbg", "connection state: CONNECTING.");
                             if (!dp.fUserConnectionCanceled) {
-                                sendBroadcast(broadcastIntent);
+                                publishEvent(broadcastIntent);
                             }
                             break;
                         case BluetoothProfile.STATE_CONNECTED: {
+                            mRxStatistics.reset();
                             if (!dp.fUserConnectionCanceled) {
 
                                 if (mBluetoothGatt == null) {
@@ -1428,7 +3229,7 @@ public class BGXpressService extends JobIntentService {
                                                     broadcastIntent.putExtra("bonded", true);
 
                                                     int discoverServicesDelay = Build.VERSION.SDK_INT <= Build.VERSION_CODES.N_MR1 ? 1500 : 0;
-                                                    mHandler.postDelayed(new Runnable() {
+                                                    postDelayed(new Runnable() {
                                                         @Override
                                                         public void run() {
                                                             if (mBluetoothGatt != null) {
@@ -1437,7 +3238,7 @@ public class BGXpressService extends JobIntentService {
                                                         }
                                                     }, discoverServicesDelay);
                                                 } else if (BOND_NONE == bondState) {
-                                                    mHandler.postDelayed(new Runnable() {
+                                                    postDelayed(new Runnable() {
                                                         @Override
                                                         public void run() {
                                                             if (mBluetoothGatt != null) {
@@ -1458,7 +3259,7 @@ public class BGXpressService extends JobIntentService {
                                 mBGXDeviceConnectionState = INTERROGATING;
                                 broadcastIntent.putExtra("bgx-connection-status", INTERROGATING);
                                 broadcastIntent.putExtra("bonded", false);
-                                sendBroadcast(broadcastIntent);
+                                publishEvent(broadcastIntent);
 
                                 int bondState = mBluetoothGatt.getDevice().getBondState();
                                 if (bondState == BOND_BONDED) {
@@ -1472,7 +3273,7 @@ public class BGXpressService extends JobIntentService {
                                     broadcastIntent.putExtra("bonded", true);
 
                                     int discoverServicesDelay = Build.VERSION.SDK_INT <= Build.VERSION_CODES.N_MR1 ? 1500 : 0;
-                                    mHandler.postDelayed(new Runnable() {
+                                    postDelayed(new Runnable() {
                                         @Override
                                         public void run() {
                                             if (mBluetoothGatt != null) {
@@ -1497,7 +3298,7 @@ public class BGXpressService extends JobIntentService {
                                         mBGXDeviceConnectionState = INTERROGATING;
                                         broadcastIntent.putExtra("bgx-connection-status", INTERROGATING);
                                         broadcastIntent.putExtra("bonded", true);
-                                        sendBroadcast(broadcastIntent);
+                                        publishEvent(broadcastIntent);
 
                                         if (mBluetoothGatt != null) {
                                             mBluetoothGatt.discoverServices();
@@ -1511,7 +3312,7 @@ public class BGXpressService extends JobIntentService {
                                         }
 
                                         Log.d("bgx_dbg", "BondState: " + sbondState + ".");
-                                        queueGattIntent(new Intent(ACTION_POLL_BOND_STATUS));
+                                        queueGattCommand(new PollBondStatusCommand());
                                     }
                                 } else {
                                     Log.d("bgx_dbg", "BluetoothDevice.createBond() returned true.");
@@ -1525,7 +3326,7 @@ public class BGXpressService extends JobIntentService {
                             mBGXDeviceConnectionState = BGX_CONNECTION_STATUS.DISCONNECTING;
                             broadcastIntent.putExtra("bgx-connection-status", BGX_CONNECTION_STATUS.DISCONNECTING);
                             Log.d("bgx_dbg", "connection state: DISCONNECTING.");
-                            sendBroadcast(broadcastIntent);
+                            publishEvent(broadcastIntent);
                             break;
                         case BluetoothProfile.STATE_DISCONNECTED:
                             mMTUInitialReadComplete = false;
@@ -1534,6 +3335,35 @@ public class BGXpressService extends JobIntentService {
 
                             clearGattQueue();
 
+                            ArrayList<BGXWriteFuture> abandonedWrites = new ArrayList<>();
+                            synchronized (dataWriteSync) {
+                                mTxBuffer.clear();
+                                mTxWriteFailures = 0;
+                                mTxFlushMark = 0;
+                                fTxDrainQueued = false;
+
+                                mTxChunks.reset(mTxBytesQueued);
+                                mTxBytesCredited = mTxBytesQueued;
+                                abandonedWrites.addAll(mTxWritesUnacked);
+                                abandonedWrites.addAll(mTxWritesUnsent);
+                                mTxWritesUnacked.clear();
+                                mTxWritesUnsent.clear();
+                            }
+                            mHandler.removeCallbacks(mTxCoalesceRunnable);
+                            wakeTxWriters();
+
+                            mHandler.removeCallbacks(mRxCoalesceRunnable);
+                            post(mRxCoalesceRunnable);
+
+                            for (BGXConnection connection : mConnections) {
+                                connection.onDisconnected();
+                            }
+                            mRxCredits.releaseAll();
+                            synchronized (mRxTextDecoder) {
+                                mRxTextDecoder.reset();
+                            }
+                            failTxWrites(abandonedWrites, new IOException("BGX disconnected."));
+
                             if (null != mBluetoothGatt) {
                                 mBluetoothGatt.close();
                                 mBluetoothGatt = null;
@@ -1544,7 +3374,7 @@ public class BGXpressService extends JobIntentService {
                             broadcastIntent.putExtra("status", status);
 
                             Log.d("bgx_dbg", "connection state: DISCONNECTED.");
-                            sendBroadcast(broadcastIntent);
+                            publishEvent(broadcastIntent);
 
                             clearGattQueue();
                             break;
@@ -1560,8 +3390,6 @@ public class BGXpressService extends JobIntentService {
                 boolean fServicesOK = false;
                 DeviceProperties dps = mDeviceProperties.get(gatt.getDevice().getAddress());
 
-                Intent setupIntent;
-
                 super.onServicesDiscovered(gatt, status);
                 Log.d("bgx_dbg", "onServicesDiscovered.");
                 // look for BGX Streaming Service (BGXSS).
@@ -1705,31 +3533,22 @@ public class BGXpressService extends JobIntentService {
                 }
 
                 if (null != dps.mBGXSS) {
-                    Intent setupFastAck = new Intent();
-                    setupFastAck.setAction(ACTION_SETUP_FAST_ACK);
-                    queueGattIntent(setupFastAck);
+                    queueGattCommand(new SetupFastAckCommand());
                 }
 
                 if (null != dps.mFirmwareRevisionCharacteristic) {
-                    setupIntent = new Intent();
-                    setupIntent.setAction(ACTION_READ_FIRMWARE_REVISION);
-                    queueGattIntent(setupIntent);
+                    queueGattCommand(new ReadFirmwareRevisionCommand());
                 }
 
                 if (null != dps.mBGXSS) {
-                    setupIntent = new Intent();
-                    setupIntent.setAction(ACTION_ENABLE_MODE_CHANGE_NOTIFICATION);
-                    queueGattIntent(setupIntent);
-
-                    setupIntent = new Intent();
-                    setupIntent.setAction(ACTION_ENABLE_TX_CHANGE_NOTIFICATION);
-                    queueGattIntent(setupIntent);
+                    queueGattCommand(new EnableModeChangeNotificationCommand());
+                    queueGattCommand(new EnableTxChangeNotificationCommand());
                 }
 
                 if (Build.VERSION.SDK_INT >= 26) {
                     if (BluetoothAdapter.getDefaultAdapter().isLe2MPhySupported()) {
                         Log.d("bgx_dbg", "Queuing the 2m phy action");
-                        queueGattIntent(new Intent(ACTION_SET_2M_PHY));
+                        queueGattCommand(new Set2MPhyCommand());
                     }
                 }
 
@@ -1741,7 +3560,7 @@ public class BGXpressService extends JobIntentService {
                     broadcastIntent.putExtra("device", mBluetoothGatt.getDevice());
                     broadcastIntent.putExtra("DeviceAddress", mBluetoothGatt.getDevice().getAddress());
                     broadcastIntent.putExtra("bonded", true);
-                    queueGattIntent(broadcastIntent); // queue this so it will be sent after the setup finishes instead of right now.
+                    queueGattCommand(new PublishEventCommand(broadcastIntent)); // queue this so it will be sent after the setup finishes instead of right now.
                 }
 
                 if (!fServicesOK) {
@@ -1751,6 +3570,7 @@ public class BGXpressService extends JobIntentService {
 
             @Override
             public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+                long timestamp = SystemClock.elapsedRealtimeNanos();
                 Log.d("bgx_dbg", "OnCharacteristicChanged called " + characteristic.getUuid().toString());
 
                 if (characteristic == mBGXSSModeCharacteristic) {
@@ -1759,26 +3579,30 @@ public class BGXpressService extends JobIntentService {
                     intent.setAction(BGX_MODE_STATE_CHANGE);
                     intent.putExtra("busmode", BusMode);
                     intent.putExtra("DeviceAddress", gatt.getDevice().getAddress());
-                    sendBroadcast(intent);
+                    publishEvent(intent);
                     Log.d("bgx_dbg", "BusMode: " + BusMode);
                 } else if (mTxCharacteristic == characteristic || mTxCharacteristic2 == characteristic) {
-                    final String myValue = mTxCharacteristic.getStringValue(0);
+                    final byte[] myValue = characteristic.getValue();
 
-                    int bytesReceived = myValue.length();
+                    int bytesReceived = myValue.length;
+                    mRxStatistics.record(timestamp, bytesReceived);
 
                     if (mFastAck) {
                         mFastAckRxBytes -= bytesReceived;
                     }
 
-                    Intent intent = new Intent(BGX_DATA_RECEIVED);
-                    intent.putExtra("data", myValue);
-                    intent.putExtra("DeviceAddress", gatt.getDevice().getAddress());
-                    sendBroadcast(intent);
+                    for (BGXConnection connection : mConnections) {
+                        connection.bufferData(myValue);
+                    }
 
-                    if (mFastAck) {
-                        updateFastAckRxBytes(1, bytesReceived);
+                    if (!coalesceRxData(gatt.getDevice().getAddress(), myValue, timestamp)) {
+                        deliverRxData(gatt.getDevice().getAddress(), myValue, timestamp);
                     }
 
+                    // counted after the connections have buffered the data so its credits are held.
+                    mRxCredits.onReceived(bytesReceived);
+                    releaseRxCredits();
+
                 } else if (mRxCharacteristic == characteristic || mRxCharacteristic2 == characteristic) {
                     Log.d("bgx_fastAck", "FastAck backchannel data received.");
                     if (!mFastAck) {
@@ -1804,6 +3628,9 @@ public class BGXpressService extends JobIntentService {
                             case 0x00:
                                 mFastAckTxBytes = txbytes;
                                 Log.d("bgx_fastAck", "fastAckTxBytes: " + mFastAckTxBytes + " (assigned value)");
+                                synchronized (dataWriteSync) {
+                                    mTxBytesCredited = mTxChunks.bytesSent();
+                                }
                                 break;
                             case 0x01:
                                 boolean fQueueAWrite = false;
@@ -1815,13 +3642,15 @@ public class BGXpressService extends JobIntentService {
                                 mFastAckTxBytes += txbytes;
                                 Log.d("bgx_fastAck", "fastAckTxBytes: " + mFastAckTxBytes + " (added " + txbytes + " bytes)");
 
+                                ArrayList<BGXWriteFuture> creditedWrites;
+                                synchronized (dataWriteSync) {
+                                    mTxBytesCredited += txbytes;
+                                    creditedWrites = takeTxWritesEndingBy(mTxBytesCredited);
+                                }
+                                completeTxWrites(creditedWrites);
+
                                 if (fQueueAWrite) {
-                                    mHandler.postDelayed(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            writeChunkOfData();
-                                        }
-                                    }, 10);
+                                    queueTxDrain();
                                     break;
                                 }
                         }
@@ -1841,7 +3670,7 @@ public class BGXpressService extends JobIntentService {
                         sintent.setAction(BGX_MODE_STATE_CHANGE);
                         sintent.putExtra("busmode", busMode);
                         sintent.putExtra("DeviceAddress", gatt.getDevice().getAddress());
-                        sendBroadcast(sintent);
+                        publishEvent(sintent);
                     } else if (dps.mOTADeviceIDCharacterisitc == characteristic) {
                         byte[] deviceIDValue = dps.mOTADeviceIDCharacterisitc.getValue();
                         char[] hexChars = new char[deviceIDValue.length * 2];
@@ -1911,12 +3740,10 @@ public class BGXpressService extends JobIntentService {
                             mFirmwareRevisionString = firmwareVers.substring(firmwareVers.indexOf('.') + 1);
 
                             if (!mMTUInitialReadComplete) {
-                                mHandler.postDelayed(new Runnable() {
+                                postDelayed(new Runnable() {
                                     @Override
                                     public void run() {
-                                        Intent mtuIntent = new Intent(ACTION_REQUEST_MTU);
-                                        mtuIntent.putExtra("mtu", 247);
-                                        queueGattIntent(mtuIntent);
+                                        queueGattCommand(new RequestMtuCommand(247));
                                     }
                                 }, 1000);
                             }
@@ -1932,7 +3759,10 @@ public class BGXpressService extends JobIntentService {
                         }
                     }
                 }
-                dps.clearGattBusyFlagAndExecuteNext();
+
+                if (dps.acceptGattCallback(characteristic)) {
+                    dps.clearGattBusyFlagAndExecuteNext();
+                }
             }
 
             @Override
@@ -1962,7 +3792,7 @@ public class BGXpressService extends JobIntentService {
 
                     } else if (OTA_State.WriteThreeToControlCharacteristic == dps.mOTAState) {
 
-                        mHandler.postDelayed(new Runnable() {
+                        postDelayed(new Runnable() {
                             @Override
                             public void run() {
                                 Intent intent = new Intent();
@@ -2003,14 +3833,45 @@ public class BGXpressService extends JobIntentService {
                         sendBroadcast(intent);
                     }
                 } else if (dps.mRxCharacteristic == characteristic || dps.mRxCharacteristic2 == characteristic) {
-                    if (null != dps.mData2Write) {
+                    if (!dps.acceptGattCallback(characteristic)) {
+                        // the chunk was already abandoned.
+                        return;
+                    }
+
+                    boolean fMoreData;
+                    boolean fIdle;
+                    ArrayList<BGXWriteFuture> completedWrites = null;
+                    ArrayList<BGXWriteFuture> failedWrites = null;
+                    synchronized (dps.dataWriteSync) {
+                        if (dps.mTxChunks.inFlight() > 0) {
+                            long chunkEnd = dps.mTxChunks.takeEnd();
+                            if (BluetoothGatt.GATT_SUCCESS != status) {
+                                failedWrites = dps.takeTxWritesStartingBefore(chunkEnd);
+                            } else if (!dps.mFastAck) {
+                                completedWrites = dps.takeTxWritesEndingBy(chunkEnd);
+                            }
+                        }
+                        fMoreData = !dps.mTxBuffer.isEmpty();
+                        fIdle = 0 == dps.mTxChunks.inFlight();
+                    }
+
+                    dps.completeTxWrites(completedWrites);
+                    dps.failTxWrites(failedWrites, new IOException("Write failed. Status: " + status));
+
+                    if (fMoreData && fIdle && dps.hasPriorityGattCommands()) {
+                        // let the credit return or control operation go first.
+                        dps.queueTxDrain();
+                        dps.clearGattBusyFlagAndExecuteNext();
+                    } else if (fMoreData) {
                         writeChunkOfData();
-                    } else {
+                    } else if (fIdle) {
                         dps.clearGattBusyFlagAndExecuteNext();
                     }
                 } else if (dps.mBGXSSModeCharacteristic == characteristic) {
                     Log.d("bgx_dbg", "onCharacteristicWrite - mode characteristic. Status: " + status);
-                    dps.clearGattBusyFlagAndExecuteNext();
+                    if (dps.acceptGattCallback(characteristic)) {
+                        dps.clearGattBusyFlagAndExecuteNext();
+                    }
 
                     if (0 != status) {
                         // Treat this as a password error.
@@ -2025,10 +3886,14 @@ public class BGXpressService extends JobIntentService {
                     String txval = dps.mTxCharacteristic.getStringValue(0);
                     Log.d("bgx_dbg", "txval: " + txval);
 
-                    dps.clearGattBusyFlagAndExecuteNext();
+                    if (dps.acceptGattCallback(characteristic)) {
+                        dps.clearGattBusyFlagAndExecuteNext();
+                    }
                 } else {
                     Log.d("bgx_dbg", "onCharacteristicWrite - other");
-                    dps.clearGattBusyFlagAndExecuteNext();
+                    if (dps.acceptGattCallback(characteristic)) {
+                        dps.clearGattBusyFlagAndExecuteNext();
+                    }
                 }
             }
 
@@ -2040,7 +3905,7 @@ public class BGXpressService extends JobIntentService {
                 DeviceProperties dps = mDeviceProperties.get(gatt.getDevice().getAddress());
 
                 if (BluetoothGatt.GATT_SUCCESS != status) {
-                    Log.e("bgx_dbg", "onDescriptorWrite failed. DescID: " + descriptor.getUuid().toString() + " Last Executed Action: " + dps.mLastExecutedIntent.getAction());
+                    Log.e("bgx_dbg", "onDescriptorWrite failed. DescID: " + descriptor.getUuid().toString() + " Last Executed Command: " + dps.gattCommandName(dps.mLastExecutedCommand));
 
                     if (INTERROGATING == mBGXDeviceConnectionState) {
                         Intent intent = new Intent(BGX_CONNECTION_ERROR);
@@ -2048,80 +3913,129 @@ public class BGXpressService extends JobIntentService {
                         sendBroadcast(intent);
                     }
                 }
-                dps.clearGattBusyFlagAndExecuteNext();
+
+                if (dps.acceptGattCallback(descriptor)) {
+                    dps.clearGattBusyFlagAndExecuteNext();
+                }
             }
         };
 
-        private static final int kDataWriteChunkDefaultSize = 20;
+        private static final int kDataWriteChunkDefaultSize = 20;
+
+        /**
+         * Initial and default maximum size of the TX buffer.
+         */
+        private static final int kTxBufferInitialSize = 4096;
+        private static final int kTxBufferDefaultCapacity = 1024 * 1024;
+
+        /**
+         * Default backlog at which BGXConnection streams stop accepting data.
+         */
+        private static final int kTxDefaultHighWaterMark = 64 * 1024;
+
+        /**
+         * Initial size of the RX coalescing buffer. It grows as needed up to
+         * the capacity, which is also the largest byte limit that can be set.
+         */
+        private static final int kRxCoalesceBufferInitialSize = 1024;
+        private static final int kRxCoalesceBufferCapacity = 64 * 1024;
+
+        /**
+         * @return The Rx characteristic that writeChunkOfData() writes the TX buffer to.
+         */
+        private BluetoothGattCharacteristic serialDataCharacteristic() {
+            return (null != this.mRxCharacteristic2) ? this.mRxCharacteristic2 : this.mRxCharacteristic;
+        }
 
         /**
          * This is called to write a bit of data to the Rx characteristic.
          * and will be called again from OnCharacteristicWrite until all
-         * of the string has been written. The last call to this function
-         * clears mString2Write which indicates to OnCharacteristicWrite
-         * that no further calls to this function are needed in which case
-         * it calls clearGattBusyFlagAndExecuteNext().
+         * of the TX buffer has been written. Each successful write consumes
+         * the chunk from the front of mTxBuffer. Once mTxBuffer is empty
+         * and no chunks are in flight, OnCharacteristicWrite knows that no
+         * further calls to this function are needed in which case it calls
+         * clearGattBusyFlagAndExecuteNext().
+         *
+         * <p>BluetoothGatt accepts one outstanding write at a time, so at most
+         * one chunk is in flight. If the Bluetooth stack refuses the write the
+         * GATT is released and another drain is queued after a backoff delay.
+         *
+         * <p>If FastAck credits run out the GATT is released so other operations
+         * are not blocked while waiting for the BGX to return credits.
+         *
+         * <p>When write coalescing is enabled a partly filled chunk is held back.
+         * Once nothing is in flight the GATT is released and mTxCoalesceRunnable
+         * queues another drain when the coalescing delay expires.
          */
         private void writeChunkOfData() {
-            int ibegin, iend;
-
             if (mBluetoothGatt == null) {
                 Log.e("bgx_dbg", "writeChunkOfData(): BluetoothGatt is null");
                 return;
             }
 
-            if (mFastAck && mFastAckTxBytes <= 0) {
-                Log.d("bgx_fastAck", "FastAck Stall: mFastAckTxBytes = " + mFastAckTxBytes);
-                return;
-            }
-
-            BluetoothGattCharacteristic rxChar;
-            if (this.mRxCharacteristic2 != null) {
-                rxChar = this.mRxCharacteristic2;
-            } else {
-                rxChar = this.mRxCharacteristic;
-            }
+            BluetoothGattCharacteristic rxChar = serialDataCharacteristic();
 
             if (null == rxChar) {
                 Log.e("bgx_dbg", "Error, no RxCharacteristic available.");
             }
 
-            synchronized (this.dataWriteSync) {
-                if (null != this.mData2Write) {
+            boolean fReleaseGatt = false;
 
-                    ibegin = this.mWriteOffset;
-                    iend = this.mData2Write.length;
+            // each call follows progress on the link.
+            armGattWatchdog();
 
-                    if (iend - ibegin > this.deviceWriteChunkSize) {
-                        iend = ibegin + this.deviceWriteChunkSize;
-                    }
+            synchronized (this.dataWriteSync) {
+                long holdTime = txCoalesceHoldTime();
+
+                if (0 != this.mTxChunks.inFlight() || this.mTxBuffer.isEmpty()) {
+                    // OnCharacteristicWrite continues or releases the GATT.
+                } else if (mFastAck && mFastAckTxBytes <= 0) {
+                    Log.d("bgx_fastAck", "FastAck Stall: mFastAckTxBytes = " + mFastAckTxBytes);
+                    // release the GATT; the credit update queues another drain.
+                    fReleaseGatt = true;
+                } else if (holdTime > 0) {
+                    mHandler.removeCallbacks(mTxCoalesceRunnable);
+                    postDelayed(mTxCoalesceRunnable, holdTime);
+                    fReleaseGatt = true;
+                } else {
+                    int chunkSize = Math.min(this.mTxBuffer.size(), this.deviceWriteChunkSize);
 
-                    if (mFastAck) {
-                        for (int amt2write = (iend - ibegin); amt2write > mFastAckTxBytes; amt2write = (iend - ibegin)) {
-                            iend = ibegin + mFastAckTxBytes;
-                        }
+                    if (mFastAck && chunkSize > mFastAckTxBytes) {
+                        chunkSize = mFastAckTxBytes;
                     }
 
-                    rxChar.setValue(Arrays.copyOfRange(this.mData2Write, ibegin, iend));
+                    byte[] chunk = this.mTxChunks.peek(this.mTxBuffer, chunkSize, this.deviceWriteChunkSize);
+                    rxChar.setValue(chunk);
 
                     boolean writeResult = mBluetoothGatt.writeCharacteristic(rxChar);
                     if (writeResult) {
                         if (mFastAck) {
-                            mFastAckTxBytes -= (iend - ibegin);
-                            Log.d("bgx_fastAck", "mFastAckTxBytes: " + mFastAckTxBytes + " (subtracted " + (iend - ibegin) + " bytes)");
+                            mFastAckTxBytes -= chunkSize;
                         }
 
                         Log.d("bgx_dbg", "Rx Char Write success.");
 
-                        if (this.mData2Write.length > iend) {
-                            this.mWriteOffset = iend;
-                        } else {
-                            this.mWriteOffset = 0;
-                            this.mData2Write = null;
+                        this.mTxFlushMark = Math.max(0, this.mTxFlushMark - chunkSize);
+                        onTxChunkSent(chunkSize);
+                        this.mTxWriteFailures = 0;
+
+                        if (this.mTxWritersWaiting > 0) {
+                            this.dataWriteSync.notifyAll();
                         }
+                    } else {
+                        // no callback will follow, so let other operations run and try again later.
+                        int delay = gattRetryDelay(++this.mTxWriteFailures);
+                        Log.e("bgx_dbg", "Rx Char Write failed. Retrying in " + delay + " ms.");
+                        mHandler.removeCallbacks(mTxCoalesceRunnable);
+                        postDelayed(mTxCoalesceRunnable, delay);
+                        fReleaseGatt = true;
                     }
                 }
             }
+
+            if (fReleaseGatt) {
+                clearGattBusyFlagAndExecuteNext();
+            }
         }
 
 
@@ -2286,334 +4200,772 @@ public class BGXpressService extends JobIntentService {
                 password = "";
             }
 
-            byte[] zeroValue = new byte[0 == password.length() ? 1 : 2 + password.length()];
-            zeroValue[0] = (byte) 0;
-            if (password.length() > 0) {
-                for (int i = 0; i < password.length(); ++i) {
-                    zeroValue[i + 1] = password.getBytes()[i];
-                }
-                zeroValue[password.length() + 1] = 0;
-            }
+            byte[] zeroValue = new byte[0 == password.length() ? 1 : 2 + password.length()];
+            zeroValue[0] = (byte) 0;
+            if (password.length() > 0) {
+                for (int i = 0; i < password.length(); ++i) {
+                    zeroValue[i + 1] = password.getBytes()[i];
+                }
+                zeroValue[password.length() + 1] = 0;
+            }
+
+            this.mOTAControlCharacteristic.setValue(zeroValue);
+
+            if (mBluetoothGatt == null) {
+                Log.e("bgx_dbg", "handleActionOTAWithImage(): BluetoothGatt is null");
+                return;
+            }
+
+            if (!mBluetoothGatt.writeCharacteristic(this.mOTAControlCharacteristic)) {
+                Log.e("bgx_dbg", "Failed to write to OTAControlCharacteristic");
+            }
+        }
+
+        /**
+         * Perform the OTA.
+         *
+         * @param ota_image_path The path to the OTA image file used during OTA process.
+         */
+        private void handleActionOtaFirmwareImage(String ota_image_path, String password) {
+
+            try {
+                mOTAImageInputStream = getAssets().open("firmware_files/" + ota_image_path);
+                ota_image_size = mOTAImageInputStream.available();
+            } catch (IOException e) {
+                e.printStackTrace();
+                Log.e("bgx_dbg", "OTA file error with: " + ota_image_path);
+                return;
+            }
+
+            ota_bytes_sent = 0;
+
+            if (this.fOTAUserCanceled) {
+                ReportOTACanceled();
+                return;
+            }
+
+            // Write a zero to the OTA Control characteristic.
+            this.mOTAState = OTA_State.WrittenZeroToControlCharacteristic;
+
+            if (null == password) {
+                password = "";
+            }
+
+            byte[] zeroValue = new byte[0 == password.length() ? 1 : 2 + password.length()];
+            zeroValue[0] = (byte) 0;
+            if (password.length() > 0) {
+                for (int i = 0; i < password.length(); ++i) {
+                    zeroValue[i + 1] = password.getBytes()[i];
+                }
+                zeroValue[password.length() + 1] = 0;
+            }
+
+            this.mOTAControlCharacteristic.setValue(zeroValue);
+
+            if (mBluetoothGatt == null) {
+                Log.e("bgx_dbg", "handleActionOtaFirmwareImage(): BluetoothGatt is null");
+                return;
+            }
+
+            if (!mBluetoothGatt.writeCharacteristic(this.mOTAControlCharacteristic)) {
+                Log.e("bgx_dbg", "Failed to write to OTAControlCharacteristic");
+            }
+        }
+    }
+
+    static private Map<String, DeviceProperties> mDeviceProperties = null;
+
+    static private HandlerThread mHandlerThread = null;
+    static public Handler mHandler = null;
+
+    /**
+     * Foreground streaming mode.
+     * While mForegroundService is set, enqueueWork() hands intents directly to
+     * mWorkHandler. Otherwise they go through JobScheduler and onHandleWork()
+     * passes them on to mWorkHandler, so in either mode all work is handled
+     * one intent at a time on the BGXpressWork thread.
+     *
+     * <p>Intents dispatched in foreground mode while JobScheduler work is still
+     * pending are kept in mDeferredWork until that work has been handled so
+     * that actions run in the order they were sent. Guarded by mWorkSync.
+     */
+    static private volatile BGXpressService mForegroundService = null;
+    static private HandlerThread mWorkThread = null;
+    static private Handler mWorkHandler = null;
+    static private final Object mWorkSync = new Object();
+    static private int mJobWorkPending = 0;
+    static private final ArrayList<Intent> mDeferredWork = new ArrayList<>();
+
+    private static final int kForegroundNotificationId = 0xB6C;
+
+
+    public void onCreate() {
+        super.onCreate();
+
+        if (null == mHandlerThread) {
+            mHandlerThread = new HandlerThread("BGXpress");
+            mHandlerThread.start();
+        }
+
+        if (null == mHandler) {
+            mHandler = new Handler(mHandlerThread.getLooper());
+        }
+
+        if (null == mWorkThread) {
+            mWorkThread = new HandlerThread("BGXpressWork");
+            mWorkThread.start();
+            mWorkHandler = new Handler(mWorkThread.getLooper());
+        }
+
+        if (null == mScanProperties) {
+            mScanProperties = new ScanProperties();
+        }
+
+        if (null == mDeviceProperties) {
+            mDeviceProperties = new HashMap<>();
+        }
+    }
+
+    /**
+     * Starts this service to perform action Start Scan. If
+     * the service is already performing a task this action will be queued.
+     *
+     * @param context Interface to global information about an Android application environment.
+     */
+    public static void startActionStartScan(Context context) {
+        Intent intent = new Intent(context, BGXpressService.class);
+        intent.setAction(ACTION_START_SCAN);
+        enqueueWork(context, intent);
+    }
+
+    /**
+     * Starts this service to perform action Stop Scan. If
+     * the service is already performing a task this action will be queued.
+     *
+     * @param context Interface to global information about an Android application environment.
+     */
+    public static void startActionStopScan(Context context) {
+        Intent intent = new Intent(context, BGXpressService.class);
+        intent.setAction(ACTION_STOP_SCAN);
+        enqueueWork(context, intent);
+    }
+
+    /**
+     * Attempt to connect to the specified device. The process of the connection
+     * can be tracked by receiving a series of BGX_CONNECTION_STATUS_CHANGE intents.
+     *
+     * @param context       Interface to global information about an Android application environment.
+     * @param deviceAddress The Bluetooth address of the device to which to connect.
+     */
+    public static void startActionBGXConnect(Context context, String deviceAddress) {
+        Intent intent = new Intent(context, BGXpressService.class);
+        intent.setAction(ACTION_BGX_CONNECT);
+        intent.putExtra("DeviceAddress", deviceAddress);
+        enqueueWork(context, intent);
+    }
+
+    /**
+     * Attempt to cancel an in-progress connection operation.
+     *
+     * @param context       Interface to global information about an Android application environment.
+     * @param deviceAddress The Bluetooth address of the device to which
+     *                      to cancel the connection in progress.
+     */
+    public static void startActionBGXCancelConnect(Context context, String deviceAddress) {
+        Intent intent = new Intent(context, BGXpressService.class);
+        intent.setAction(ACTION_BGX_CANCEL_CONNECTION);
+        intent.putExtra("DeviceAddress", deviceAddress);
+        enqueueWork(context, intent);
+    }
+
+    /**
+     * Disconnect from a BGX Device.
+     *
+     * @param context       Interface to global information about an Android application environment.
+     * @param deviceAddress The Bluetooth address of the device to which you wish to disconnect from.
+     */
+    public static void startActionBGXDisconnect(Context context, String deviceAddress) {
+        Intent intent = new Intent(context, BGXpressService.class);
+        intent.setAction(ACTION_BGX_DISCONNECT);
+        intent.putExtra("DeviceAddress", deviceAddress);
+        enqueueWork(context, intent);
+    }
+
+    /**
+     * Write message to BGX Device.
+     *
+     * @param context       Interface to global information about an Android application environment.
+     * @param message       A message you want to write to BGX device.
+     * @param deviceAddress The device to which the operation pertains.
+     */
+    public static void startActionBGXWriteMessage(Context context, String message, String deviceAddress) {
+        Intent intent = new Intent(context, BGXpressService.class);
+        intent.setAction(ACTION_WRITE_SERIAL_DATA);
+        intent.putExtra("DeviceAddress", deviceAddress);
+        intent.putExtra("value", message);
+        enqueueWork(context, intent);
+    }
+
+    /**
+     * Write array of bytes to BGX Device.
+     *
+     * @param context       Interface to global information about an Android application environment.
+     * @param byteArray     Array of bytes you want to write to BGX device.
+     * @param deviceAddress The device to which the operation pertains.
+     */
+    public static void startActionBGXWriteByteArray(Context context, byte[] byteArray, String deviceAddress) {
+        Intent intent = new Intent(context, BGXpressService.class);
+        intent.setAction(BGXpressService.ACTION_WRITE_SERIAL_BIN_DATA);
+        intent.putExtra("value", byteArray);
+        intent.putExtra("DeviceAddress", deviceAddress);
+        enqueueWork(context, intent);
+    }
+
+    /**
+     * Read Bus Mode.
+     *
+     * @param context       Interface to global information about an Android application environment.
+     * @param deviceAddress The device to which the operation pertains.
+     */
+    public static void startActionBGXReadBusMode(Context context, String deviceAddress) {
+        Intent intent = new Intent(context, BGXpressService.class);
+        intent.setAction(ACTION_READ_BUS_MODE);
+        intent.putExtra("DeviceAddress", deviceAddress);
+        enqueueWork(context, intent);
+    }
+
+    /**
+     * Write Bus Mode.
+     *
+     * @param context       Interface to global information about an Android application environment.
+     * @param deviceAddress The device to which the operation pertains.
+     * @param busMode       One of the values from BusMode: STREAM_MODE, LOCAL_COMMAND_MODE, or REMOTE_COMMAND_MODE.
+     * @param password      If supplied, this value will be used as the password for REMOTE_COMMAND_MODE.
+     */
+    public static void startActionBGXWriteBusMode(Context context, String deviceAddress, int busMode, String password) {
+        Intent intent = new Intent(context, BGXpressService.class);
+        intent.setAction(ACTION_WRITE_BUS_MODE);
+        intent.putExtra("DeviceAddress", deviceAddress);
+        intent.putExtra("busmode", busMode);
+        intent.putExtra("password", password);
+        enqueueWork(context, intent);
+    }
+
+    /**
+     * Attempt to cancel an OTA operation in progress.
+     *
+     * @param context       Interface to global information about an Android application environment.
+     * @param deviceAddress The device to which the operation pertains.
+     */
+    public static void startActionBGXCancelOta(Context context, String deviceAddress) {
+        Intent intent = new Intent(context, BGXpressService.class);
+        intent.setAction(BGXpressService.ACTION_OTA_CANCEL);
+        intent.putExtra("DeviceAddress", deviceAddress);
+        enqueueWork(context, intent);
+    }
 
-            this.mOTAControlCharacteristic.setValue(zeroValue);
+    /**
+     * Start Ota process.
+     *
+     * @param context       Interface to global information about an Android application environment.
+     * @param deviceAddress The device to which the operation pertains.
+     * @param imagePath     Path to the image file.
+     * @param writeType     (Optional) Either BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT or WRITE_TYPE_NO_RESPONSE.
+     * @param password      The password to use for the OTA update if one is set.
+     */
+    @Deprecated
+    public static void startActionBGXOtaWithImage(Context context, String deviceAddress, String imagePath, int writeType, String password) {
+        Intent intent = new Intent(context, BGXpressService.class);
+        intent.setAction(BGXpressService.ACTION_OTA_WITH_IMAGE);
+        intent.putExtra("DeviceAddress", deviceAddress);
+        intent.putExtra("image_path", imagePath);
+        intent.putExtra("writeType", writeType);
+        intent.putExtra("password", password);
+        enqueueWork(context, intent);
+    }
 
-            if (mBluetoothGatt == null) {
-                Log.e("bgx_dbg", "handleActionOTAWithImage(): BluetoothGatt is null");
-                return;
-            }
+    /**
+     * Start Ota process.
+     *
+     * @param context       Interface to global information about an Android application environment.
+     * @param deviceAddress The device to which the operation pertains.
+     * @param imagePath     Path to the image file.
+     * @param writeType     (Optional) Either BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT or WRITE_TYPE_NO_RESPONSE.
+     * @param password      The password to use for the OTA update if one is set.
+     */
+    public static void startActionBGXOtaFirmwareImage(Context context, String deviceAddress, String imagePath, int writeType, String password) {
+        Intent intent = new Intent(context, BGXpressService.class);
+        intent.setAction(BGXpressService.ACTION_OTA_FIRMWARE_IMAGE);
+        intent.putExtra("DeviceAddress", deviceAddress);
+        intent.putExtra("image_path", imagePath);
+        intent.putExtra("writeType", writeType);
+        intent.putExtra("password", password);
+        enqueueWork(context, intent);
+    }
 
-            if (!mBluetoothGatt.writeCharacteristic(this.mOTAControlCharacteristic)) {
-                Log.e("bgx_dbg", "Failed to write to OTAControlCharacteristic");
-            }
-        }
+    /**
+     * Get available firmware versions.
+     *
+     * @param context        Interface to global information about an Android application environment.
+     * @param partIdentifier An 8 character string identifying the type of BGX part.
+     */
+    public static void startActionBGXGetFirmwareVersions(Context context, String partIdentifier) {
+        Intent intent = new Intent(context, BGXpressService.class);
+        intent.setAction(ACTION_GET_FIRMWARE_VERSIONS);
+        intent.putExtra("bgx-part-identifier", partIdentifier);
+        enqueueWork(context, intent);
+    }
 
-        /**
-         * Perform the OTA.
-         *
-         * @param ota_image_path The path to the OTA image file used during OTA process.
-         */
-        private void handleActionOtaFirmwareImage(String ota_image_path, String password) {
+    /**
+     * A BGXEventListener and the Executor on which it is called.
+     */
+    private static final class EventListenerRegistration {
+        final BGXEventListener mListener;
+        final Executor mExecutor;
 
-            try {
-                mOTAImageInputStream = getAssets().open("firmware_files/" + ota_image_path);
-                ota_image_size = mOTAImageInputStream.available();
-            } catch (IOException e) {
-                e.printStackTrace();
-                Log.e("bgx_dbg", "OTA file error with: " + ota_image_path);
-                return;
-            }
+        EventListenerRegistration(BGXEventListener listener, Executor executor) {
+            this.mListener = listener;
+            this.mExecutor = executor;
+        }
+    }
 
-            ota_bytes_sent = 0;
+    /**
+     * In-process event listeners by device address.
+     */
+    private static final ConcurrentHashMap<String, CopyOnWriteArrayList<EventListenerRegistration>> mEventListeners = new ConcurrentHashMap<>();
 
-            if (this.fOTAUserCanceled) {
-                ReportOTACanceled();
-                return;
-            }
+    /**
+     * Whether data, connection status, MTU and bus mode events are also sent as broadcasts.
+     */
+    private static volatile boolean fBroadcastEvents = true;
 
-            // Write a zero to the OTA Control characteristic.
-            this.mOTAState = OTA_State.WrittenZeroToControlCharacteristic;
+    /**
+     * Registers a listener for the events of a BGX. Registration may happen
+     * before the device is connected and lasts until the listener is removed.
+     *
+     * @param deviceAddress The device whose events are wanted.
+     * @param listener      The listener.
+     * @param executor      Runs the listener methods. An Executor that runs commands
+     *                      directly delivers events on the thread that received them.
+     */
+    public static void addBGXEventListener(String deviceAddress, BGXEventListener listener, Executor executor) {
+        CopyOnWriteArrayList<EventListenerRegistration> registrations = mEventListeners.get(deviceAddress);
+        if (null == registrations) {
+            mEventListeners.putIfAbsent(deviceAddress, new CopyOnWriteArrayList<EventListenerRegistration>());
+            registrations = mEventListeners.get(deviceAddress);
+        }
 
-            if (null == password) {
-                password = "";
-            }
+        registrations.add(new EventListenerRegistration(listener, executor));
+    }
 
-            byte[] zeroValue = new byte[0 == password.length() ? 1 : 2 + password.length()];
-            zeroValue[0] = (byte) 0;
-            if (password.length() > 0) {
-                for (int i = 0; i < password.length(); ++i) {
-                    zeroValue[i + 1] = password.getBytes()[i];
+    /**
+     * Removes a listener added with addBGXEventListener().
+     *
+     * @param deviceAddress The device the listener was registered for.
+     * @param listener      The listener.
+     */
+    public static void removeBGXEventListener(String deviceAddress, BGXEventListener listener) {
+        CopyOnWriteArrayList<EventListenerRegistration> registrations = mEventListeners.get(deviceAddress);
+        if (null != registrations) {
+            for (EventListenerRegistration registration : registrations) {
+                if (registration.mListener == listener) {
+                    registrations.remove(registration);
                 }
-                zeroValue[password.length() + 1] = 0;
-            }
-
-            this.mOTAControlCharacteristic.setValue(zeroValue);
-
-            if (mBluetoothGatt == null) {
-                Log.e("bgx_dbg", "handleActionOtaFirmwareImage(): BluetoothGatt is null");
-                return;
-            }
-
-            if (!mBluetoothGatt.writeCharacteristic(this.mOTAControlCharacteristic)) {
-                Log.e("bgx_dbg", "Failed to write to OTAControlCharacteristic");
             }
         }
     }
 
-    static private Map<String, DeviceProperties> mDeviceProperties = null;
-
-    static private HandlerThread mHandlerThread = null;
-    static public Handler mHandler = null;
-
-
-    public void onCreate() {
-        super.onCreate();
+    /**
+     * Controls whether BGX_DATA_RECEIVED, BGX_CONNECTION_STATUS_CHANGE, BGX_MTU_CHANGE
+     * and BGX_MODE_STATE_CHANGE are sent as broadcasts. Apps that use
+     * BGXEventListeners can turn them off to avoid the cost of a system broadcast
+     * for every notification. Other broadcasts are always sent.
+     *
+     * @param enabled true (the default) to send the broadcasts.
+     */
+    public static void setBGXEventBroadcasts(boolean enabled) {
+        fBroadcastEvents = enabled;
+    }
 
-        if (null == mHandlerThread) {
-            mHandlerThread = new HandlerThread("BGXpress");
-            mHandlerThread.start();
+    private static void dispatchDataEvent(final String deviceAddress, final byte[] data, final long timestamp) {
+        CopyOnWriteArrayList<EventListenerRegistration> registrations = mEventListeners.get(deviceAddress);
+        if (null != registrations) {
+            for (final EventListenerRegistration registration : registrations) {
+                registration.mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        registration.mListener.onData(deviceAddress, data, timestamp);
+                    }
+                });
+            }
         }
+    }
 
-        if (null == mHandler) {
-            mHandler = new Handler(mHandlerThread.getLooper());
+    /**
+     * Delivers a connection status, MTU, bus mode or GATT timeout or error event to the BGXEventListeners
+     * and, unless turned off with setBGXEventBroadcasts(), as a broadcast.
+     */
+    private void publishEvent(Intent intent) {
+        String deviceAddress = intent.getStringExtra("DeviceAddress");
+        if (null == deviceAddress) {
+            // BGX_MTU_CHANGE
+            deviceAddress = intent.getStringExtra("deviceAddress");
         }
 
-        if (null == mScanProperties) {
-            mScanProperties = new ScanProperties();
+        CopyOnWriteArrayList<EventListenerRegistration> registrations = (null == deviceAddress) ? null : mEventListeners.get(deviceAddress);
+        if (null != registrations) {
+            final String address = deviceAddress;
+            final String action = intent.getAction();
+            final BGX_CONNECTION_STATUS connectionStatus = (BGX_CONNECTION_STATUS) intent.getSerializableExtra("bgx-connection-status");
+            final int mtu = intent.getIntExtra("mtu", 0);
+            final int status = intent.getIntExtra("status", 0);
+            final int busMode = intent.getIntExtra("busmode", BusMode.UNKNOWN_MODE);
+            final String operation = intent.getStringExtra("operation");
+            final long timeout = intent.getLongExtra("timeout", 0);
+            final boolean retrying = intent.getBooleanExtra("retrying", false);
+            final int attempts = intent.getIntExtra("attempts", 0);
+
+            for (final EventListenerRegistration registration : registrations) {
+                registration.mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        switch (action) {
+                            case BGX_CONNECTION_STATUS_CHANGE:
+                                registration.mListener.onConnectionStatus(address, connectionStatus);
+                                break;
+                            case BGX_MTU_CHANGE:
+                                registration.mListener.onMtu(address, mtu, status);
+                                break;
+                            case BGX_MODE_STATE_CHANGE:
+                                registration.mListener.onBusMode(address, busMode);
+                                break;
+                            case BGX_GATT_TIMEOUT:
+                                registration.mListener.onGattTimeout(address, operation, timeout, retrying);
+                                break;
+                            case BGX_GATT_ERROR:
+                                registration.mListener.onGattError(address, operation, attempts);
+                                break;
+                        }
+                    }
+                });
+            }
         }
 
-        if (null == mDeviceProperties) {
-            mDeviceProperties = new HashMap<>();
+        if (fBroadcastEvents) {
+            sendBroadcast(intent);
         }
     }
 
     /**
-     * Starts this service to perform action Start Scan. If
-     * the service is already performing a task this action will be queued.
+     * Starts an operation to get the device info which
+     * is the part id and the device uuid.
      *
-     * @param context Interface to global information about an Android application environment.
+     * @param context       Interface to global information about an Android application environment.
+     * @param deviceAddress The device to which the operation pertains.
      */
-    public static void startActionStartScan(Context context) {
+    public static void getBGXDeviceInfo(Context context, String deviceAddress) {
         Intent intent = new Intent(context, BGXpressService.class);
-        intent.setAction(ACTION_START_SCAN);
+        intent.putExtra("DeviceAddress", deviceAddress);
+        intent.setAction(ACTION_BGX_GET_INFO);
         enqueueWork(context, intent);
     }
 
     /**
-     * Starts this service to perform action Stop Scan. If
-     * the service is already performing a task this action will be queued.
+     * Controls whether BGX_DATA_RECEIVED broadcasts carry the "data" String extra.
+     * The raw "bytes" extra is always present. Turning text off saves decoding
+     * every notification when the BGX carries binary data.
      *
-     * @param context Interface to global information about an Android application environment.
+     * @param deviceAddress The device to which the operation pertains.
+     * @param decodeText    true (the default) to include the data decoded as UTF-8.
+     *                      Characters split between notifications are decoded whole.
+     * @return true if the setting was changed.
      */
-    public static void startActionStopScan(Context context) {
-        Intent intent = new Intent(context, BGXpressService.class);
-        intent.setAction(ACTION_STOP_SCAN);
-        enqueueWork(context, intent);
+    public static boolean setBGXReceiveText(String deviceAddress, boolean decodeText) {
+        boolean result = false;
+
+        DeviceProperties dps = mDeviceProperties.get(deviceAddress);
+        if (dps != null) {
+            if (decodeText != dps.fRxTextDecode) {
+                synchronized (dps.mRxTextDecoder) {
+                    dps.mRxTextDecoder.reset();
+                }
+            }
+            dps.fRxTextDecode = decodeText;
+            result = true;
+        }
+
+        return result;
     }
 
     /**
-     * Attempt to connect to the specified device. The process of the connection
-     * can be tracked by receiving a series of BGX_CONNECTION_STATUS_CHANGE intents.
+     * Enables coalescing of received data. Notifications are gathered and
+     * delivered as a single BGX_DATA_RECEIVED broadcast (and DataListener call)
+     * once maxBytes have been received or maxDelayMs after the first of them,
+     * whichever happens first. Coalesced data is delivered on the service's handler
+     * thread. RX buffers of BGXConnections and FastAck credits are not delayed.
      *
-     * @param context       Interface to global information about an Android application environment.
-     * @param deviceAddress The Bluetooth address of the device to which to connect.
+     * <p>At most 64 KiB are gathered. A notification that would take the gathered
+     * data over maxBytes, or over 64 KiB, is delivered together with it right away.
+     *
+     * @param deviceAddress The device to which the operation pertains.
+     * @param maxBytes      Deliver once this many bytes are gathered, at most 65536. 0 for no byte limit.
+     * @param maxDelayMs    Deliver this long after the first gathered notification. Must not be 0
+     *                      if maxBytes is set, so that the end of a burst is not held indefinitely.
+     *                      If both are 0, coalescing is disabled (the default).
+     * @return true if the setting was changed, false if the device is unknown or the values are invalid.
      */
-    public static void startActionBGXConnect(Context context, String deviceAddress) {
-        Intent intent = new Intent(context, BGXpressService.class);
-        intent.setAction(ACTION_BGX_CONNECT);
-        intent.putExtra("DeviceAddress", deviceAddress);
-        enqueueWork(context, intent);
+    public static boolean setBGXReceiveCoalescing(String deviceAddress, int maxBytes, int maxDelayMs) {
+        boolean result = false;
+
+        DeviceProperties dps = mDeviceProperties.get(deviceAddress);
+        if (dps != null && maxBytes >= 0 && maxDelayMs >= 0
+                && maxBytes <= DeviceProperties.kRxCoalesceBufferCapacity
+                && !(maxBytes > 0 && 0 == maxDelayMs)) {
+            synchronized (dps.rxCoalesceSync) {
+                dps.mRxCoalesceBytes = maxBytes;
+                dps.mRxCoalesceDelay = maxDelayMs;
+            }
+            // deliver anything gathered under the old settings.
+            mHandler.removeCallbacks(dps.mRxCoalesceRunnable);
+            dps.post(dps.mRxCoalesceRunnable);
+            result = true;
+        }
+
+        return result;
     }
 
-    /**
-     * Attempt to cancel an in-progress connection operation.
-     *
-     * @param context       Interface to global information about an Android application environment.
-     * @param deviceAddress The Bluetooth address of the device to which
-     *                      to cancel the connection in progress.
-     */
-    public static void startActionBGXCancelConnect(Context context, String deviceAddress) {
-        Intent intent = new Intent(context, BGXpressService.class);
-        intent.setAction(ACTION_BGX_CANCEL_CONNECTION);
-        intent.putExtra("DeviceAddress", deviceAddress);
-        enqueueWork(context, intent);
+    public static boolean setBGXAcknowledgedWrites(String deviceAddress, boolean acknowledgedWrites) {
+        boolean result = false;
+
+        DeviceProperties dps = mDeviceProperties.get(deviceAddress);
+        if (dps != null) {
+            dps.queueGattCommand(dps.new SetWriteTypeCommand(acknowledgedWrites));
+            result = true;
+        }
+
+        return result;
     }
 
-    /**
-     * Disconnect from a BGX Device.
-     *
-     * @param context       Interface to global information about an Android application environment.
-     * @param deviceAddress The Bluetooth address of the device to which you wish to disconnect from.
-     */
-    public static void startActionBGXDisconnect(Context context, String deviceAddress) {
-        Intent intent = new Intent(context, BGXpressService.class);
-        intent.setAction(ACTION_BGX_DISCONNECT);
-        intent.putExtra("DeviceAddress", deviceAddress);
-        enqueueWork(context, intent);
+    public static boolean setBGXAcknowledgedReads(String deviceAddress, boolean acknowledgedReads) {
+        boolean result = false;
+
+        DeviceProperties dps = mDeviceProperties.get(deviceAddress);
+        if (dps != null) {
+            dps.queueGattCommand(dps.new SetReadTypeCommand(acknowledgedReads));
+            result = true;
+        }
+
+        return result;
     }
 
     /**
-     * Write message to BGX Device.
+     * Gets an in-process handle to a BGX. Writes through the handle go straight
+     * to the device's TX buffer without an Intent or JobIntentService work item.
+     *
+     * <p>The device must have been connected with {@link #startActionBGXConnect}.
+     * The handle stays usable across reconnects until it is closed.
      *
-     * @param context       Interface to global information about an Android application environment.
-     * @param message       A message you want to write to BGX device.
      * @param deviceAddress The device to which the operation pertains.
+     * @return A new BGXConnection or null if the device has never been connected.
      */
-    public static void startActionBGXWriteMessage(Context context, String message, String deviceAddress) {
-        Intent intent = new Intent(context, BGXpressService.class);
-        intent.setAction(ACTION_WRITE_SERIAL_DATA);
-        intent.putExtra("DeviceAddress", deviceAddress);
-        intent.putExtra("value", message);
-        enqueueWork(context, intent);
+    public static BGXConnection getConnection(String deviceAddress) {
+        if (null == mDeviceProperties) {
+            return null;
+        }
+
+        DeviceProperties dps = mDeviceProperties.get(deviceAddress);
+        if (null == dps) {
+            return null;
+        }
+
+        BGXConnection connection = new BGXConnection(deviceAddress, dps);
+        dps.mConnections.add(connection);
+        return connection;
     }
 
     /**
-     * Write array of bytes to BGX Device.
+     * Sets the maximum number of bytes that can be waiting to be written to the BGX.
+     * Data written while the buffer is full is dropped. The default is 1 MiB.
      *
-     * @param context       Interface to global information about an Android application environment.
-     * @param byteArray     Array of bytes you want to write to BGX device.
      * @param deviceAddress The device to which the operation pertains.
+     * @param capacity      The maximum number of bytes to buffer. It cannot be set lower than the number of bytes currently buffered.
+     * @return true if the capacity was changed.
      */
-    public static void startActionBGXWriteByteArray(Context context, byte[] byteArray, String deviceAddress) {
-        Intent intent = new Intent(context, BGXpressService.class);
-        intent.setAction(BGXpressService.ACTION_WRITE_SERIAL_BIN_DATA);
-        intent.putExtra("value", byteArray);
-        intent.putExtra("DeviceAddress", deviceAddress);
-        enqueueWork(context, intent);
+    public static boolean setBGXWriteBufferCapacity(String deviceAddress, int capacity) {
+        boolean result = false;
+
+        DeviceProperties dps = mDeviceProperties.get(deviceAddress);
+        if (dps != null) {
+            synchronized (dps.dataWriteSync) {
+                result = dps.mTxBuffer.setCapacity(capacity);
+            }
+        }
+
+        return result;
     }
 
     /**
-     * Read Bus Mode.
+     * Enables coalescing of small writes. While enabled, a chunk that is not
+     * completely filled is held back until more data fills it up to the negotiated
+     * MTU payload size or until delayMs has passed since the data was queued.
+     * Use {@link BGXConnection#flush} to send latency-critical bytes immediately.
      *
-     * @param context       Interface to global information about an Android application environment.
      * @param deviceAddress The device to which the operation pertains.
+     * @param delayMs       The longest time to hold back a partly filled chunk. 0 disables coalescing (the default).
+     * @return true if the setting was changed.
      */
-    public static void startActionBGXReadBusMode(Context context, String deviceAddress) {
-        Intent intent = new Intent(context, BGXpressService.class);
-        intent.setAction(ACTION_READ_BUS_MODE);
-        intent.putExtra("DeviceAddress", deviceAddress);
-        enqueueWork(context, intent);
+    public static boolean setBGXWriteCoalescing(String deviceAddress, int delayMs) {
+        boolean result = false;
+
+        DeviceProperties dps = mDeviceProperties.get(deviceAddress);
+        if (dps != null && delayMs >= 0) {
+            synchronized (dps.dataWriteSync) {
+                dps.mTxCoalesceDelay = delayMs;
+            }
+            dps.queueTxDrain();
+            result = true;
+        }
+
+        return result;
     }
 
     /**
-     * Write Bus Mode.
+     * Sets how long a GATT operation may wait for its callback before it is
+     * abandoned (or retried once, if that is harmless) and the next queued
+     * operation is started. A BGX_GATT_TIMEOUT event reports each timeout.
+     * Long data transfers are not affected as long as each chunk is acknowledged in time.
      *
-     * @param context       Interface to global information about an Android application environment.
      * @param deviceAddress The device to which the operation pertains.
-     * @param busMode       One of the values from BusMode: STREAM_MODE, LOCAL_COMMAND_MODE, or REMOTE_COMMAND_MODE.
-     * @param password      If supplied, this value will be used as the password for REMOTE_COMMAND_MODE.
+     * @param timeoutMs     The timeout in milliseconds. The default is 5000. 0 disables the watchdog.
+     * @return true if the setting was changed.
      */
-    public static void startActionBGXWriteBusMode(Context context, String deviceAddress, int busMode, String password) {
-        Intent intent = new Intent(context, BGXpressService.class);
-        intent.setAction(ACTION_WRITE_BUS_MODE);
-        intent.putExtra("DeviceAddress", deviceAddress);
-        intent.putExtra("busmode", busMode);
-        intent.putExtra("password", password);
-        enqueueWork(context, intent);
+    public static boolean setBGXGattTimeout(String deviceAddress, int timeoutMs) {
+        boolean result = false;
+
+        DeviceProperties dps = mDeviceProperties.get(deviceAddress);
+        if (dps != null && timeoutMs >= 0) {
+            dps.mGattTimeout = timeoutMs;
+            result = true;
+        }
+
+        return result;
     }
 
     /**
-     * Attempt to cancel an OTA operation in progress.
+     * Gets statistics about the GATT operations of a BGX: the queue depth and,
+     * for each type of operation, the time spent waiting in the queue and
+     * holding the GATT.
      *
-     * @param context       Interface to global information about an Android application environment.
      * @param deviceAddress The device to which the operation pertains.
+     * @return A snapshot of the statistics, or null if the device is not known.
      */
-    public static void startActionBGXCancelOta(Context context, String deviceAddress) {
-        Intent intent = new Intent(context, BGXpressService.class);
-        intent.setAction(BGXpressService.ACTION_OTA_CANCEL);
-        intent.putExtra("DeviceAddress", deviceAddress);
-        enqueueWork(context, intent);
+    public static BGXGattStatistics getBGXGattStatistics(String deviceAddress) {
+        DeviceProperties dps = mDeviceProperties.get(deviceAddress);
+        return (null == dps) ? null : dps.mGattStatistics.copy();
     }
 
     /**
-     * Start Ota process.
+     * Clears the GATT statistics of a BGX.
      *
-     * @param context       Interface to global information about an Android application environment.
      * @param deviceAddress The device to which the operation pertains.
-     * @param imagePath     Path to the image file.
-     * @param writeType     (Optional) Either BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT or WRITE_TYPE_NO_RESPONSE.
-     * @param password      The password to use for the OTA update if one is set.
+     * @return true if the statistics were cleared.
      */
-    @Deprecated
-    public static void startActionBGXOtaWithImage(Context context, String deviceAddress, String imagePath, int writeType, String password) {
-        Intent intent = new Intent(context, BGXpressService.class);
-        intent.setAction(BGXpressService.ACTION_OTA_WITH_IMAGE);
-        intent.putExtra("DeviceAddress", deviceAddress);
-        intent.putExtra("image_path", imagePath);
-        intent.putExtra("writeType", writeType);
-        intent.putExtra("password", password);
-        enqueueWork(context, intent);
+    public static boolean resetBGXGattStatistics(String deviceAddress) {
+        boolean result = false;
+
+        DeviceProperties dps = mDeviceProperties.get(deviceAddress);
+        if (dps != null) {
+            dps.mGattStatistics.reset();
+            result = true;
+        }
+
+        return result;
     }
 
     /**
-     * Start Ota process.
+     * Logs the GATT statistics of a BGX periodically with the tag bgx_dbg.
      *
-     * @param context       Interface to global information about an Android application environment.
      * @param deviceAddress The device to which the operation pertains.
-     * @param imagePath     Path to the image file.
-     * @param writeType     (Optional) Either BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT or WRITE_TYPE_NO_RESPONSE.
-     * @param password      The password to use for the OTA update if one is set.
+     * @param intervalMs    The time between dumps. 0 stops the dumps (the default).
+     * @return true if the setting was changed.
      */
-    public static void startActionBGXOtaFirmwareImage(Context context, String deviceAddress, String imagePath, int writeType, String password) {
-        Intent intent = new Intent(context, BGXpressService.class);
-        intent.setAction(BGXpressService.ACTION_OTA_FIRMWARE_IMAGE);
-        intent.putExtra("DeviceAddress", deviceAddress);
-        intent.putExtra("image_path", imagePath);
-        intent.putExtra("writeType", writeType);
-        intent.putExtra("password", password);
-        enqueueWork(context, intent);
+    public static boolean setBGXGattStatisticsDump(final String deviceAddress, final int intervalMs) {
+        boolean result = false;
+
+        final DeviceProperties dps = mDeviceProperties.get(deviceAddress);
+        if (dps != null && intervalMs >= 0) {
+            synchronized (dps) {
+                if (null != dps.mGattStatisticsDump) {
+                    mHandler.removeCallbacks(dps.mGattStatisticsDump);
+                    dps.mGattStatisticsDump = null;
+                }
+
+                if (intervalMs > 0) {
+                    dps.mGattStatisticsDump = new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (dps) {
+                                if (this != dps.mGattStatisticsDump) {
+                                    return;  // replaced or stopped.
+                                }
+                                dps.postDelayed(this, intervalMs);
+                            }
+                            Log.d("bgx_dbg", "GATT statistics for " + deviceAddress + ": " + dps.mGattStatistics);
+                        }
+                    };
+                    dps.postDelayed(dps.mGattStatisticsDump, intervalMs);
+                }
+            }
+            result = true;
+        }
+
+        return result;
     }
 
     /**
-     * Get available firmware versions.
+     * Sends part or all of a file to a BGX without loading it into memory.
+     * The transfer uses its own BGXConnection, which is closed when it ends.
      *
-     * @param context        Interface to global information about an Android application environment.
-     * @param partIdentifier An 8 character string identifying the type of BGX part.
+     * @param deviceAddress The device to send the file to.
+     * @param file          The file to send.
+     * @param offset        The position in the file of the first byte to send.
+     * @param length        The number of bytes to send, or -1 to send the rest of the file.
+     * @param listener      Receives progress and the result. May be null.
+     * @return The transfer, which can be used to cancel it.
+     * @throws IOException if the BGX is not connected or the file cannot be opened.
      */
-    public static void startActionBGXGetFirmwareVersions(Context context, String partIdentifier) {
-        Intent intent = new Intent(context, BGXpressService.class);
-        intent.setAction(ACTION_GET_FIRMWARE_VERSIONS);
-        intent.putExtra("bgx-part-identifier", partIdentifier);
-        enqueueWork(context, intent);
+    public static BGXFileTransfer sendFile(String deviceAddress, File file, long offset, long length, BGXFileTransfer.Listener listener) throws IOException {
+        BGXConnection connection = getConnection(deviceAddress);
+        if (null == connection) {
+            throw new IOException("BGX " + deviceAddress + " is not connected.");
+        }
+
+        try {
+            return connection.sendFile(file, offset, length, listener, true);
+        } catch (IOException exception) {
+            connection.close();
+            throw exception;
+        }
     }
 
     /**
-     * Starts an operation to get the device info which
-     * is the part id and the device uuid.
+     * Sets the TX backlog at which the OutputStream and WritableByteChannel of a
+     * BGXConnection stop accepting data. A blocking writer waits until the
+     * backlog drops below this value and a non-blocking channel writes zero bytes.
      *
-     * @param context       Interface to global information about an Android application environment.
      * @param deviceAddress The device to which the operation pertains.
+     * @param highWaterMark The backlog in bytes. The default is 64 KiB.
+     * @return true if the high-water mark was changed.
      */
-    public static void getBGXDeviceInfo(Context context, String deviceAddress) {
-        Intent intent = new Intent(context, BGXpressService.class);
-        intent.putExtra("DeviceAddress", deviceAddress);
-        intent.setAction(ACTION_BGX_GET_INFO);
-        enqueueWork(context, intent);
-    }
-
-    public static boolean setBGXAcknowledgedWrites(String deviceAddress, boolean acknowledgedWrites) {
-        boolean result = false;
-        Intent intent = new Intent();
-        intent.setAction(ACTION_SET_WRITE_TYPE);
-        intent.putExtra("acknowledgedWrites", acknowledgedWrites);
-
-        DeviceProperties dps = mDeviceProperties.get(deviceAddress);
-        if (dps != null) {
-            dps.queueGattIntent(intent);
-            result = true;
-        }
-
-        return result;
-    }
-
-    public static boolean setBGXAcknowledgedReads(String deviceAddress, boolean acknowledgedReads) {
+    public static boolean setBGXWriteHighWaterMark(String deviceAddress, int highWaterMark) {
         boolean result = false;
-        Intent intent = new Intent();
-        intent.setAction(ACTION_SET_READ_TYPE);
-        intent.putExtra("acknowledgedReads", acknowledgedReads);
 
         DeviceProperties dps = mDeviceProperties.get(deviceAddress);
-        if (dps != null) {
-            dps.queueGattIntent(intent);
+        if (dps != null && highWaterMark > 0) {
+            synchronized (dps.dataWriteSync) {
+                dps.mTxHighWaterMark = highWaterMark;
+                dps.dataWriteSync.notifyAll();
+            }
             result = true;
         }
 
@@ -2674,14 +5026,192 @@ public class BGXpressService extends JobIntentService {
         return null;
     }
 
+    /**
+     * Starts foreground streaming mode. The BGXpressService is started as a
+     * foreground service which shows the supplied notification. Until
+     * {@link #startActionBGXStopForegroundStreaming} is called, all actions are
+     * executed immediately on a dedicated thread instead of being scheduled as
+     * JobIntentService work, so they are not deferred by Doze or app standby.
+     *
+     * <p>The notification must use a notification channel that your app has created.
+     * Your app must also declare the android.permission.FOREGROUND_SERVICE permission
+     * (it is included in the bgxpress manifest).
+     *
+     * @param context        Interface to global information about an Android application environment.
+     * @param notificationId The identifier for the notification.
+     * @param notification   The notification to show while the service is in the foreground.
+     * @throws IllegalArgumentException if notification is null.
+     */
+    public static void startActionBGXStartForegroundStreaming(Context context, int notificationId, Notification notification) {
+        if (null == notification) {
+            throw new IllegalArgumentException("A notification is required for foreground streaming.");
+        }
+
+        Intent intent = new Intent(context, BGXpressService.class);
+        intent.setAction(ACTION_START_FOREGROUND_STREAMING);
+        intent.putExtra("notification-id", notificationId);
+        intent.putExtra("notification", notification);
+        context.startForegroundService(intent);
+    }
+
+    /**
+     * Stops foreground streaming mode. Actions are once again executed as JobIntentService work.
+     * Existing connections are not affected.
+     *
+     * @param context Interface to global information about an Android application environment.
+     */
+    public static void startActionBGXStopForegroundStreaming(Context context) {
+        if (null != mForegroundService) {
+            Intent intent = new Intent(context, BGXpressService.class);
+            intent.setAction(ACTION_STOP_FOREGROUND_STREAMING);
+            context.startService(intent);
+        }
+    }
+
+    /**
+     * @return true if the BGXpressService is running in foreground streaming mode.
+     */
+    public static boolean isForegroundStreaming() {
+        return null != mForegroundService;
+    }
+
     private static final int JOB_ID = 1000;
 
     public static void enqueueWork(Context context, Intent intent) {
+        synchronized (mWorkSync) {
+            BGXpressService foregroundService = mForegroundService;
+            if (null != foregroundService) {
+                if (mJobWorkPending > 0) {
+                    mDeferredWork.add(intent);
+                } else {
+                    foregroundService.dispatchWork(intent);
+                }
+                return;
+            }
+
+            ++mJobWorkPending;
+        }
+
         enqueueWork(context, BGXpressService.class, JOB_ID, intent);
     }
 
+    /**
+     * Runs handleWork() for the intent on the work thread.
+     * Intents are handled one at a time in the order they are dispatched.
+     *
+     * @param done Counted down once the intent has been handled. May be null.
+     */
+    private void dispatchWork(final Intent intent, final CountDownLatch done) {
+        boolean fresult = mWorkHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handleWork(intent);
+                } finally {
+                    if (null != done) {
+                        done.countDown();
+                    }
+                }
+            }
+        });
+
+        if (!fresult) {
+            Log.e("bgx_dbg", "Error posting work for " + intent.getAction() + ".");
+            if (null != done) {
+                done.countDown();
+            }
+        }
+    }
+
+    private void dispatchWork(Intent intent) {
+        dispatchWork(intent, null);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (null != intent && ACTION_START_FOREGROUND_STREAMING.equals(intent.getAction())) {
+            Notification notification = intent.getParcelableExtra("notification");
+            int notificationId = intent.getIntExtra("notification-id", kForegroundNotificationId);
+
+            if (null == notification) {
+                Log.e("bgx_dbg", "Error: " + ACTION_START_FOREGROUND_STREAMING + " requires a notification.");
+                if (null == mForegroundService) {
+                    stopSelf();
+                }
+                return START_NOT_STICKY;
+            }
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                startForeground(notificationId, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE);
+            } else {
+                startForeground(notificationId, notification);
+            }
+
+            synchronized (mWorkSync) {
+                mForegroundService = this;
+            }
+            Log.d("bgx_dbg", "Foreground streaming mode started.");
+            return START_NOT_STICKY;
+        } else if (null != intent && ACTION_STOP_FOREGROUND_STREAMING.equals(intent.getAction())) {
+            synchronized (mWorkSync) {
+                mForegroundService = null;
+            }
+            stopForeground(true);
+            stopSelf();
+            Log.d("bgx_dbg", "Foreground streaming mode stopped.");
+            return START_NOT_STICKY;
+        }
+
+        return super.onStartCommand(intent, flags, startId);
+    }
+
+    @Override
+    public void onDestroy() {
+        synchronized (mWorkSync) {
+            if (this == mForegroundService) {
+                mForegroundService = null;
+            }
+        }
+
+        super.onDestroy();
+    }
+
+    /**
+     * Handles JobScheduler work on the work thread, then releases any intents
+     * that were deferred behind it.
+     */
     @Override
     protected void onHandleWork(Intent intent) {
+        CountDownLatch done = new CountDownLatch(1);
+        dispatchWork(intent, done);
+
+        boolean fInterrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException exception) {
+                fInterrupted = true;
+            }
+        }
+
+        synchronized (mWorkSync) {
+            // work redelivered after a restart was not counted.
+            if (mJobWorkPending > 0 && 0 == --mJobWorkPending && !mDeferredWork.isEmpty()) {
+                BGXpressService service = (null != mForegroundService) ? mForegroundService : this;
+                for (Intent deferred : mDeferredWork) {
+                    service.dispatchWork(deferred);
+                }
+                mDeferredWork.clear();
+            }
+        }
+
+        if (fInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handleWork(Intent intent) {
         if (intent != null) {
             String bgxDeviceAddress = intent.getStringExtra("DeviceAddress");
             DeviceProperties dps = mDeviceProperties.get(bgxDeviceAddress);
@@ -2729,7 +5259,8 @@ public class BGXpressService extends JobIntentService {
                 } else if (ACTION_READ_BUS_MODE.equals(action)) {
                     dps.queueGattIntent(intent);
                 } else if (ACTION_BGX_CANCEL_CONNECTION.equals(action)) {
-                    mHandler.removeCallbacksAndMessages(null);
+                    // the handler is shared, so only drop the work of this device.
+                    mHandler.removeCallbacksAndMessages(dps);
                     dps.fUserConnectionCanceled = true;
                     if (null != dps.mBluetoothGatt) {
                         dps.mBluetoothGatt.disconnect();
@@ -2807,7 +5338,7 @@ public class BGXpressService extends JobIntentService {
         } else {
             dps.fUserConnectionCanceled = false;
             assert (!dps.fGattBusy);
-            assert (0 == dps.mIntentArray.size());
+            assert (0 == dps.gattQueueSize());
         }
 
         for (int i = 0; i < mScanProperties.mScanResults.size(); ++i) {
@@ -2855,7 +5386,7 @@ public class BGXpressService extends JobIntentService {
                 broadcastIntent.putExtra("bgx-connection-status", BGX_CONNECTION_STATUS.DISCONNECTED);
                 dps.mBluetoothGatt.disconnect();
                 dps.mBGXDeviceConnectionState = BGX_CONNECTION_STATUS.DISCONNECTED;
-                sendBroadcast(broadcastIntent);
+                publishEvent(broadcastIntent);
             }
         }
     }
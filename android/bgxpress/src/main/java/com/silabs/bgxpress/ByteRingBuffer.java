@@ -0,0 +1,231 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silabs.bgxpress;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A bounded FIFO of bytes stored in a circular array.
+ *
+ * <p>Appending and consuming never move the bytes already stored, so the cost
+ * of queueing data is proportional to the size of the data being queued and
+ * not to the size of the backlog. The backing array starts small and is doubled
+ * as needed until it reaches the capacity. It is never shrunk.
+ *
+ * <p>This class is not thread safe. Callers are expected to synchronize access.
+ */
+final class ByteRingBuffer {
+
+    private byte[] mBuffer;
+    private int mCapacity;
+    private int mHead;  // index of the oldest byte.
+    private int mSize;  // number of bytes stored.
+
+    /**
+     * @param initialSize The initial size of the backing array.
+     * @param capacity    The maximum number of bytes that may be stored.
+     */
+    ByteRingBuffer(int initialSize, int capacity) {
+        this.mCapacity = capacity;
+        this.mBuffer = new byte[Math.max(1, Math.min(initialSize, capacity))];
+        this.mHead = 0;
+        this.mSize = 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return 0 == mSize;
+    }
+
+    int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return The number of bytes that can be appended before the buffer is full.
+     */
+    int remaining() {
+        return mCapacity - mSize;
+    }
+
+    /**
+     * Changes the capacity. The capacity cannot be made smaller than the
+     * number of bytes currently stored.
+     *
+     * @param capacity The new capacity.
+     * @return true if the capacity was changed.
+     */
+    boolean setCapacity(int capacity) {
+        if (capacity < mSize || capacity <= 0) {
+            return false;
+        }
+
+        mCapacity = capacity;
+        return true;
+    }
+
+    /**
+     * Appends bytes to the end of the buffer. Nothing is appended if there
+     * is not enough room for all of the bytes.
+     *
+     * @return true if the bytes were appended, false if there was not enough room.
+     */
+    boolean append(byte[] src, int offset, int length) {
+        if (length > remaining()) {
+            return false;
+        }
+
+        ensureSize(mSize + length);
+
+        int tail = (mHead + mSize) % mBuffer.length;
+        int first = Math.min(length, mBuffer.length - tail);
+
+        System.arraycopy(src, offset, mBuffer, tail, first);
+        if (first < length) {
+            System.arraycopy(src, offset + first, mBuffer, 0, length - first);
+        }
+
+        mSize += length;
+        return true;
+    }
+
+    /**
+     * Appends the remaining bytes of a ByteBuffer to the end of the buffer.
+     * Nothing is appended if there is not enough room for all of the bytes.
+     * On success the position of src is advanced to its limit.
+     *
+     * @return true if the bytes were appended, false if there was not enough room.
+     */
+    boolean append(ByteBuffer src) {
+        int length = src.remaining();
+
+        if (length > remaining()) {
+            return false;
+        }
+
+        ensureSize(mSize + length);
+
+        int tail = (mHead + mSize) % mBuffer.length;
+        int first = Math.min(length, mBuffer.length - tail);
+
+        src.get(mBuffer, tail, first);
+        if (first < length) {
+            src.get(mBuffer, 0, length - first);
+        }
+
+        mSize += length;
+        return true;
+    }
+
+    /**
+     * Copies bytes from the front of the buffer without consuming them.
+     *
+     * @return The number of bytes copied.
+     */
+    int peek(byte[] dst, int offset, int length) {
+        int count = Math.min(length, mSize);
+        int first = Math.min(count, mBuffer.length - mHead);
+
+        System.arraycopy(mBuffer, mHead, dst, offset, first);
+        if (first < count) {
+            System.arraycopy(mBuffer, 0, dst, offset + first, count - first);
+        }
+
+        return count;
+    }
+
+    /**
+     * Consumes bytes from the front of the buffer.
+     *
+     * @return The number of bytes consumed.
+     */
+    int skip(int length) {
+        int count = Math.min(length, mSize);
+
+        mHead = (mHead + count) % mBuffer.length;
+        mSize -= count;
+
+        if (0 == mSize) {
+            mHead = 0;
+        }
+
+        return count;
+    }
+
+    /**
+     * Copies and consumes bytes from the front of the buffer.
+     *
+     * @return The number of bytes read.
+     */
+    int read(byte[] dst, int offset, int length) {
+        return skip(peek(dst, offset, length));
+    }
+
+    /**
+     * Copies and consumes bytes from the front of the buffer into dst,
+     * advancing its position.
+     *
+     * @return The number of bytes read.
+     */
+    int read(ByteBuffer dst) {
+        int count = Math.min(dst.remaining(), mSize);
+        int first = Math.min(count, mBuffer.length - mHead);
+
+        dst.put(mBuffer, mHead, first);
+        if (first < count) {
+            dst.put(mBuffer, 0, count - first);
+        }
+
+        return skip(count);
+    }
+
+    /**
+     * Removes bytes from the end of the buffer, undoing the latest appends.
+     *
+     * @param size The number of bytes to keep. Ignored if not smaller than size().
+     */
+    void truncate(int size) {
+        if (size >= 0 && size < mSize) {
+            mSize = size;
+        }
+    }
+
+    void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    /**
+     * Grows the backing array so it can hold at least minSize bytes.
+     */
+    private void ensureSize(int minSize) {
+        if (minSize <= mBuffer.length) {
+            return;
+        }
+
+        int newSize = mBuffer.length;
+        while (newSize < minSize) {
+            newSize = (int) Math.min((long) mCapacity, 2L * newSize);
+        }
+
+        byte[] newBuffer = new byte[newSize];
+        peek(newBuffer, 0, mSize);
+
+        mBuffer = newBuffer;
+        mHead = 0;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silabs.bgxpress;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for the BGXFrameDecoder framings. Random frames are encoded,
+ * the stream is cut into notifications at random places, and the decoded frames
+ * must equal the originals.
+ */
+public class BGXFrameDecoderTest {
+
+    private static final int kMaxFrameLength = 600;
+
+    private static final class Recorder implements BGXFrameDecoder.FrameListener {
+        final List<byte[]> mFrames = new ArrayList<>();
+        final List<IOException> mErrors = new ArrayList<>();
+
+        @Override
+        public void onFrame(BGXConnection connection, byte[] buffer, int offset, int length) {
+            mFrames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+        }
+
+        @Override
+        public void onFrameError(BGXConnection connection, IOException error) {
+            mErrors.add(error);
+        }
+    }
+
+    /**
+     * Random frames in which the bytes that the framings treat specially are common.
+     *
+     * @param excluded A byte value that must not occur, or -1.
+     */
+    private static List<byte[]> randomFrames(Random random, int count, int excluded, boolean allowEmpty) {
+        byte[] special = {0, (byte) 0xC0, (byte) 0xDB, (byte) 0xDC, (byte) 0xDD, '\n', (byte) 0xFF};
+        List<byte[]> frames = new ArrayList<>();
+        while (frames.size() < count) {
+            // mostly short frames, sometimes long ones that cross COBS's 254-byte blocks.
+            int length = random.nextInt(8) == 0 ? random.nextInt(kMaxFrameLength + 1) : random.nextInt(40);
+            if (0 == length && !allowEmpty) {
+                continue;
+            }
+            byte[] frame = new byte[length];
+            for (int i = 0; i < length; ++i) {
+                do {
+                    frame[i] = random.nextBoolean() ? special[random.nextInt(special.length)] : (byte) random.nextInt(256);
+                } while ((frame[i] & 0xFF) == excluded);
+            }
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    /**
+     * Feeds the stream to the decoder in notifications of random length, each at a
+     * random offset in a larger array.
+     */
+    private static List<byte[]> decodeInRandomSplits(Random random, BGXFrameDecoder decoder, byte[] stream) {
+        Recorder recorder = new Recorder();
+        decoder.attach(null, recorder);
+
+        int position = 0;
+        while (position < stream.length) {
+            int length = Math.min(stream.length - position, random.nextInt(4) == 0 ? random.nextInt(3) : random.nextInt(250));
+            byte[] notification = new byte[length + 6];
+            System.arraycopy(stream, position, notification, 3, length);
+            decoder.decode(notification, 3, length);
+            position += length;
+        }
+
+        assertTrue(recorder.mErrors.toString(), recorder.mErrors.isEmpty());
+        return recorder.mFrames;
+    }
+
+    private static void assertFramesEqual(List<byte[]> expected, List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); ++i) {
+            assertArrayEquals("frame " + i, expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    public void delimiter_roundTrip() {
+        Random random = new Random(1);
+        for (int round = 0; round < 200; ++round) {
+            boolean strip = random.nextBoolean();
+            List<byte[]> frames = randomFrames(random, 20, '\n', true);
+
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            List<byte[]> expected = new ArrayList<>();
+            for (byte[] frame : frames) {
+                byte[] delimited = Arrays.copyOf(frame, frame.length + 1);
+                delimited[frame.length] = '\n';
+                stream.write(delimited, 0, delimited.length);
+                expected.add(strip ? frame : delimited);
+            }
+
+            BGXFrameDecoder decoder = new BGXFrameDecoder.Delimiter((byte) '\n', strip, kMaxFrameLength + 1);
+            assertFramesEqual(expected, decodeInRandomSplits(random, decoder, stream.toByteArray()));
+        }
+    }
+
+    @Test
+    public void lengthField_roundTrip() {
+        Random random = new Random(2);
+        for (int round = 0; round < 200; ++round) {
+            List<byte[]> frames = randomFrames(random, 20, -1, false);
+            boolean bigEndian = random.nextBoolean();
+
+            // a one-byte type followed by a two-byte payload length.
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            List<byte[]> expected = new ArrayList<>();
+            for (byte[] payload : frames) {
+                byte[] frame = new byte[3 + payload.length];
+                frame[0] = (byte) random.nextInt(256);
+                frame[bigEndian ? 1 : 2] = (byte) (payload.length >> 8);
+                frame[bigEndian ? 2 : 1] = (byte) payload.length;
+                System.arraycopy(payload, 0, frame, 3, payload.length);
+                stream.write(frame, 0, frame.length);
+                expected.add(frame);
+            }
+
+            BGXFrameDecoder decoder = new BGXFrameDecoder.LengthField(1, 2, bigEndian, 0, kMaxFrameLength + 3);
+            assertFramesEqual(expected, decodeInRandomSplits(random, decoder, stream.toByteArray()));
+        }
+    }
+
+    private static byte[] slipEncode(List<byte[]> frames) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.write(0xC0);
+        for (byte[] frame : frames) {
+            for (byte b : frame) {
+                if ((byte) 0xC0 == b) {
+                    stream.write(0xDB);
+                    stream.write(0xDC);
+                } else if ((byte) 0xDB == b) {
+                    stream.write(0xDB);
+                    stream.write(0xDD);
+                } else {
+                    stream.write(b);
+                }
+            }
+            stream.write(0xC0);
+        }
+        return stream.toByteArray();
+    }
+
+    @Test
+    public void slip_roundTrip() {
+        Random random = new Random(3);
+        for (int round = 0; round < 200; ++round) {
+            // SLIP ignores empty frames.
+            List<byte[]> frames = randomFrames(random, 20, -1, false);
+            BGXFrameDecoder decoder = new BGXFrameDecoder.Slip(kMaxFrameLength);
+            assertFramesEqual(frames, decodeInRandomSplits(random, decoder, slipEncode(frames)));
+        }
+    }
+
+    private static byte[] cobsEncode(List<byte[]> frames) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (byte[] frame : frames) {
+            byte[] encoded = new byte[frame.length + frame.length / 254 + 2];
+            int codeIndex = 0;
+            int write = 1;
+            int code = 1;
+            for (byte b : frame) {
+                if (0 == b) {
+                    encoded[codeIndex] = (byte) code;
+                    codeIndex = write++;
+                    code = 1;
+                } else {
+                    encoded[write++] = b;
+                    if (0xFF == ++code) {
+                        encoded[codeIndex] = (byte) code;
+                        codeIndex = write++;
+                        code = 1;
+                    }
+                }
+            }
+            encoded[codeIndex] = (byte) code;
+            stream.write(encoded, 0, write);
+            stream.write(0);
+        }
+        return stream.toByteArray();
+    }
+
+    @Test
+    public void cobs_roundTrip() {
+        Random random = new Random(4);
+        for (int round = 0; round < 200; ++round) {
+            List<byte[]> frames = randomFrames(random, 20, -1, true);
+            BGXFrameDecoder decoder = new BGXFrameDecoder.Cobs(kMaxFrameLength);
+            assertFramesEqual(frames, decodeInRandomSplits(random, decoder, cobsEncode(frames)));
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silabs.bgxpress;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for BGXPatternMatcher, checked against a naive search.
+ */
+public class BGXPatternMatcherTest {
+
+    /**
+     * Records matches as "position:pattern" so that they can be sorted and compared.
+     */
+    private static final class Recorder implements BGXPatternMatcher.MatchListener {
+        final List<String> mMatches = new ArrayList<>();
+
+        @Override
+        public void onMatch(BGXConnection connection, int pattern, long position) {
+            mMatches.add(position + ":" + pattern);
+        }
+    }
+
+    private static List<String> naiveSearch(byte[][] patterns, byte[] data) {
+        List<String> matches = new ArrayList<>();
+        for (int end = 1; end <= data.length; ++end) {
+            for (int p = 0; p < patterns.length; ++p) {
+                byte[] pattern = patterns[p];
+                int start = end - pattern.length;
+                if (start < 0) {
+                    continue;
+                }
+                boolean equal = true;
+                for (int i = 0; i < pattern.length && equal; ++i) {
+                    equal = pattern[i] == data[start + i];
+                }
+                if (equal) {
+                    matches.add(end + ":" + p);
+                }
+            }
+        }
+        return matches;
+    }
+
+    private static byte[] randomBytes(Random random, int length, int alphabet) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            // a small alphabet makes overlapping and nested matches common.
+            bytes[i] = (byte) ('a' + random.nextInt(alphabet));
+        }
+        return bytes;
+    }
+
+    private static List<String> scanInRandomSplits(Random random, BGXPatternMatcher matcher, byte[] data) {
+        Recorder recorder = new Recorder();
+        BGXPatternMatcher.Scanner scanner = new BGXPatternMatcher.Scanner(matcher, recorder);
+
+        // pad the array so that offset is exercised too.
+        byte[] padded = new byte[data.length + 8];
+        System.arraycopy(data, 0, padded, 4, data.length);
+
+        int offset = 0;
+        while (offset < data.length) {
+            int length = Math.min(data.length - offset, random.nextInt(12));
+            scanner.scan(null, padded, 4 + offset, length);
+            offset += length;
+        }
+        return recorder.mMatches;
+    }
+
+    @Test
+    public void scan_matchesNaiveSearchForRandomSplits() {
+        Random random = new Random(42);
+
+        for (int round = 0; round < 500; ++round) {
+            int alphabet = 2 + random.nextInt(3);
+            byte[][] patterns = new byte[1 + random.nextInt(6)][];
+            for (int p = 0; p < patterns.length; ++p) {
+                patterns[p] = randomBytes(random, 1 + random.nextInt(5), alphabet);
+            }
+            byte[] data = randomBytes(random, random.nextInt(300), alphabet);
+
+            BGXPatternMatcher matcher = new BGXPatternMatcher(patterns);
+            List<String> expected = naiveSearch(patterns, data);
+            List<String> actual = scanInRandomSplits(random, matcher, data);
+
+            // matches ending at the same byte may be reported in any order.
+            Collections.sort(expected);
+            Collections.sort(actual);
+            assertEquals("round " + round, expected, actual);
+        }
+    }
+
+    @Test
+    public void scan_findsPatternSplitAcrossNotifications() {
+        Recorder recorder = new Recorder();
+        BGXPatternMatcher matcher = new BGXPatternMatcher("OK\r\n", "ERROR");
+        BGXPatternMatcher.Scanner scanner = new BGXPatternMatcher.Scanner(matcher, recorder);
+
+        byte[] first = "xxO".getBytes();
+        byte[] second = "K\r\nERR".getBytes();
+        byte[] third = "OR".getBytes();
+        scanner.scan(null, first, 0, first.length);
+        scanner.scan(null, second, 0, second.length);
+        scanner.scan(null, third, 0, third.length);
+
+        List<String> expected = new ArrayList<>();
+        expected.add("6:0");
+        expected.add("11:1");
+        assertEquals(expected, recorder.mMatches);
+    }
+
+    @Test
+    public void reset_forgetsPartialMatch() {
+        Recorder recorder = new Recorder();
+        BGXPatternMatcher matcher = new BGXPatternMatcher("abc");
+        BGXPatternMatcher.Scanner scanner = new BGXPatternMatcher.Scanner(matcher, recorder);
+
+        byte[] head = "ab".getBytes();
+        byte[] tail = "c".getBytes();
+        scanner.scan(null, head, 0, head.length);
+        scanner.reset();
+        scanner.scan(null, tail, 0, tail.length);
+
+        assertTrue(recorder.mMatches.isEmpty());
+    }
+
+    @Test
+    public void constructor_rejectsEmptyPattern() {
+        try {
+            new BGXPatternMatcher("abc", "");
+            fail("An empty pattern was accepted.");
+        } catch (IllegalArgumentException expected) {
+            // expected.
+        }
+    }
+}
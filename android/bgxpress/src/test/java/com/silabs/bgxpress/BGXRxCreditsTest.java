@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silabs.bgxpress;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for BGXRxCredits, the FastAck credit bookkeeping.
+ */
+public class BGXRxCreditsTest {
+
+    private static final int kThreshold = BGXRxCredits.kReturnThreshold;
+
+    @Test
+    public void credits_areHeldBackUntilThresholdIsCrossed() {
+        BGXRxCredits credits = new BGXRxCredits();
+
+        credits.onReceived(kThreshold);
+        credits.release(0);
+        assertEquals(0, credits.takeCredits());
+        assertEquals(kThreshold, credits.getCreditsToReturn());
+
+        credits.onReceived(1);
+        credits.release(0);
+        assertEquals(kThreshold + 1, credits.takeCredits());
+        assertEquals(0, credits.takeCredits());
+        assertEquals(0, credits.getCreditsToReturn());
+    }
+
+    @Test
+    public void creditsBelowThreshold_carryOverToNextUpdate() {
+        BGXRxCredits credits = new BGXRxCredits();
+        int notification = 244;
+        int returned = 0;
+        int received = 0;
+
+        while (returned < 3 * kThreshold) {
+            credits.onReceived(notification);
+            received += notification;
+            credits.release(0);
+
+            int update = credits.takeCredits();
+            if (0 != update) {
+                assertTrue(update > kThreshold);
+                returned += update;
+            }
+
+            // nothing is lost: every received byte is either returned or still to be returned.
+            assertEquals(received, returned + credits.getCreditsToReturn());
+        }
+    }
+
+    @Test
+    public void heldBytes_areNotReturnedUntilConsumed() {
+        BGXRxCredits credits = new BGXRxCredits();
+
+        // a slow consumer holds everything it has not read.
+        credits.onReceived(3 * kThreshold);
+        credits.release(3 * kThreshold);
+        assertEquals(0, credits.takeCredits());
+        assertEquals(0, credits.getCreditsToReturn());
+
+        // reading part of the buffer releases only what was read.
+        credits.release(kThreshold);
+        assertEquals(2 * kThreshold, credits.takeCredits());
+
+        credits.release(0);
+        assertEquals(0, credits.takeCredits());
+        assertEquals(kThreshold, credits.getCreditsToReturn());
+    }
+
+    @Test
+    public void largeReleases_areSplitIntoSeveralUpdates() {
+        BGXRxCredits credits = new BGXRxCredits();
+
+        credits.onReceived(0x18000);
+        credits.release(0);
+        assertEquals(BGXRxCredits.kMaxReturn, credits.takeCredits());
+        assertEquals(0x18000 - BGXRxCredits.kMaxReturn, credits.takeCredits());
+        assertEquals(0, credits.takeCredits());
+    }
+
+    @Test
+    public void resetAndReleaseAll_forgetPendingCredits() {
+        BGXRxCredits credits = new BGXRxCredits();
+
+        credits.onReceived(100);
+        credits.release(0);
+        credits.reset();
+        assertEquals(0, credits.getCreditsToReturn());
+
+        // bytes received before a disconnect are never returned.
+        credits.onReceived(2 * kThreshold);
+        credits.releaseAll();
+        credits.release(0);
+        assertEquals(0, credits.takeCredits());
+        assertEquals(0, credits.getCreditsToReturn());
+    }
+}
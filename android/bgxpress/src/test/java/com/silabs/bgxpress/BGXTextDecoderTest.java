@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silabs.bgxpress;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Local unit tests for BGXTextDecoder, which decodes received notifications into text.
+ */
+public class BGXTextDecoderTest {
+
+    @Test
+    public void decode_keepsCharactersSplitBetweenNotifications() {
+        String text = "caf\u00e9 \u20ac \u4e2d\u6587 \ud83d\ude00 AT+VERSION\r\n";
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        Random random = new Random(5);
+
+        for (int round = 0; round < 200; ++round) {
+            BGXTextDecoder decoder = new BGXTextDecoder(StandardCharsets.UTF_8);
+            StringBuilder decoded = new StringBuilder();
+
+            int position = 0;
+            while (position < bytes.length) {
+                int length = Math.min(bytes.length - position, random.nextInt(5));
+                decoded.append(decoder.decode(bytes, position, length));
+                position += length;
+            }
+            assertEquals(text, decoded.toString());
+        }
+    }
+
+    @Test
+    public void reset_dropsIncompleteCharacter() {
+        BGXTextDecoder decoder = new BGXTextDecoder(StandardCharsets.UTF_8);
+        byte[] euro = "\u20ac".getBytes(StandardCharsets.UTF_8);
+
+        assertEquals("", decoder.decode(euro, 0, 2).toString());
+        decoder.reset();
+        assertEquals("ok", decoder.decode("ok".getBytes(StandardCharsets.UTF_8), 0, 2).toString());
+    }
+
+    @Test
+    public void decode_isAllocationFreeForTheSameArray() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+
+        BGXTextDecoder decoder = new BGXTextDecoder(StandardCharsets.UTF_8);
+        byte[] bytes = "streaming \u00e9\u20ac\ud83d\ude00 ".getBytes(StandardCharsets.UTF_8);
+
+        int iterations = 20000;
+        long threadId = Thread.currentThread().getId();
+
+        // warm up so that the JIT and class loading do not count.
+        for (int i = 0; i < iterations; ++i) {
+            decodeInTwo(decoder, bytes, i);
+        }
+
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; ++i) {
+            decodeInTwo(decoder, bytes, i);
+        }
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        // one ByteBuffer per call would be over 40 bytes each time.
+        assertTrue("Allocated " + allocated + " bytes.", allocated < iterations);
+    }
+
+    private static void decodeInTwo(BGXTextDecoder decoder, byte[] bytes, int i) {
+        int split = i % (bytes.length + 1);
+        decoder.decode(bytes, 0, split);
+        decoder.decode(bytes, split, bytes.length - split);
+    }
+}
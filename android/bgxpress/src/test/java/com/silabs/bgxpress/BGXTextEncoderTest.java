@@ -0,0 +1,126 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silabs.bgxpress;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Local unit tests for BGXTextEncoder, which encodes strings into the TX buffer.
+ */
+public class BGXTextEncoderTest {
+
+    private static byte[] drain(ByteRingBuffer buffer) {
+        byte[] bytes = new byte[buffer.size()];
+        buffer.read(bytes, 0, bytes.length);
+        return bytes;
+    }
+
+    private static String repeat(String s, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; ++i) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void encode_matchesGetBytes() {
+        BGXTextEncoder encoder = new BGXTextEncoder(StandardCharsets.UTF_8);
+        ByteRingBuffer buffer = new ByteRingBuffer(16, 1 << 20);
+
+        String[] texts = {
+                "",
+                "AT+VERSION\r\n",
+                "caf\u00e9 \u20ac \u4e2d\u6587",
+                repeat("\ud83d\ude00", 300),  // surrogate pairs across block boundaries
+                repeat("a", 255) + "\ud83d\ude00",  // a pair split by the first block
+                "lone \ud83d surrogate \ude00 here",  // malformed input is replaced
+                repeat("0123456789\u00e9", 1000),
+        };
+
+        for (String text : texts) {
+            byte[] expected = text.getBytes(StandardCharsets.UTF_8);
+            assertEquals(expected.length, encoder.encode(text, buffer));
+            assertArrayEquals(text, expected, drain(buffer));
+        }
+    }
+
+    @Test
+    public void encode_appendsNothingWhenFull() {
+        BGXTextEncoder encoder = new BGXTextEncoder(StandardCharsets.UTF_8);
+        ByteRingBuffer buffer = new ByteRingBuffer(16, 1000);
+
+        assertEquals(3, encoder.encode("abc", buffer));
+        assertEquals(-1, encoder.encode(repeat("\u00e9", 600), buffer));
+        assertEquals(3, buffer.size());
+
+        // the encoder is still usable after a failed encode.
+        assertEquals(2, encoder.encode("de", buffer));
+        assertArrayEquals("abcde".getBytes(StandardCharsets.UTF_8), drain(buffer));
+    }
+
+    @Test
+    public void encode_isAllocationFree() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+
+        BGXTextEncoder encoder = new BGXTextEncoder(StandardCharsets.UTF_8);
+        ByteRingBuffer buffer = new ByteRingBuffer(4096, 4096);
+        BGXTxChunks chunks = new BGXTxChunks();
+        String text = repeat("streaming \u00e9\u20ac\ud83d\ude00 ", 20);
+
+        int iterations = 20000;
+        long threadId = Thread.currentThread().getId();
+
+        // warm up so that the JIT and class loading do not count.
+        for (int i = 0; i < iterations; ++i) {
+            encodeAndDrain(encoder, buffer, chunks, text);
+        }
+
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; ++i) {
+            encodeAndDrain(encoder, buffer, chunks, text);
+        }
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        // one byte[] per string would be over 100 bytes each time.
+        assertTrue("Allocated " + allocated + " bytes.", allocated < iterations);
+    }
+
+    /**
+     * Encodes text and drains it the way writeChunkOfData() and
+     * onCharacteristicWrite() do, one chunk in flight at a time.
+     */
+    private static void encodeAndDrain(BGXTextEncoder encoder, ByteRingBuffer buffer, BGXTxChunks chunks, String text) {
+        if (encoder.encode(text, buffer) < 0) {
+            fail("TX buffer full.");
+        }
+        while (!buffer.isEmpty()) {
+            int chunkSize = Math.min(buffer.size(), 244);
+            byte[] chunk = chunks.peek(buffer, chunkSize, 244);
+            assertEquals(chunkSize, chunk.length);
+            chunks.sent(buffer, chunkSize);
+            chunks.takeEnd();
+        }
+    }
+}
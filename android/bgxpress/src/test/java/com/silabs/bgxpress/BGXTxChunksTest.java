@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silabs.bgxpress;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for BGXTxChunks, which cuts the TX buffer into chunks.
+ */
+public class BGXTxChunksTest {
+
+    private static ByteRingBuffer filled(int length) {
+        ByteRingBuffer buffer = new ByteRingBuffer(16, 1 << 16);
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            bytes[i] = (byte) i;
+        }
+        buffer.append(bytes, 0, length);
+        return buffer;
+    }
+
+    @Test
+    public void peek_copiesWithoutConsuming() {
+        BGXTxChunks chunks = new BGXTxChunks();
+        ByteRingBuffer buffer = filled(10);
+
+        byte[] chunk = chunks.peek(buffer, 4, 20);
+        assertArrayEquals(new byte[]{0, 1, 2, 3}, chunk);
+        assertEquals(10, buffer.size());
+
+        assertEquals(4, chunks.sent(buffer, 4));
+        assertEquals(6, buffer.size());
+        assertArrayEquals(new byte[]{4, 5, 6, 7}, chunks.peek(buffer, 4, 20));
+    }
+
+    @Test
+    public void peek_reusesArraysUntilChunkSizeChanges() {
+        BGXTxChunks chunks = new BGXTxChunks();
+        ByteRingBuffer buffer = filled(100);
+
+        byte[] first = chunks.peek(buffer, 20, 20);
+        assertSame(first, chunks.peek(buffer, 20, 20));
+        assertNotSame(first, chunks.peek(buffer, 19, 20));
+
+        // a new MTU rebuilds the pool.
+        assertNotSame(first, chunks.peek(buffer, 20, 40));
+    }
+
+    @Test
+    public void takeEnd_returnsChunkEndsInOrder() {
+        BGXTxChunks chunks = new BGXTxChunks();
+        ByteRingBuffer buffer = filled(1000);
+
+        // more chunks than the initial ring holds.
+        long end = 0;
+        for (int i = 1; i <= 10; ++i) {
+            end += i;
+            assertEquals(end, chunks.sent(buffer, i));
+        }
+        assertEquals(10, chunks.inFlight());
+        assertEquals(55, chunks.bytesSent());
+
+        end = 0;
+        for (int i = 1; i <= 10; ++i) {
+            end += i;
+            assertEquals(end, chunks.takeEnd());
+        }
+        assertEquals(0, chunks.inFlight());
+    }
+
+    @Test
+    public void reset_forgetsChunksInFlight() {
+        BGXTxChunks chunks = new BGXTxChunks();
+        ByteRingBuffer buffer = filled(100);
+
+        chunks.sent(buffer, 10);
+        chunks.sent(buffer, 10);
+        chunks.reset(50);
+
+        assertEquals(0, chunks.inFlight());
+        assertEquals(50, chunks.bytesSent());
+        assertEquals(55, chunks.sent(buffer, 5));
+        assertEquals(55, chunks.takeEnd());
+    }
+}
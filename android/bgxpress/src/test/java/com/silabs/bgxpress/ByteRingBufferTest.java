@@ -0,0 +1,162 @@
+/*
+ * Copyright 2018-2019 Silicon Labs
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * {{ http://www.apache.org/licenses/LICENSE-2.0}}
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.silabs.bgxpress;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for ByteRingBuffer, the bounded TX buffer.
+ */
+public class ByteRingBufferTest {
+
+    private static byte[] bytes(int first, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            bytes[i] = (byte) (first + i);
+        }
+        return bytes;
+    }
+
+    @Test
+    public void append_refusesWhatDoesNotFit() {
+        ByteRingBuffer buffer = new ByteRingBuffer(4, 10);
+
+        assertTrue(buffer.append(bytes(0, 8), 0, 8));
+        assertFalse(buffer.append(bytes(8, 3), 0, 3));
+        assertEquals(8, buffer.size());
+        assertEquals(2, buffer.remaining());
+
+        ByteBuffer src = ByteBuffer.wrap(bytes(8, 3));
+        assertFalse(buffer.append(src));
+        assertEquals(0, src.position());
+
+        src.limit(2);
+        assertTrue(buffer.append(src));
+        assertEquals(2, src.position());
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    public void setCapacity_cannotDropStoredBytes() {
+        ByteRingBuffer buffer = new ByteRingBuffer(4, 10);
+        buffer.append(bytes(0, 6), 0, 6);
+
+        assertFalse(buffer.setCapacity(5));
+        assertTrue(buffer.setCapacity(6));
+        assertEquals(0, buffer.remaining());
+        assertTrue(buffer.setCapacity(20));
+        assertEquals(14, buffer.remaining());
+    }
+
+    @Test
+    public void truncate_undoesLatestAppends() {
+        ByteRingBuffer buffer = new ByteRingBuffer(4, 16);
+        buffer.append(bytes(0, 6), 0, 6);
+        buffer.skip(4);
+        buffer.append(bytes(6, 6), 0, 6);  // wraps around
+
+        buffer.truncate(5);
+        byte[] dst = new byte[8];
+        assertEquals(5, buffer.read(dst, 0, dst.length));
+        assertArrayEquals(bytes(4, 5), Arrays.copyOf(dst, 5));
+    }
+
+    /**
+     * Random operations compared with a plain list of bytes, with a small
+     * initial size so that the data wraps around and the array grows often.
+     */
+    @Test
+    public void randomOperations_matchModel() {
+        Random random = new Random(7);
+        ByteRingBuffer buffer = new ByteRingBuffer(3, 200);
+        List<Byte> model = new ArrayList<>();
+        int next = 0;
+
+        for (int step = 0; step < 20000; ++step) {
+            int length = random.nextInt(70);
+            byte[] dst = new byte[length + 4];
+
+            switch (random.nextInt(6)) {
+                case 0: {
+                    byte[] src = bytes(next, length + 4);
+                    boolean fits = model.size() + length <= 200;
+                    assertEquals(fits, buffer.append(src, 2, length));
+                    if (fits) {
+                        for (int i = 0; i < length; ++i) {
+                            model.add(src[2 + i]);
+                        }
+                        next += length;
+                    }
+                    break;
+                }
+                case 1: {
+                    ByteBuffer src = ByteBuffer.wrap(bytes(next, length));
+                    boolean fits = model.size() + length <= 200;
+                    assertEquals(fits, buffer.append(src));
+                    if (fits) {
+                        for (int i = 0; i < length; ++i) {
+                            model.add(src.get(i));
+                        }
+                        next += length;
+                    }
+                    break;
+                }
+                case 2: {
+                    int count = Math.min(length, model.size());
+                    assertEquals(count, buffer.peek(dst, 2, length));
+                    for (int i = 0; i < count; ++i) {
+                        assertEquals((byte) model.get(i), dst[2 + i]);
+                    }
+                    break;
+                }
+                case 3: {
+                    int count = Math.min(length, model.size());
+                    assertEquals(count, buffer.read(dst, 2, length));
+                    for (int i = 0; i < count; ++i) {
+                        assertEquals((byte) model.remove(0), dst[2 + i]);
+                    }
+                    break;
+                }
+                case 4: {
+                    ByteBuffer out = ByteBuffer.allocate(length);
+                    int count = Math.min(length, model.size());
+                    assertEquals(count, buffer.read(out));
+                    assertEquals(count, out.position());
+                    for (int i = 0; i < count; ++i) {
+                        assertEquals((byte) model.remove(0), out.get(i));
+                    }
+                    break;
+                }
+                default: {
+                    int count = Math.min(length, model.size());
+                    assertEquals(count, buffer.skip(length));
+                    model.subList(0, count).clear();
+                    break;
+                }
+            }
+
+            assertEquals(model.size(), buffer.size());
+            assertEquals(200 - model.size(), buffer.remaining());
+            assertEquals(model.isEmpty(), buffer.isEmpty());
+        }
+    }
+}